@@ -0,0 +1,409 @@
+package it.unipi.ing.falldetection.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import it.unipi.ing.falldetection.core.FallDetectionEvent;
+import it.unipi.ing.falldetection.core.IFallDetectionStrategy;
+import it.unipi.ing.falldetection.core.IFallDetectionStrategyFactory;
+import it.unipi.ing.falldetection.core.OnFallDetectedListener;
+import it.unipi.ing.falldetection.core.SensorDataManager;
+
+/**
+ * Runs the detection pipeline of many streams (one per device) in a single JVM.
+ * <p>
+ * Each stream has its own {@link SensorDataManager} and strategy, owned by one of a fixed set of
+ * workers, chosen by hashing the identifier of the stream. A worker is the only thread touching
+ * its streams, so the single-writer contract of the managers holds and no lock is needed; the
+ * workers share nothing but the pool of batches, so the throughput scales with them.
+ * <p>
+ * The samples are submitted in {@link SampleBatch batches}, and each worker drains its queue
+ * several items at a time. A single timer thread serves all the streams: it periodically asks each
+ * worker to {@link IFallDetectionStrategy#poll poll} its strategies, and runs the tasks scheduled
+ * with {@link #schedule} on the worker owning their stream. The timer never blocks on a full
+ * queue: a task that finds the queue of its worker full is retried a few times after a short
+ * delay, then dropped and counted.
+ */
+public class DetectionEngine
+{
+    private static final Logger logger = Logger.getLogger(DetectionEngine.class.getName());
+
+    /**
+     * The maximum number of queued items a worker takes at once.
+     */
+    private static final int maxDrain = 256;
+
+    /**
+     * The delay in milliseconds before retrying a scheduled task whose worker queue is full, and
+     * the number of retries before the task is dropped.
+     */
+    private static final long scheduleRetryDelay = 10;
+    private static final int maxScheduleRetries = 5;
+
+    private static final Object POLL = new Object();
+    private static final Object STOP = new Object();
+
+    private final IFallDetectionStrategyFactory factory;
+    private final int history;
+    private final int retention;
+    private final int batchCapacity;
+    private final long pollInterval;
+    private final String[] descriptions = new String[] {
+            "time[ns]", "acceleration_x[g]", "acceleration_y[g]", "acceleration_z[g]"
+    };
+
+    private final Worker[] workers;
+    private final ScheduledExecutorService timer;
+    private final ConcurrentLinkedQueue<SampleBatch> batchPool = new ConcurrentLinkedQueue<SampleBatch>();
+    private final AtomicLong droppedTasks = new AtomicLong();
+
+    private volatile OnStreamFallDetectedListener[] listeners = new OnStreamFallDetectedListener[0];
+
+    /**
+     * Constructs a new instance of DetectionEngine. The workers start with {@link #start}.
+     *
+     * @param workerCount
+     *            The number of worker threads, usually the number of cores.
+     * @param queueCapacity
+     *            The number of items each worker can queue; {@link #submit} fails when full.
+     * @param batchCapacity
+     *            The number of samples of the batches returned by {@link #obtainBatch}.
+     * @param history
+     *            The number of samples of a snapshot of each stream.
+     * @param retention
+     *            The additional samples kept by the ring of each stream (see
+     *            {@link SensorDataManager#SensorDataManager(int, int, int, String[])}).
+     * @param pollInterval
+     *            The interval in milliseconds between two polls of the strategies.
+     */
+    public DetectionEngine(int workerCount, int queueCapacity, int batchCapacity, int history, int retention,
+            long pollInterval, IFallDetectionStrategyFactory factory)
+    {
+        this.factory = factory;
+        this.history = history;
+        this.retention = retention;
+        this.batchCapacity = batchCapacity;
+        this.pollInterval = pollInterval;
+
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(i, queueCapacity);
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DetectionEngine-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void start() {
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+        timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                for (Worker worker : workers) {
+                    worker.requestPoll();
+                }
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Processes the items already queued, detaches all the streams and stops the workers.
+     */
+    public void shutdown() throws InterruptedException {
+        timer.shutdownNow();
+        for (Worker worker : workers) {
+            worker.queue.put(STOP);
+        }
+        for (Worker worker : workers) {
+            worker.thread.join();
+        }
+    }
+
+    public synchronized void addListener(OnStreamFallDetectedListener listener) {
+        OnStreamFallDetectedListener[] current = listeners;
+        OnStreamFallDetectedListener[] updated = new OnStreamFallDetectedListener[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = listener;
+        listeners = updated;
+    }
+
+    public synchronized void removeListener(OnStreamFallDetectedListener listener) {
+        OnStreamFallDetectedListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                OnStreamFallDetectedListener[] updated = new OnStreamFallDetectedListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                listeners = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns an empty batch, recycled if possible. It can be called from any thread.
+     */
+    public SampleBatch obtainBatch() {
+        SampleBatch batch = batchPool.poll();
+        return batch != null ? batch : new SampleBatch(batchCapacity);
+    }
+
+    /**
+     * Queues a batch of samples of a stream, which is created on its first batch. The samples of a
+     * stream must be submitted in order, hence from one thread at a time.
+     *
+     * @return Whether the batch has been queued. If not (the queue of the worker is full), the
+     *         batch still belongs to the caller.
+     */
+    public boolean submit(String streamId, SampleBatch batch) {
+        batch.streamId = streamId;
+        return workerOf(streamId).queue.offer(batch);
+    }
+
+    /**
+     * Runs a task on the worker owning the given stream, after the items already queued.
+     *
+     * @return Whether the task has been queued.
+     */
+    public boolean execute(String streamId, Runnable task) {
+        return workerOf(streamId).queue.offer(task);
+    }
+
+    /**
+     * Runs a task on the worker owning the given stream after a delay, using the shared timer. If
+     * the queue of the worker is still full after a few retries, or the engine is shut down, the
+     * task is dropped (see {@link #getDroppedTaskCount}).
+     */
+    public void schedule(String streamId, Runnable task, long delay) {
+        schedule(streamId, task, delay, 0);
+    }
+
+    private void schedule(final String streamId, final Runnable task, long delay, final int retries) {
+        try {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (workerOf(streamId).queue.offer(task)) {
+                        return;
+                    }
+                    if (retries < maxScheduleRetries) {
+                        schedule(streamId, task, scheduleRetryDelay, retries + 1);
+                    }
+                    else {
+                        droppedTasks.incrementAndGet();
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            droppedTasks.incrementAndGet();
+        }
+    }
+
+    /**
+     * Detaches the strategy of a stream and forgets it, after the samples already queued. The
+     * pending events of the stream get truncated snapshots.
+     */
+    public boolean close(final String streamId) {
+        final Worker worker = workerOf(streamId);
+        return worker.queue.offer(new Runnable() {
+            @Override
+            public void run() {
+                worker.closeStream(streamId);
+            }
+        });
+    }
+
+    /**
+     * Gets the number of open streams.
+     */
+    public int getStreamCount() {
+        int count = 0;
+        for (Worker worker : workers) {
+            count += worker.streamCount;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of samples fed so far.
+     */
+    public long getSampleCount() {
+        long count = 0;
+        for (Worker worker : workers) {
+            count += worker.sampleCount;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of scheduled tasks dropped so far because the queue of their worker stayed
+     * full.
+     */
+    public long getDroppedTaskCount() {
+        return droppedTasks.get();
+    }
+
+    private Worker workerOf(String streamId) {
+        // Spread the hash, since the identifiers of the devices are often sequential
+        int h = streamId.hashCode() * 0x9E3779B9;
+        return workers[((h ^ (h >>> 16)) & 0x7fffffff) % workers.length];
+    }
+
+    private void fireStreamFallDetected(String streamId, FallDetectionEvent event) {
+        OnStreamFallDetectedListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].onStreamFallDetected(streamId, event);
+        }
+    }
+
+    /**
+     * The pipeline of a stream, touched only by the worker owning it.
+     */
+    private class Stream implements OnFallDetectedListener
+    {
+        final String id;
+        final SensorDataManager dataManager;
+        final IFallDetectionStrategy strategy;
+
+        Stream(String id) {
+            this.id = id;
+            this.dataManager = new SensorDataManager(history, retention, 3, descriptions);
+            this.strategy = factory.create(dataManager);
+            strategy.addListener(this);
+        }
+
+        @Override
+        public void onFallDetected(IFallDetectionStrategy sender, FallDetectionEvent event) {
+            fireStreamFallDetected(id, event);
+        }
+
+        /**
+         * Detaches the strategy. No more samples will come: the events fired within the last
+         * post-peak interval get the samples stored so far, rather than never being completed.
+         */
+        void close() {
+            strategy.removeListener(this);
+            strategy.detach();
+            dataManager.completeCaptures();
+        }
+    }
+
+    private class Worker implements Runnable
+    {
+        final BlockingQueue<Object> queue;
+        final Thread thread;
+        final Map<String, Stream> streams = new HashMap<String, Stream>();
+        final AtomicBoolean pollPending = new AtomicBoolean(false);
+        volatile int streamCount = 0;
+        volatile long sampleCount = 0;
+
+        Worker(int index, int queueCapacity) {
+            queue = new ArrayBlockingQueue<Object>(queueCapacity);
+            thread = new Thread(this, "DetectionEngine-worker-" + index);
+        }
+
+        void requestPoll() {
+            // At most one poll queued at any time; a full queue skips this poll
+            if (pollPending.compareAndSet(false, true) && !queue.offer(POLL)) {
+                pollPending.set(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Object> items = new ArrayList<Object>(maxDrain);
+            try {
+                while (true) {
+                    items.add(queue.take());
+                    queue.drainTo(items, maxDrain - 1);
+                    for (int i = 0; i < items.size(); i++) {
+                        Object item = items.get(i);
+                        if (item == STOP) {
+                            stop();
+                            return;
+                        }
+                        try {
+                            process(item);
+                        }
+                        catch (RuntimeException e) {
+                            logger.log(Level.WARNING, "Failure in " + thread.getName(), e);
+                        }
+                    }
+                    items.clear();
+                }
+            }
+            catch (InterruptedException e) {
+                stop();
+            }
+        }
+
+        private void process(Object item) {
+            if (item instanceof SampleBatch) {
+                SampleBatch batch = (SampleBatch)item;
+                Stream stream = streams.get(batch.streamId);
+                if (stream == null) {
+                    stream = new Stream(batch.streamId);
+                    streams.put(batch.streamId, stream);
+                    streamCount = streams.size();
+                }
+                SensorDataManager dataManager = stream.dataManager;
+                for (int i = 0; i < batch.count; i++) {
+                    dataManager.feed(batch.timestamps[i], batch.x[i], batch.y[i], batch.z[i], 3);
+                }
+                sampleCount += batch.count;
+
+                batch.count = 0;
+                batch.streamId = null;
+                batchPool.offer(batch);
+            }
+            else if (item == POLL) {
+                pollPending.set(false);
+                long now = System.nanoTime();
+                for (Stream stream : streams.values()) {
+                    stream.strategy.poll(now);
+                }
+            }
+            else {
+                ((Runnable)item).run();
+            }
+        }
+
+        void closeStream(String streamId) {
+            Stream stream = streams.remove(streamId);
+            if (stream != null) {
+                stream.close();
+                streamCount = streams.size();
+            }
+        }
+
+        private void stop() {
+            for (Stream stream : streams.values()) {
+                stream.close();
+            }
+            streams.clear();
+            streamCount = 0;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package it.unipi.ing.falldetection.server;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import it.unipi.ing.falldetection.core.FallDetectionEvent;
+import it.unipi.ing.falldetection.core.IFallDetectionStrategy;
+import it.unipi.ing.falldetection.core.IFallDetectionStrategyFactory;
+import it.unipi.ing.falldetection.core.OnSnapshotCompletedListener;
+import it.unipi.ing.falldetection.core.SensorDataManager;
+import it.unipi.ing.falldetection.core.SimpleFallDetectionStrategy;
+
+/**
+ * Feeds a {@link DetectionEngine} with synthetic 50 Hz streams as fast as possible and reports its
+ * throughput, i.e. how many streams it could serve in real time.
+ *
+ * <pre>
+ * java it.unipi.ing.falldetection.server.EngineLoadTest [streams [workers [producers [seconds]]]]
+ * </pre>
+ */
+public class EngineLoadTest
+{
+    private static final int rate = 50;
+    private static final int batchSize = 10;
+
+    public static void main(String[] args) throws Exception {
+        final int streams = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int producers = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        final int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 60;
+
+        IFallDetectionStrategyFactory factory = new IFallDetectionStrategyFactory() {
+            @Override
+            public IFallDetectionStrategy create(SensorDataManager dataManager) {
+                return new SimpleFallDetectionStrategy(dataManager, rate * 30);
+            }
+        };
+        // One minute of history, ten seconds of retention
+        final DetectionEngine engine = new DetectionEngine(workers, 4096, batchSize, rate * 60, rate * 10, 1000,
+                factory);
+        final AtomicLong events = new AtomicLong();
+        engine.addListener(new OnStreamFallDetectedListener() {
+            @Override
+            public void onStreamFallDetected(String streamId, FallDetectionEvent event) {
+                events.incrementAndGet();
+                event.setOnSnapshotCompletedListener(new OnSnapshotCompletedListener() {
+                    @Override
+                    public void onSnapshotCompleted(FallDetectionEvent event) {
+                        event.snapshot.release();
+                    }
+                });
+            }
+        });
+        engine.start();
+
+        final String[] ids = new String[streams];
+        for (int i = 0; i < streams; i++) {
+            ids[i] = "device-" + i;
+        }
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int first = (int)((long)streams * p / producers);
+            final int last = (int)((long)streams * (p + 1) / producers);
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(first);
+                    long period = 1000000000L / rate;
+                    for (long step = 0; step < (long)seconds * rate; step += batchSize) {
+                        for (int s = first; s < last; s++) {
+                            SampleBatch batch = engine.obtainBatch();
+                            for (long i = step; i < step + batchSize; i++) {
+                                // Walking, with a hard bump once a minute
+                                float z = (float)(9.81 + 3 * Math.sin(i * 0.25) + random.nextFloat() - 0.5);
+                                if ((i + s) % (rate * 60) == 0) {
+                                    z = 25;
+                                }
+                                batch.add(i * period, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, z);
+                            }
+                            while (!engine.submit(ids[s], batch)) {
+                                Thread.yield();
+                            }
+                        }
+                    }
+                }
+            }, "producer-" + p);
+        }
+
+        long start = System.nanoTime();
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        engine.shutdown();
+        long elapsed = System.nanoTime() - start;
+
+        long samples = engine.getSampleCount();
+        double perSecond = samples / (elapsed / 1e9);
+        System.out.printf("%d streams, %d workers, %d producers: %d samples in %.2f s, %.0f samples/s,"
+                + " %.0f streams at %d Hz in real time, %d events%n", streams, workers, producers, samples,
+                elapsed / 1e9, perSecond, perSecond / rate, rate, events.get());
+    }
+}
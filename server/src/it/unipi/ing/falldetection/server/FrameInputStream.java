@@ -0,0 +1,88 @@
+package it.unipi.ing.falldetection.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a frame of known length out of a longer stream, so that the reader of the frame cannot
+ * read past its end and the next frame can be found even if the frame is malformed.
+ */
+class FrameInputStream extends FilterInputStream
+{
+    private long remaining;
+    private boolean truncated = false;
+
+    FrameInputStream(InputStream in, long length)
+    {
+        super(in);
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining == 0) {
+            return -1;
+        }
+        int b = in.read();
+        if (b == -1) {
+            truncated = true;
+        }
+        else {
+            remaining--;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining == 0) {
+            return -1;
+        }
+        int n = in.read(b, off, (int)Math.min(len, remaining));
+        if (n == -1) {
+            truncated = true;
+        }
+        else {
+            remaining -= n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int)Math.min(in.available(), remaining);
+    }
+
+    /**
+     * The frame is not closed with the stream it belongs to.
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Skips the unread bytes of the frame.
+     *
+     * @return {@code false} if the stream ended before the end of the frame.
+     */
+    boolean skipRemaining() throws IOException {
+        byte[] discard = new byte[4096];
+        while (remaining > 0 && !truncated) {
+            read(discard, 0, discard.length);
+        }
+        return !truncated;
+    }
+}
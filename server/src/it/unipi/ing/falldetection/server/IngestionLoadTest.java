@@ -0,0 +1,152 @@
+package it.unipi.ing.falldetection.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import it.unipi.ing.falldetection.core.ArffWriter;
+import it.unipi.ing.falldetection.core.BinaryEventFormat;
+import it.unipi.ing.falldetection.core.SensorDataBuffer;
+
+/**
+ * Uploads the same event to an {@link IngestionServer} from several threads, as the
+ * {@link it.unipi.ing.falldetection.core.Uploader} does, and reports the uploads per second and
+ * the mean response time. The event is sent in the {@link BinaryEventFormat}, gzipped by default
+ * ({@code gzip}) or not ({@code binary}), or as ARFF ({@code arff}); {@code batch:n} sends n
+ * gzipped copies of the event in each request, as a batch.
+ *
+ * <pre>
+ * java it.unipi.ing.falldetection.server.IngestionLoadTest url [threads [seconds [samples [format]]]]
+ * </pre>
+ */
+public class IngestionLoadTest
+{
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: IngestionLoadTest url [threads [seconds [samples [gzip|binary|arff|batch:n]]]]");
+            System.exit(2);
+        }
+        final URL url = new URL(args[0]);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int samples = args.length > 3 ? Integer.parseInt(args[3]) : 3000;
+
+        String format = args.length > 4 ? args[4] : "gzip";
+        final int batch = format.startsWith("batch:") ? Integer.parseInt(format.substring(6)) : 0;
+        final boolean gzip = format.equals("gzip");
+        final String contentType = batch > 0 ? BinaryEventFormat.BATCH_CONTENT_TYPE
+                : format.equals("arff") ? "text/x-arff" : BinaryEventFormat.CONTENT_TYPE;
+        final byte[] body = batch > 0 ? batch(samples, batch) : event(samples, format);
+        final AtomicLong succeeded = new AtomicLong();
+        final AtomicLong events = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong responseTime = new AtomicLong();
+        final long end = System.nanoTime() + seconds * 1000000000L;
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] discard = new byte[1024];
+                    while (System.nanoTime() < end) {
+                        long start = System.nanoTime();
+                        try {
+                            HttpURLConnection con = (HttpURLConnection)url.openConnection();
+                            con.setRequestMethod("POST");
+                            con.setRequestProperty("Content-Type", contentType);
+                            if (gzip) {
+                                con.setRequestProperty("Content-Encoding", "gzip");
+                            }
+                            con.setDoOutput(true);
+                            con.setFixedLengthStreamingMode(body.length);
+                            OutputStream out = con.getOutputStream();
+                            out.write(body);
+                            out.close();
+                            int code = con.getResponseCode();
+                            // Consume the response, so that the connection is kept alive
+                            InputStream in = code < 400 ? con.getInputStream() : con.getErrorStream();
+                            int stored = 0;
+                            if (in != null) {
+                                // A batch gets one status line per event: count the stored ones
+                                for (int n; (n = in.read(discard)) != -1;) {
+                                    for (int i = 0; i < n; i++) {
+                                        if (discard[i] == '\n') {
+                                            stored++;
+                                        }
+                                    }
+                                }
+                                in.close();
+                            }
+                            (code == 200 ? succeeded : failed).incrementAndGet();
+                            if (code == 200) {
+                                events.addAndGet(batch > 0 ? stored : 1);
+                            }
+                        }
+                        catch (IOException e) {
+                            failed.incrementAndGet();
+                        }
+                        responseTime.addAndGet(System.nanoTime() - start);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long total = succeeded.get() + failed.get();
+        System.out.printf("%d uploads of %d bytes (%d failed) in %d s: %.0f uploads/s, %.0f events/s,"
+                + " mean response %.2f ms%n", total, body.length, failed.get(), seconds,
+                (double)succeeded.get() / seconds, (double)events.get() / seconds,
+                total > 0 ? responseTime.get() / 1e6 / total : 0.0);
+    }
+
+    private static byte[] batch(int samples, int count) throws IOException {
+        byte[] event = event(samples, "gzip");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            bytes.write(BinaryEventFormat.frameHeader(event.length, BinaryEventFormat.FRAME_GZIP));
+            bytes.write(event);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] event(int samples, String format) throws IOException {
+        Random random = new Random(1);
+        long[] timestamps = new long[samples];
+        float[][] columns = new float[3][samples];
+        for (int i = 0; i < samples; i++) {
+            timestamps[i] = i * 20000000L;
+            columns[0][i] = (float)random.nextGaussian();
+            columns[1][i] = (float)random.nextGaussian();
+            columns[2][i] = 9.81f + (float)random.nextGaussian();
+        }
+        String[] descriptions = new String[] {
+                "time[ns]", "acceleration_x[g]", "acceleration_y[g]", "acceleration_z[g]"
+        };
+        SensorDataBuffer snapshot = new SensorDataBuffer(descriptions, timestamps, columns);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (format.equals("gzip")) {
+            BinaryEventFormat.writeCompressed(bytes, true, "m,30,180,75", "load test", snapshot);
+        }
+        else if (format.equals("binary")) {
+            ByteBuffer buffer = BinaryEventFormat.encode(true, "m,30,180,75", "load test", snapshot);
+            bytes.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        else {
+            Writer writer = new OutputStreamWriter(bytes, "UTF-8");
+            ArffWriter.write(writer, true, "m,30,180,75", "load test", snapshot);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,572 @@
+package it.unipi.ing.falldetection.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import it.unipi.ing.falldetection.core.ArffReader;
+import it.unipi.ing.falldetection.core.BinaryEventFormat;
+import it.unipi.ing.falldetection.core.Recording;
+
+/**
+ * Receives the events POSTed by the {@link it.unipi.ing.falldetection.core.Uploader} and stores
+ * them into a {@link SegmentStore}.
+ * <p>
+ * The body of each upload, either in the {@link BinaryEventFormat} or ARFF (depending on its
+ * content type) and possibly gzipped ({@code Content-Encoding: gzip}), is parsed while it is
+ * received, straight into the columns of the event, so it is never buffered as a whole. Binary
+ * events are accepted only if their checksum matches the decoded columns. The upload is
+ * acknowledged with 200 once the event is on disk; malformed bodies get 400, bodies announcing
+ * more than {@link #maxEventLength} bytes 413, unknown encodings 415 and storage failures 503, so that the device keeps the event and retries later. A batch of
+ * events is stored as a whole and acknowledged event by event; a large batch can be uploaded in
+ * resumable chunks, identified by the {@code Upload-Id}, {@code Upload-Offset} and
+ * {@code Upload-Length} headers; when too many chunked batches are pending, a new one is answered
+ * with 503 and {@code Retry-After}.
+ *
+ * <pre>
+ * java it.unipi.ing.falldetection.server.IngestionServer [options]
+ *   -port 8080         listening port
+ *   -directory data    where the segments are written
+ *   -threads 64        threads handling the uploads
+ *   -delay 10          milliseconds an event may wait for its segment to be written
+ *   -batch 1000000     samples after which a segment is written without waiting
+ *   -fail 0            fraction of the requests to fail (see {@link #setFailureRate})
+ * </pre>
+ */
+public class IngestionServer implements HttpHandler
+{
+    private static final Logger logger = Logger.getLogger(IngestionServer.class.getName());
+
+    /**
+     * The maximum length of a batch uploaded in chunks.
+     */
+    private static final long maxUploadLength = 64 * 1024 * 1024;
+
+    /**
+     * The maximum length of the body of a single event. A body of unknown length is bounded by the
+     * limits of its format instead.
+     */
+    private static final long maxEventLength = 32 * 1024 * 1024;
+
+    /**
+     * The maximum number of bytes read from a rejected body.
+     */
+    private static final long maxDiscardLength = 1024 * 1024;
+
+    /**
+     * The time in milliseconds after which an idle partial upload is dropped.
+     */
+    private static final long partialUploadTimeout = 60 * 60 * 1000;
+
+    /**
+     * The maximum number of batches being uploaded in chunks at the same time, and the maximum sum
+     * of their lengths. A new batch beyond either is answered with 503 until some of the others
+     * complete or expire.
+     */
+    private static final int maxPartialUploads = 16;
+    private static final long maxPartialLength = 256 * 1024 * 1024;
+
+    /**
+     * The seconds after which a device should retry a batch refused for lack of room.
+     */
+    private static final int partialUploadRetryAfter = 60;
+
+    private final SegmentStore store;
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong injected = new AtomicLong();
+    private final Map<String, PartialUpload> partialUploads = new HashMap<String, PartialUpload>();
+    private long partialLength = 0;
+    private final Random random = new Random();
+    private volatile double failureRate = 0;
+
+    public IngestionServer(SegmentStore store)
+    {
+        this.store = store;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = 8080;
+        File directory = new File("data");
+        int threads = 64;
+        long delay = 10;
+        int batch = 1000000;
+        double failureRate = 0;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                usage();
+            }
+            String value = args[i + 1];
+            if (args[i].equals("-port")) {
+                port = Integer.parseInt(value);
+            }
+            else if (args[i].equals("-directory")) {
+                directory = new File(value);
+            }
+            else if (args[i].equals("-threads")) {
+                threads = Integer.parseInt(value);
+            }
+            else if (args[i].equals("-delay")) {
+                delay = Long.parseLong(value);
+            }
+            else if (args[i].equals("-batch")) {
+                batch = Integer.parseInt(value);
+            }
+            else if (args[i].equals("-fail")) {
+                failureRate = Double.parseDouble(value);
+            }
+            else {
+                usage();
+            }
+        }
+
+        final SegmentStore store = new SegmentStore(directory, delay, batch);
+        final IngestionServer ingestion = new IngestionServer(store);
+        ingestion.setFailureRate(failureRate);
+        final HttpServer server = HttpServer.create(new InetSocketAddress(port), 1024);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        server.createContext("/", ingestion);
+        server.setExecutor(executor);
+        server.start();
+        logger.info("Listening on port " + port + ", storing into " + directory);
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop(1);
+                executor.shutdown();
+                try {
+                    store.close();
+                }
+                catch (InterruptedException e) {
+                    // Exiting anyway
+                }
+                logger.info(ingestion.received.get() + " events received, " + ingestion.rejected.get() + " rejected, "
+                        + ingestion.injected.get() + " failures injected");
+            }
+        });
+    }
+
+    private static void usage() {
+        System.err.println("Usage: IngestionServer [-port n] [-directory path] [-threads n] [-delay ms] [-batch samples]"
+                + " [-fail rate]");
+        System.exit(2);
+    }
+
+    /**
+     * Makes a fraction of the requests fail, to test how the devices recover: half of them are
+     * answered with 503 and the others are read halfway, then the connection is closed without an
+     * answer.
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Gets the number of events stored so far.
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * Fails the request with the probability given by the failure rate.
+     *
+     * @return {@code true} if the request has been failed.
+     */
+    private boolean injectFailure(HttpExchange exchange) throws IOException {
+        double r = random.nextDouble();
+        if (r >= failureRate) {
+            return false;
+        }
+        injected.incrementAndGet();
+        if (r < failureRate / 2) {
+            exchange.sendResponseHeaders(503, -1);
+            return true;
+        }
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        long half = length != null ? Long.parseLong(length) / 2 : 0;
+        InputStream body = exchange.getRequestBody();
+        byte[] discard = new byte[4096];
+        for (long n = 0; n < half;) {
+            int read = body.read(discard, 0, (int)Math.min(discard.length, half - n));
+            if (read == -1) {
+                break;
+            }
+            n += read;
+        }
+        // Closing the exchange before the response headers closes the connection
+        return true;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            if (failureRate > 0 && injectFailure(exchange)) {
+                return;
+            }
+
+            String type = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (type != null && type.startsWith(BinaryEventFormat.BATCH_CONTENT_TYPE)) {
+                String id = exchange.getRequestHeaders().getFirst("Upload-Id");
+                if (id != null) {
+                    handleChunk(exchange, id);
+                }
+                else {
+                    handleBatch(exchange, exchange.getRequestBody());
+                }
+                return;
+            }
+
+            String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            boolean gzip = "gzip".equals(encoding);
+            if (encoding != null && !gzip && !encoding.equals("identity")) {
+                exchange.sendResponseHeaders(415, -1);
+                return;
+            }
+
+            long length = contentLength(exchange);
+            if (length != Long.MAX_VALUE && length > maxEventLength) {
+                rejected.incrementAndGet();
+                exchange.sendResponseHeaders(413, -1);
+                return;
+            }
+
+            Recording recording;
+            try {
+                InputStream raw = exchange.getRequestBody();
+                InputStream body = gzip ? new GZIPInputStream(raw, 8192) : raw;
+                if (type != null && type.startsWith(BinaryEventFormat.CONTENT_TYPE)) {
+                    // The checksum of the event verifies that the columns were decoded exactly
+                    recording = BinaryEventFormat.read(body, gzip ? Long.MAX_VALUE : length);
+                    if (body.read() != -1) {
+                        throw new IOException("Trailing data after the event");
+                    }
+                }
+                else {
+                    recording = ArffReader.read(body);
+                }
+                // Reaching the end of the body lets the connection be reused
+                if (raw.read() != -1) {
+                    throw new IOException("Trailing data after the compressed event");
+                }
+            }
+            catch (IOException e) {
+                rejected.incrementAndGet();
+                discard(exchange.getRequestBody());
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            catch (NumberFormatException e) {
+                rejected.incrementAndGet();
+                discard(exchange.getRequestBody());
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+
+            try {
+                store.append(recording);
+            }
+            catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot store an event", e);
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            received.incrementAndGet();
+            exchange.sendResponseHeaders(200, -1);
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads what is left of a rejected body, up to a limit, so that the answer reaches the client
+     * and the connection can be reused; a longer body is left unread, and the connection closed.
+     */
+    private static void discard(InputStream body) {
+        byte[] buffer = new byte[4096];
+        try {
+            for (long n = 0; n < maxDiscardLength;) {
+                int read = body.read(buffer);
+                if (read == -1) {
+                    break;
+                }
+                n += read;
+            }
+        }
+        catch (IOException e) {
+            // The connection is closed anyway
+        }
+    }
+
+    /**
+     * Gets the length of the body of a request, or {@link Long#MAX_VALUE} if not known.
+     */
+    private static long contentLength(HttpExchange exchange) {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            return length != null ? Long.parseLong(length) : Long.MAX_VALUE;
+        }
+        catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Stores the events of a batch (see {@link BinaryEventFormat}) together, and answers with the
+     * status of each one.
+     */
+    private void handleBatch(HttpExchange exchange, InputStream body) throws IOException {
+        List<Recording> recordings = new ArrayList<Recording>();
+        StringBuilder statuses = new StringBuilder();
+        int malformed;
+        try {
+            malformed = parseBatch(body, recordings, statuses);
+        }
+        catch (EOFException e) {
+            // Nothing is stored, since the device could not tell which events were
+            rejected.incrementAndGet();
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+
+        try {
+            store.append(recordings);
+        }
+        catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot store a batch of " + recordings.size() + " events", e);
+            exchange.sendResponseHeaders(503, -1);
+            return;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.sendResponseHeaders(503, -1);
+            return;
+        }
+        received.addAndGet(recordings.size());
+        rejected.addAndGet(malformed);
+
+        byte[] response = statuses.toString().getBytes("US-ASCII");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(200, response.length > 0 ? response.length : -1);
+        if (response.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(response);
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the frames of a batch. A malformed frame is skipped and gets the status 400.
+     *
+     * @return The number of malformed frames.
+     * @throws EOFException
+     *             If the body ends within a frame.
+     */
+    private static int parseBatch(InputStream body, List<Recording> recordings, StringBuilder statuses)
+            throws IOException
+    {
+        DataInputStream data = new DataInputStream(body);
+        byte[] header = new byte[BinaryEventFormat.FRAME_HEADER_SIZE];
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        int malformed = 0;
+        while (true) {
+            int first = body.read();
+            if (first == -1) {
+                return malformed;
+            }
+            header[0] = (byte)first;
+            data.readFully(header, 1, header.length - 1);
+            int length = headerBuffer.getInt(0);
+            int flags = header[4];
+            if (length < 0) {
+                throw new EOFException("Invalid frame length: " + length);
+            }
+
+            FrameInputStream frame = new FrameInputStream(body, length);
+            Recording recording;
+            try {
+                InputStream in = (flags & BinaryEventFormat.FRAME_GZIP) != 0 ? new GZIPInputStream(frame, 8192)
+                        : frame;
+                recording = BinaryEventFormat.read(in, in == frame ? length : Long.MAX_VALUE);
+                if (in.read() != -1) {
+                    throw new IOException("Trailing data after the event");
+                }
+            }
+            catch (IOException e) {
+                recording = null;
+            }
+            if (!frame.skipRemaining()) {
+                throw new EOFException("Truncated frame");
+            }
+            if (recording != null) {
+                recordings.add(recording);
+                statuses.append("200\n");
+            }
+            else {
+                malformed++;
+                statuses.append("400\n");
+            }
+        }
+    }
+
+    /**
+     * Receives a chunk of a batch uploaded in several requests. The chunks are appended to the
+     * partial upload with the same {@code Upload-Id}, and must start where the bytes received so
+     * far end ({@code Upload-Offset}); otherwise the answer is 409 with the offset to resume from.
+     * The bytes of a chunk interrupted by a broken connection are kept, so the device resumes from
+     * the last byte received. Each chunk but the last is answered with 202 and the new offset; the
+     * last one completes the batch, which is then handled as if uploaded at once.
+     * <p>
+     * The memory of the partial uploads is bounded: their number and the sum of their lengths are
+     * capped, and the bytes of each one are allocated as they are received.
+     */
+    private void handleChunk(HttpExchange exchange, String id) throws IOException {
+        long offset;
+        long length;
+        try {
+            offset = Long.parseLong(exchange.getRequestHeaders().getFirst("Upload-Offset"));
+            length = Long.parseLong(exchange.getRequestHeaders().getFirst("Upload-Length"));
+        }
+        catch (NumberFormatException e) {
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+        if (offset < 0 || length <= 0 || length > maxUploadLength) {
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+
+        PartialUpload upload;
+        synchronized (partialUploads) {
+            expirePartialUploads();
+            upload = partialUploads.get(id);
+            if (upload != null && upload.length != length) {
+                removePartialUpload(id, upload);
+                upload = null;
+            }
+            if (upload == null && partialUploads.size() < maxPartialUploads
+                    && partialLength + length <= maxPartialLength)
+            {
+                upload = new PartialUpload((int)length);
+                partialUploads.put(id, upload);
+                partialLength += length;
+            }
+        }
+        if (upload == null) {
+            discard(exchange.getRequestBody());
+            exchange.getResponseHeaders().set("Retry-After", Integer.toString(partialUploadRetryAfter));
+            exchange.sendResponseHeaders(503, -1);
+            return;
+        }
+
+        synchronized (upload) {
+            upload.lastUpdate = System.currentTimeMillis();
+            if (offset != upload.received) {
+                exchange.getResponseHeaders().set("Upload-Offset", Long.toString(upload.received));
+                exchange.sendResponseHeaders(409, -1);
+                return;
+            }
+            InputStream body = exchange.getRequestBody();
+            while (upload.received < length) {
+                if (upload.received == upload.bytes.length) {
+                    upload.bytes = Arrays.copyOf(upload.bytes, (int)Math.min(length, 2L * upload.bytes.length));
+                }
+                int n = body.read(upload.bytes, upload.received, upload.bytes.length - upload.received);
+                if (n == -1) {
+                    break;
+                }
+                upload.received += n;
+            }
+            if (body.read() != -1) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            if (upload.received < length) {
+                exchange.getResponseHeaders().set("Upload-Offset", Long.toString(upload.received));
+                exchange.sendResponseHeaders(202, -1);
+                return;
+            }
+        }
+
+        synchronized (partialUploads) {
+            removePartialUpload(id, upload);
+        }
+        handleBatch(exchange, new ByteArrayInputStream(upload.bytes, 0, upload.received));
+    }
+
+    private void expirePartialUploads() {
+        long now = System.currentTimeMillis();
+        Iterator<PartialUpload> i = partialUploads.values().iterator();
+        while (i.hasNext()) {
+            PartialUpload upload = i.next();
+            if (now - upload.lastUpdate > partialUploadTimeout) {
+                i.remove();
+                partialLength -= upload.length;
+            }
+        }
+    }
+
+    /**
+     * Removes a partial upload, unless it has already been removed (expired or replaced).
+     */
+    private void removePartialUpload(String id, PartialUpload upload) {
+        if (partialUploads.get(id) == upload) {
+            partialUploads.remove(id);
+            partialLength -= upload.length;
+        }
+    }
+
+    /**
+     * A batch being uploaded in chunks.
+     */
+    private static class PartialUpload
+    {
+        private static final int initialCapacity = 64 * 1024;
+
+        final int length;
+        byte[] bytes;
+        int received = 0;
+        long lastUpdate;
+
+        PartialUpload(int length) {
+            this.length = length;
+            this.bytes = new byte[Math.min(length, initialCapacity)];
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package it.unipi.ing.falldetection.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpServer;
+
+import it.unipi.ing.falldetection.core.ArffReader;
+import it.unipi.ing.falldetection.core.BinaryEventFormat;
+
+/**
+ * Feeds events with malformed headers (huge sample, channel and description counts, huge string
+ * lengths) to the {@link BinaryEventFormat} and to a local {@link IngestionServer}, and checks that
+ * each one is rejected without allocating for what the header announces. Then uploads gzipped
+ * ARFF events that expand to a huge line, too many rows or too many channels, and a body
+ * announcing a huge length, which must be rejected too. Meant to be run with a small heap, which a
+ * single allocation of the announced size would exhaust.
+ *
+ * <pre>
+ * java -Xmx64m it.unipi.ing.falldetection.server.MalformedEventTest
+ * </pre>
+ */
+public class MalformedEventTest
+{
+    /**
+     * The maximum number of bytes a rejected event may allocate.
+     */
+    private static final long maxAllocated = 1024 * 1024;
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        byte[][] events = new byte[][] {
+                header(-1, 4, 0, 100000000, 3),
+                header(-1, 4, 0, 1000000, 3),
+                header(-1, 4, 0, Integer.MAX_VALUE, 64),
+                header(-1, 4, 0, 1000, 1000000),
+                header(-1, Integer.MAX_VALUE, 0, 1000, 3),
+                header(Integer.MAX_VALUE, 4, 0, 1000, 3),
+                header(-1, 4, 60000000, 1000, 3),
+                header(-1, 1, 0, 4000000, 0),
+        };
+
+        for (int i = 0; i < events.length; i++) {
+            final byte[] event = events[i];
+            expectRejected("decode #" + i, new Reader() {
+                public void read() throws IOException {
+                    BinaryEventFormat.decode(ByteBuffer.wrap(event));
+                }
+            });
+            expectRejected("stream #" + i, new Reader() {
+                public void read() throws IOException {
+                    BinaryEventFormat.read(new ByteArrayInputStream(event));
+                }
+            });
+            expectRejected("bounded stream #" + i, new Reader() {
+                public void read() throws IOException {
+                    BinaryEventFormat.read(new ByteArrayInputStream(event), event.length);
+                }
+            });
+        }
+
+        File directory = File.createTempFile("malformed", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        SegmentStore store = new SegmentStore(directory, 10, 1000000);
+        IngestionServer ingestion = new IngestionServer(store);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 16);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        server.createContext("/", ingestion);
+        server.setExecutor(executor);
+        server.start();
+        URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/");
+        try {
+            for (int i = 0; i < events.length; i++) {
+                expectStatus("upload #" + i, post(url, BinaryEventFormat.CONTENT_TYPE, null, events[i]), "400");
+                expectStatus("gzipped upload #" + i, post(url, BinaryEventFormat.CONTENT_TYPE, "gzip", gzip(events[i])),
+                        "400");
+                ByteArrayOutputStream batch = new ByteArrayOutputStream();
+                batch.write(BinaryEventFormat.frameHeader(events[i].length, 0));
+                batch.write(events[i]);
+                expectStatus("batch #" + i, post(url, BinaryEventFormat.BATCH_CONTENT_TYPE, null, batch.toByteArray()),
+                        "200 400");
+            }
+
+            StringBuilder attributes = new StringBuilder();
+            for (int i = 0; i <= BinaryEventFormat.MAX_CHANNELS + 1; i++) {
+                attributes.append("@ATTRIBUTE a").append(i).append(" NUMERIC\n");
+            }
+            expectStatus("huge ARFF line", post(url, "text/plain", "gzip", arff("% ", "a", 200 * 1024 * 1024)), "400");
+            expectStatus("too many ARFF rows", post(url, "text/plain", "gzip",
+                    arff(arffHeader + "@DATA\n", "0,1,2,3\n", 2 * ArffReader.MAX_ROWS)), "400");
+            expectStatus("too many ARFF channels", post(url, "text/plain", "gzip",
+                    arff(attributes + "@DATA\n", "0\n", 1)), "400");
+            expectStatus("huge announced length", postLength(url, 1L << 40), "413");
+
+            if (ingestion.getReceivedCount() != 0) {
+                fail("server", ingestion.getReceivedCount() + " malformed events stored");
+            }
+        }
+        finally {
+            server.stop(0);
+            executor.shutdown();
+            store.close();
+            File[] files = directory.listFiles();
+            for (int i = 0; files != null && i < files.length; i++) {
+                files[i].delete();
+            }
+            directory.delete();
+        }
+
+        if (failures > 0) {
+            System.err.println("FAILED: " + failures + " checks");
+            System.exit(1);
+        }
+        System.out.println("All the malformed events were rejected");
+    }
+
+    private interface Reader
+    {
+        void read() throws IOException;
+    }
+
+    /**
+     * Builds the header of a version 2 event, with the given counts and lengths, followed by a few
+     * bytes of data.
+     *
+     * @param stringLength
+     *            The length of the user string (-1 for null).
+     * @param descriptionCount
+     *            The number of descriptions, each an empty string.
+     * @param notesLength
+     *            The length announced for the notes, of which only a few bytes follow.
+     */
+    private static byte[] header(int stringLength, int descriptionCount, int notesLength, int samples,
+            int channels)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(BinaryEventFormat.MAGIC).putShort(BinaryEventFormat.VERSION).put((byte)1)
+                .put((byte)BinaryEventFormat.FLAG_DELTA);
+        buffer.putInt(stringLength);
+        buffer.putInt(notesLength > 0 ? notesLength : -1);
+        if (notesLength > 0) {
+            buffer.put(new byte[16]);
+        }
+        buffer.putInt(descriptionCount);
+        for (int i = 0; i < Math.min(descriptionCount, 4); i++) {
+            buffer.putInt(0);
+        }
+        buffer.putInt(samples).putInt(channels).putInt(0);
+        buffer.putLong(0).putLong(20000000L);
+        byte[] bytes = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void expectRejected(String name, Reader reader) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocation = threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean)threads : null;
+        long threadId = Thread.currentThread().getId();
+        long before = allocation != null ? allocation.getThreadAllocatedBytes(threadId) : 0;
+        try {
+            reader.read();
+            fail(name, "accepted");
+        }
+        catch (IOException e) {
+            // Expected
+        }
+        catch (OutOfMemoryError e) {
+            fail(name, "out of memory");
+        }
+        long allocated = allocation != null ? allocation.getThreadAllocatedBytes(threadId) - before : 0;
+        if (allocated > maxAllocated) {
+            fail(name, allocated + " bytes allocated");
+        }
+    }
+
+    private static void expectStatus(String name, String status, String expected) {
+        if (!status.equals(expected)) {
+            fail(name, "answered " + status + " instead of " + expected);
+        }
+    }
+
+    private static void fail(String name, String message) {
+        System.err.println(name + ": " + message);
+        failures++;
+    }
+
+    /**
+     * POSTs a body and returns the status code, followed by the lines of the response if any.
+     */
+    private static String post(URL url, String type, String encoding, byte[] body) throws IOException {
+        HttpURLConnection con = (HttpURLConnection)url.openConnection();
+        con.setRequestMethod("POST");
+        con.setRequestProperty("Content-Type", type);
+        if (encoding != null) {
+            con.setRequestProperty("Content-Encoding", encoding);
+        }
+        con.setDoOutput(true);
+        con.setFixedLengthStreamingMode(body.length);
+        OutputStream out = con.getOutputStream();
+        out.write(body);
+        out.close();
+        int code = con.getResponseCode();
+        StringBuilder status = new StringBuilder(Integer.toString(code));
+        InputStream in = code < 400 ? con.getInputStream() : con.getErrorStream();
+        if (in != null) {
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            for (int n; (n = in.read(buffer)) != -1;) {
+                response.write(buffer, 0, n);
+            }
+            in.close();
+            String text = response.toString("US-ASCII").trim();
+            if (text.length() > 0) {
+                status.append(' ').append(text.replace('\n', ' '));
+            }
+        }
+        return status.toString();
+    }
+
+    private static final String arffHeader = "@RELATION fall\n@ATTRIBUTE time NUMERIC\n@ATTRIBUTE x NUMERIC\n"
+            + "@ATTRIBUTE y NUMERIC\n@ATTRIBUTE z NUMERIC\n";
+
+    /**
+     * Builds a gzipped ARFF body: the header followed by the given text repeated.
+     */
+    private static byte[] arff(String header, String repeated, int count) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(header.getBytes("US-ASCII"));
+        StringBuilder block = new StringBuilder();
+        int perBlock = Math.max(1, 64 * 1024 / repeated.length());
+        for (int i = 0; i < perBlock; i++) {
+            block.append(repeated);
+        }
+        byte[] bytes = block.toString().getBytes("US-ASCII");
+        for (int i = 0; i < count; i += perBlock) {
+            out.write(bytes, 0, Math.min(perBlock, count - i) * repeated.length());
+        }
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    /**
+     * POSTs the headers of an ARFF event announcing the given length, without the body, and returns
+     * the status code.
+     */
+    private static String postLength(URL url, long length) throws IOException {
+        Socket socket = new Socket(url.getHost(), url.getPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST / HTTP/1.1\r\nHost: " + url.getHost() + "\r\nContent-Type: text/plain\r\n"
+                    + "Content-Length: " + length + "\r\n\r\n").getBytes("US-ASCII"));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            StringBuilder line = new StringBuilder();
+            for (int c; (c = in.read()) != -1 && c != '\n';) {
+                line.append((char)c);
+            }
+            String[] parts = line.toString().trim().split(" ");
+            return parts.length > 1 ? parts[1] : line.toString();
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(bytes);
+        out.close();
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,11 @@
+package it.unipi.ing.falldetection.server;
+
+import it.unipi.ing.falldetection.core.FallDetectionEvent;
+
+public interface OnStreamFallDetectedListener
+{
+    /**
+     * Called by the worker owning the stream when its strategy fires an event.
+     */
+    void onStreamFallDetected(String streamId, FallDetectionEvent event);
+}
@@ -0,0 +1,138 @@
+package it.unipi.ing.falldetection.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpServer;
+
+import it.unipi.ing.falldetection.core.BinaryEventFormat;
+
+/**
+ * Opens many batches uploaded in chunks on a local {@link IngestionServer}, each announcing a large
+ * length but sending a single small chunk, and checks that the server refuses the batches beyond
+ * its caps with 503 instead of keeping them all in memory. Meant to be run with a heap smaller than
+ * the sum of the announced lengths.
+ *
+ * <pre>
+ * java -Xmx64m it.unipi.ing.falldetection.server.PartialUploadTest
+ * </pre>
+ */
+public class PartialUploadTest
+{
+    private static final int chunkSize = 1024;
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        File directory = File.createTempFile("partial", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        SegmentStore store = new SegmentStore(directory, 10, 1000000);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 16);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        server.createContext("/", new IngestionServer(store));
+        server.setExecutor(executor);
+        server.start();
+        URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/");
+        try {
+            // Many small batches: their number is capped
+            int accepted = 0;
+            for (int i = 0; i < 1000; i++) {
+                if (chunk(url, "small-" + i, 0, 2 * chunkSize) == 202) {
+                    accepted++;
+                }
+            }
+            if (accepted == 0 || accepted >= 1000) {
+                fail("small batches", accepted + " of 1000 accepted");
+            }
+            System.out.println(accepted + " of 1000 batches of " + 2 * chunkSize + " bytes accepted");
+
+            // Completing them makes room for others (the zeros are not a valid batch, so the last
+            // chunk is answered with 400)
+            for (int i = 0; i < accepted; i++) {
+                int code = chunk(url, "small-" + i, chunkSize, 2 * chunkSize);
+                if (code != 400) {
+                    fail("small batch #" + i, "completed with " + code);
+                }
+            }
+
+            // Few large batches: the sum of their lengths is capped
+            long large = 64L * 1024 * 1024;
+            accepted = 0;
+            for (int i = 0; i < 8; i++) {
+                int code = chunk(url, "large-" + i, 0, large);
+                if (code == 202) {
+                    accepted++;
+                }
+                else if (code != 503) {
+                    fail("large batch #" + i, "answered " + code);
+                }
+            }
+            if (accepted == 0 || accepted >= 8) {
+                fail("large batches", accepted + " of 8 accepted");
+            }
+            System.out.println(accepted + " of 8 batches of " + large + " bytes accepted");
+
+            // A pending batch can still be resumed
+            if (chunk(url, "large-0", 0, large) != 409) {
+                fail("resume", "the first batch is no longer pending");
+            }
+        }
+        finally {
+            server.stop(0);
+            executor.shutdown();
+            store.close();
+            File[] files = directory.listFiles();
+            for (int i = 0; files != null && i < files.length; i++) {
+                files[i].delete();
+            }
+            directory.delete();
+        }
+
+        if (failures > 0) {
+            System.err.println("FAILED: " + failures + " checks");
+            System.exit(1);
+        }
+        System.out.println("The partial uploads stayed within their caps");
+    }
+
+    /**
+     * Sends a chunk of a batch, starting at the given offset.
+     *
+     * @return The status code.
+     */
+    private static int chunk(URL url, String id, long offset, long length) throws IOException {
+        HttpURLConnection con = (HttpURLConnection)url.openConnection();
+        con.setRequestMethod("POST");
+        con.setRequestProperty("Content-Type", BinaryEventFormat.BATCH_CONTENT_TYPE);
+        con.setRequestProperty("Upload-Id", id);
+        con.setRequestProperty("Upload-Offset", Long.toString(offset));
+        con.setRequestProperty("Upload-Length", Long.toString(length));
+        con.setDoOutput(true);
+        con.setFixedLengthStreamingMode(chunkSize);
+        OutputStream out = con.getOutputStream();
+        out.write(new byte[chunkSize]);
+        out.close();
+        int code = con.getResponseCode();
+        InputStream in = code < 400 ? con.getInputStream() : con.getErrorStream();
+        if (in != null) {
+            while (in.read() != -1) {
+            }
+            in.close();
+        }
+        return code;
+    }
+
+    private static void fail(String name, String message) {
+        System.err.println(name + ": " + message);
+        failures++;
+    }
+}
@@ -0,0 +1,46 @@
+package it.unipi.ing.falldetection.server;
+
+/**
+ * A batch of consecutive three-axis samples of one stream, stored by columns.
+ * <p>
+ * Batches are recycled by the {@link DetectionEngine}: obtain one with
+ * {@link DetectionEngine#obtainBatch}, fill it and {@link DetectionEngine#submit submit} it. After
+ * the submission the batch belongs to the engine and must not be touched anymore.
+ */
+public final class SampleBatch
+{
+    public final long[] timestamps;
+    public final float[] x, y, z;
+    public int count;
+
+    String streamId;
+
+    SampleBatch(int capacity)
+    {
+        timestamps = new long[capacity];
+        x = new float[capacity];
+        y = new float[capacity];
+        z = new float[capacity];
+    }
+
+    public int capacity() {
+        return timestamps.length;
+    }
+
+    /**
+     * Appends a sample.
+     *
+     * @return Whether the sample fits into the batch.
+     */
+    public boolean add(long timestamp, float ax, float ay, float az) {
+        if (count == timestamps.length) {
+            return false;
+        }
+        timestamps[count] = timestamp;
+        x[count] = ax;
+        y[count] = ay;
+        z[count] = az;
+        count++;
+        return true;
+    }
+}
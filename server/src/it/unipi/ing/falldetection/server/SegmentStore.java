@@ -0,0 +1,318 @@
+package it.unipi.ing.falldetection.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import it.unipi.ing.falldetection.core.Recording;
+import it.unipi.ing.falldetection.core.SensorDataBuffer;
+
+/**
+ * Appends the received events to columnar segment files, several events at a time.
+ * <p>
+ * The events appended by concurrent uploads are collected into a batch, which a single flusher
+ * thread writes as soon as it is large enough or old enough (group commit). {@link #append}
+ * returns once the batch holding the event is on disk, so the upload is acknowledged only when the
+ * event is durable, while the disk sees a few large writes instead of many small ones.
+ * <p>
+ * Each segment holds the events of a batch with the same number of channels, and is laid out as
+ * follows (little-endian, strings as an int length in bytes, or -1 for null, followed by UTF-8):
+ *
+ * <pre>
+ * int      magic ('FDSG'), version (1), event count E, channel count C
+ * long     sample count N
+ * E times: byte confirmed, int sample count, string user, string notes,
+ *          int description count D, D strings
+ * long[N]  timestamps of all the events, one after the other
+ * C times: float[N] values of a channel
+ * </pre>
+ *
+ * The segments are written to a temporary file and renamed, so a segment is either complete or
+ * missing.
+ */
+public class SegmentStore
+{
+    public static final int MAGIC = 0x47534446; // "FDSG" in little-endian
+    public static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final long maxDelay;
+    private final int maxSamples;
+
+    private final Object lock = new Object();
+    private Batch current = new Batch();
+    private long nextSegment;
+    private boolean closed = false;
+    private final Thread flusher;
+
+    /**
+     * Constructs a new instance of SegmentStore and starts its flusher.
+     *
+     * @param maxDelay
+     *            The time in milliseconds an event may wait for its batch to be written.
+     * @param maxSamples
+     *            The number of samples after which a batch is written without waiting.
+     */
+    public SegmentStore(File directory, long maxDelay, int maxSamples) throws IOException
+    {
+        this.directory = directory;
+        this.maxDelay = maxDelay;
+        this.maxSamples = maxSamples;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        // Continue the numbering of the existing segments
+        long last = -1;
+        String[] names = directory.list();
+        for (String name : names != null ? names : new String[0]) {
+            if (name.startsWith("segment-") && name.endsWith(".col")) {
+                try {
+                    last = Math.max(last, Long.parseLong(name.substring(8, name.length() - 4)));
+                }
+                catch (NumberFormatException e) {
+                    // Not a segment
+                }
+            }
+        }
+        nextSegment = last + 1;
+
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "SegmentStore-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Appends an event and waits until it is written.
+     *
+     * @throws IOException
+     *             If the batch of the event could not be written, or the store is closed.
+     */
+    public void append(Recording recording) throws IOException, InterruptedException {
+        append(Collections.singletonList(recording));
+    }
+
+    /**
+     * Appends several events to the same batch and waits until they are written, so that they are
+     * either all stored or none.
+     *
+     * @throws IOException
+     *             If the batch of the events could not be written, or the store is closed.
+     */
+    public void append(List<Recording> recordings) throws IOException, InterruptedException {
+        if (recordings.isEmpty()) {
+            return;
+        }
+        Batch batch;
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("The store is closed");
+            }
+            batch = current;
+            boolean first = batch.recordings.isEmpty();
+            for (Recording r : recordings) {
+                batch.add(r);
+            }
+            // The flusher waits for the first events of a batch, then for the batch to be full
+            if (first || batch.samples >= maxSamples) {
+                lock.notifyAll();
+            }
+        }
+        batch.await();
+    }
+
+    /**
+     * Writes the pending events and stops the flusher.
+     */
+    public void close() throws InterruptedException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        flusher.join();
+    }
+
+    private void flushLoop() {
+        while (true) {
+            Batch batch;
+            synchronized (lock) {
+                try {
+                    while (!closed && (current.recordings.isEmpty()
+                            || (current.samples < maxSamples && System.currentTimeMillis() < current.created + maxDelay)))
+                    {
+                        long wait = current.recordings.isEmpty() ? 0
+                                : Math.max(1, current.created + maxDelay - System.currentTimeMillis());
+                        lock.wait(wait);
+                    }
+                }
+                catch (InterruptedException e) {
+                    closed = true;
+                }
+                if (closed && current.recordings.isEmpty()) {
+                    return;
+                }
+                batch = current;
+                current = new Batch();
+            }
+
+            IOException failure = null;
+            try {
+                write(batch);
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+            batch.complete(failure);
+        }
+    }
+
+    private void write(Batch batch) throws IOException {
+        // One segment for each number of channels
+        Map<Integer, List<Recording>> groups = new HashMap<Integer, List<Recording>>();
+        for (Recording r : batch.recordings) {
+            Integer channels = r.samples.getChannelCount();
+            List<Recording> group = groups.get(channels);
+            if (group == null) {
+                group = new ArrayList<Recording>();
+                groups.put(channels, group);
+            }
+            group.add(r);
+        }
+        for (Map.Entry<Integer, List<Recording>> e : groups.entrySet()) {
+            writeSegment(e.getValue(), e.getKey());
+        }
+    }
+
+    private void writeSegment(List<Recording> recordings, int channels) throws IOException {
+        long samples = 0;
+        int headerSize = 4 * 4 + 8;
+        List<byte[]> strings = new ArrayList<byte[]>();
+        for (Recording r : recordings) {
+            samples += r.samples.size();
+            headerSize += 1 + 4 + 4;
+            headerSize += addString(strings, r.user) + addString(strings, r.notes);
+            for (String d : r.samples.descriptions) {
+                headerSize += addString(strings, d);
+            }
+        }
+        long size = headerSize + samples * (8 + 4L * channels);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Segment too large: " + size + " bytes");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(recordings.size()).putInt(channels).putLong(samples);
+        int s = 0;
+        for (Recording r : recordings) {
+            buffer.put((byte)(r.confirmed ? 1 : 0));
+            buffer.putInt(r.samples.size());
+            putString(buffer, strings.get(s++));
+            putString(buffer, strings.get(s++));
+            buffer.putInt(r.samples.descriptions.length);
+            for (int i = 0; i < r.samples.descriptions.length; i++) {
+                putString(buffer, strings.get(s++));
+            }
+        }
+        for (Recording r : recordings) {
+            SensorDataBuffer data = r.samples;
+            long[] timestamps = new long[data.size()];
+            data.getTimestamps(0, timestamps, 0, timestamps.length);
+            buffer.asLongBuffer().put(timestamps);
+            buffer.position(buffer.position() + 8 * timestamps.length);
+        }
+        for (int c = 0; c < channels; c++) {
+            for (Recording r : recordings) {
+                SensorDataBuffer data = r.samples;
+                float[] values = new float[data.size()];
+                data.getValues(c, 0, values, 0, values.length);
+                buffer.asFloatBuffer().put(values);
+                buffer.position(buffer.position() + 4 * values.length);
+            }
+        }
+        buffer.flip();
+
+        String name = String.format("segment-%016d.col", nextSegment++);
+        File temporary = new File(directory, name + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temporary);
+        try {
+            FileChannel channel = fos.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        finally {
+            fos.close();
+        }
+        if (!temporary.renameTo(new File(directory, name))) {
+            throw new IOException("Cannot rename " + temporary);
+        }
+    }
+
+    private static int addString(List<byte[]> strings, String value) {
+        byte[] bytes = value != null ? value.getBytes(UTF8) : null;
+        strings.add(bytes);
+        return 4 + (bytes != null ? bytes.length : 0);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        }
+        else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    /**
+     * The events written together, and the outcome the uploads wait for.
+     */
+    private static class Batch
+    {
+        final List<Recording> recordings = new ArrayList<Recording>();
+        long created;
+        long samples = 0;
+        private boolean done = false;
+        private IOException failure;
+
+        void add(Recording recording) {
+            if (recordings.isEmpty()) {
+                created = System.currentTimeMillis();
+            }
+            recordings.add(recording);
+            samples += recording.samples.size();
+        }
+
+        synchronized void complete(IOException failure) {
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized void await() throws IOException, InterruptedException {
+            while (!done) {
+                wait();
+            }
+            if (failure != null) {
+                throw new IOException("Cannot write the segment", failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package it.unipi.ing.falldetection.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import it.unipi.ing.falldetection.core.BinaryEventFormat;
+import it.unipi.ing.falldetection.core.EventJournal;
+import it.unipi.ing.falldetection.core.JournalUploader;
+import it.unipi.ing.falldetection.core.SensorDataBuffer;
+import it.unipi.ing.falldetection.core.UploadScheduler;
+
+/**
+ * Uploads a journal of events to a local {@link IngestionServer} that fails a fraction of the
+ * requests, as the {@link it.unipi.ing.falldetection.core.Uploader} does, and checks that every
+ * event is stored exactly once. The events are uploaded in batches and chunks much smaller than
+ * the ones of the devices, so that most batches are resumed at least once. Then checks that the
+ * uploads are given up, keeping the events, against a server that does not speak the protocol.
+ *
+ * <pre>
+ * java it.unipi.ing.falldetection.server.UploadFailureTest [events [failure-rate [samples]]]
+ * </pre>
+ */
+public class UploadFailureTest
+{
+    private static final long maxBatchSize = 512 * 1024;
+    private static final int chunkSize = 64 * 1024;
+    private static final long timeout = 5 * 60 * 1000;
+
+    public static void main(String[] args) throws Exception {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        double failureRate = args.length > 1 ? Double.parseDouble(args[1]) : 0.3;
+        int samples = args.length > 2 ? Integer.parseInt(args[2]) : 3000;
+
+        File directory = temporaryDirectory();
+        SegmentStore store = new SegmentStore(new File(directory, "store"), 10, 1000000);
+        IngestionServer ingestion = new IngestionServer(store);
+        ingestion.setFailureRate(failureRate);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 64);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        server.createContext("/", ingestion);
+        server.setExecutor(executor);
+        server.start();
+        String url = "http://localhost:" + server.getAddress().getPort() + "/";
+
+        EventJournal journal = new EventJournal(new File(directory, "journal"), 1024 * 1024);
+        Random random = new Random(1);
+        for (int i = 0; i < events; i++) {
+            journal.append(event(random, samples, i));
+        }
+
+        JournalUploader uploader = new JournalUploader(journal, url, "UploadFailureTest", maxBatchSize, chunkSize);
+        final int[] failures = new int[1];
+        UploadScheduler scheduler = new UploadScheduler(uploader, 0, 10, 200) {
+            @Override
+            protected void onUploadFailed(IOException e, long retryDelay) {
+                failures[0]++;
+            }
+        };
+        long start = System.currentTimeMillis();
+        scheduler.start();
+        while (!journal.isDrained() && System.currentTimeMillis() - start < timeout) {
+            Thread.sleep(50);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        scheduler.stop();
+        journal.close();
+        server.stop(0);
+        executor.shutdown();
+        store.close();
+        boolean givenUp = uploadToNonProtocolServer(new File(directory, "other"), samples);
+        delete(directory);
+
+        long received = ingestion.getReceivedCount();
+        System.out.printf("%d events uploaded in %d ms with %d failed attempts: %d stored, %d rejected%n", events,
+                elapsed, failures[0], received, uploader.getRejectedCount());
+        if (received != events || uploader.getRejectedCount() != 0) {
+            System.err.println("FAILED: expected " + events + " events stored");
+            System.exit(1);
+        }
+        if (!givenUp) {
+            System.err.println("FAILED: the uploads to a server outside the protocol were not given up");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Uploads a few events to a server that answers every request with 200 and a page, as a
+     * generic POST endpoint does.
+     *
+     * @return {@code true} if the scheduler gave up after a single attempt, keeping the events.
+     */
+    private static boolean uploadToNonProtocolServer(File directory, int samples) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 16);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] page = "<html><body>Thank you</body></html>\n".getBytes("US-ASCII");
+                exchange.sendResponseHeaders(200, page.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(page);
+                out.close();
+            }
+        });
+        server.start();
+        String url = "http://localhost:" + server.getAddress().getPort() + "/";
+
+        EventJournal journal = new EventJournal(directory, 1024 * 1024);
+        Random random = new Random(2);
+        for (int i = 0; i < 3; i++) {
+            journal.append(event(random, samples, i));
+        }
+        JournalUploader uploader = new JournalUploader(journal, url, "UploadFailureTest", maxBatchSize, chunkSize);
+        final int[] attempts = new int[1];
+        final long[] lastDelay = new long[1];
+        UploadScheduler scheduler = new UploadScheduler(uploader, 0, 10, 200) {
+            @Override
+            protected void onUploadFailed(IOException e, long retryDelay) {
+                attempts[0]++;
+                lastDelay[0] = retryDelay;
+            }
+        };
+        scheduler.start();
+        // Several backoff periods, in which a retried upload would have failed again
+        Thread.sleep(1000);
+        scheduler.wake();
+        Thread.sleep(200);
+        scheduler.stop();
+        boolean kept = !journal.isDrained();
+        journal.close();
+        server.stop(0);
+        return attempts[0] == 1 && lastDelay[0] == -1 && kept;
+    }
+
+    private static byte[] event(Random random, int samples, int index) throws IOException {
+        long[] timestamps = new long[samples];
+        float[][] columns = new float[3][samples];
+        for (int i = 0; i < samples; i++) {
+            timestamps[i] = i * 20000000L;
+            columns[0][i] = (float)random.nextGaussian();
+            columns[1][i] = (float)random.nextGaussian();
+            columns[2][i] = 9.81f + (float)random.nextGaussian();
+        }
+        String[] descriptions = new String[] {
+                "time[ns]", "acceleration_x[g]", "acceleration_y[g]", "acceleration_z[g]"
+        };
+        SensorDataBuffer snapshot = new SensorDataBuffer(descriptions, timestamps, columns);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryEventFormat.writeCompressed(bytes, index % 2 == 0, "m,30,180,75", "event " + index, snapshot);
+        return bytes.toByteArray();
+    }
+
+    private static File temporaryDirectory() throws IOException {
+        File directory = File.createTempFile("upload", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        return directory;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
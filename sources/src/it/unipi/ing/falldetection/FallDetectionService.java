@@ -1,5 +1,7 @@
 package it.unipi.ing.falldetection;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Vector;
 
 import it.unipi.ing.falldetection.ContactListPreference.Contact;
@@ -38,6 +40,10 @@ public class FallDetectionService extends Service
     private static final int SENSOR_RATE = 50; // Hz
     private static final int PRE_PEAK_INTERVAL = 30; // seconds
     private static final int POST_PEAK_INTERVAL = 30; // seconds
+    private static final int SNAPSHOT_RETENTION = 60; // seconds
+    private static final int CLOCK_POLL_INTERVAL = 1000; // milliseconds
+    private static final String MODEL_DIRECTORY = "model";
+    private static final String MODEL_FILE = "fall_detection.model";
     private static final int ACTIVATION_NOTIFICATION_ID = R.string.fall_detection_service;
     private static final String FALLDETECTION_SMS_SENT = "FALLDETECTION_SMS_SENT";
 
@@ -46,6 +52,7 @@ public class FallDetectionService extends Service
 
     private SensorManager sensorManager;
     private SensorDataManager dataManager;
+    private FallDetectionModel model;
     private IFallDetectionStrategy fallDetectionStrategy;
     private SensorListener sensorListener;
     private FallListener fallListener;
@@ -74,17 +81,28 @@ public class FallDetectionService extends Service
 
         sensorManager = (SensorManager)getSystemService(SENSOR_SERVICE);
         String[] descriptions = new String[] {
-                "time[s]",
-                "acceleration_x[g]", "acceleration_y[g]", "acceleration_z[g]",
-                "acceleration_magnitude[g]"
+                "time[ns]",
+                "acceleration_x[g]", "acceleration_y[g]", "acceleration_z[g]"
         };
-        dataManager = new SensorDataManager(SENSOR_RATE * (PRE_PEAK_INTERVAL + POST_PEAK_INTERVAL), 4,
-                descriptions);
+        // Keep room for one more minute of samples, so that a snapshot is usually confirmed or
+        // denied before the ring has to be overwritten (and the snapshot copied out of it)
+        dataManager = new SensorDataManager(SENSOR_RATE * (PRE_PEAK_INTERVAL + POST_PEAK_INTERVAL),
+                SENSOR_RATE * SNAPSHOT_RETENTION, 3, descriptions);
         sensorListener = new SensorListener(dataManager);
         fallListener = new FallListener();
-        fallDetectionStrategy = new SimpleFallDetectionStrategy(dataManager);
 
         uploader = new Uploader(this);
+
+        // The model lives outside the files directory, which holds the events to upload
+        File modelFile = new File(getDir(MODEL_DIRECTORY, MODE_PRIVATE), MODEL_FILE);
+        if (modelFile.exists()) {
+            try {
+                model = FallDetectionModel.load(modelFile);
+            }
+            catch (IOException e) {
+                Log.w(getClass().getName(), "Cannot load the model, falling back to the threshold.", e);
+            }
+        }
     }
 
     @Override
@@ -95,6 +113,7 @@ public class FallDetectionService extends Service
         serviceLooper.quit();
 
         fallDetectionStrategy = null;
+        model = null;
         fallListener = null;
         sensorListener = null;
         dataManager = null;
@@ -186,8 +205,15 @@ public class FallDetectionService extends Service
             fireFallDetectionStopped(true, errorMessage);
             return;
         }
-        fallDetectionStrategy = new SimpleFallDetectionStrategy(dataManager);
+        if (model != null) {
+            fallDetectionStrategy = new ClassifierFallDetectionStrategy(dataManager,
+                    SENSOR_RATE * POST_PEAK_INTERVAL, model);
+        }
+        else {
+            fallDetectionStrategy = new SimpleFallDetectionStrategy(dataManager, SENSOR_RATE * POST_PEAK_INTERVAL);
+        }
         fallDetectionStrategy.addListener(fallListener);
+        serviceHandler.postDelayed(clockPoller, CLOCK_POLL_INTERVAL);
         active = true;
 
         Intent intent = new Intent(this, MainActivity.class);
@@ -222,7 +248,12 @@ public class FallDetectionService extends Service
         }
 
         fallDetectionStrategy.removeListener(fallListener);
+        fallDetectionStrategy.detach();
+        serviceHandler.removeCallbacks(clockPoller);
         sensorManager.unregisterListener(sensorListener);
+        // No more samples will come: the events fired within the last post-peak interval get the
+        // samples stored so far, rather than never being completed (and uploaded)
+        dataManager.completeCaptures();
         active = false;
 
         // Stop the service
@@ -255,7 +286,11 @@ public class FallDetectionService extends Service
             lastEvent.validate(confirmed, info);
             fireFallConfirmed(fallDetectionStrategy, lastEvent);
 
-            uploader.enqueue(lastEvent);
+            // The snapshot is completed at the end of the post-peak interval
+            lastEvent.setOnSnapshotCompletedListener(snapshotUploader);
+        }
+        else {
+            lastEvent.setOnSnapshotCompletedListener(snapshotReleaser);
         }
         lastEvent = null;
     }
@@ -338,10 +373,8 @@ public class FallDetectionService extends Service
         public void onSensorChanged(SensorEvent event) {
             // Track only accelerometer events
             if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-                float[] values = new float[event.values.length];
-                System.arraycopy(event.values, 0, values, 0, values.length);
-                SensorData sd = new SensorData(event.sensor, values, event.accuracy, event.timestamp);
-                dataManager.feed(sd);
+                float[] values = event.values;
+                dataManager.feed(event.timestamp, values[0], values[1], values[2], event.accuracy);
             }
         }
     };
@@ -350,6 +383,10 @@ public class FallDetectionService extends Service
     {
         @Override
         public void onFallDetected(IFallDetectionStrategy sender, FallDetectionEvent event) {
+            if (lastEvent != null) {
+                // The previous event cannot be confirmed anymore
+                lastEvent.setOnSnapshotCompletedListener(snapshotReleaser);
+            }
             lastEvent = event;
 
             StatisticsHelper.stepFallDetectedCount(FallDetectionService.this);
@@ -369,6 +406,32 @@ public class FallDetectionService extends Service
         }
     };
 
+    /**
+     * Lets the strategy fire its events even if the sensor stops delivering samples. It runs on the
+     * service handler, like the sensor listener, so the strategy needs no synchronization.
+     */
+    private final Runnable clockPoller = new Runnable() {
+        @Override
+        public void run() {
+            fallDetectionStrategy.poll(System.nanoTime());
+            serviceHandler.postDelayed(this, CLOCK_POLL_INTERVAL);
+        }
+    };
+
+    private final OnSnapshotCompletedListener snapshotUploader = new OnSnapshotCompletedListener() {
+        @Override
+        public void onSnapshotCompleted(FallDetectionEvent event) {
+            uploader.enqueue(event);
+        }
+    };
+
+    private final OnSnapshotCompletedListener snapshotReleaser = new OnSnapshotCompletedListener() {
+        @Override
+        public void onSnapshotCompleted(FallDetectionEvent event) {
+            event.snapshot.release();
+        }
+    };
+
     public void addListener(IFallDetectionServiceListener listener) {
         synchronized (listeners) {
             listeners.addElement(listener);
@@ -0,0 +1,132 @@
+package it.unipi.ing.falldetection.core;
+
+import java.util.Vector;
+
+/**
+ * Base class for the strategies fed by a {@link SensorDataManager}.
+ * <p>
+ * It keeps the listeners and joins the events with the snapshots of their capture windows: the
+ * strategy starts a capture window at the peak and fires the event whenever it decides, while the
+ * snapshot is attached to the event once the post-peak samples have been stored.
+ */
+public abstract class AbstractFallDetectionStrategy implements IFallDetectionStrategy, ISensorDataListener
+{
+    protected static final double g = 9.80665;
+
+    protected final SensorDataManager dataManager;
+    protected final int postPeakSamples;
+
+    protected Vector<OnFallDetectedListener> listeners = new Vector<OnFallDetectedListener>();
+
+    /**
+     * The capture window started for the pending event, if any.
+     */
+    protected PendingCapture capture;
+
+    /**
+     * Constructs a new instance attached to the given data manager.
+     *
+     * @param postPeakSamples
+     *            The number of samples following the peak to be included into the snapshot of an
+     *            event. The snapshot is completed after the event is fired (see
+     *            {@link FallDetectionEvent#setOnSnapshotCompletedListener}).
+     */
+    protected AbstractFallDetectionStrategy(SensorDataManager dataManager, int postPeakSamples)
+    {
+        this.dataManager = dataManager;
+        this.postPeakSamples = postPeakSamples;
+        dataManager.addListener(this);
+    }
+
+    @Override
+    public void addListener(OnFallDetectedListener listener) {
+        listeners.addElement(listener);
+    }
+
+    @Override
+    public void removeListener(OnFallDetectedListener listener) {
+        listeners.removeElement(listener);
+    }
+
+    protected FallDetectionEvent fireFallEvent(long timestamp, float reliability, SensorDataBuffer snapshot) {
+        FallDetectionEvent event = new FallDetectionEvent(timestamp, reliability, snapshot);
+        for (OnFallDetectedListener e : listeners) {
+            e.onFallDetected(this, event);
+        }
+        return event;
+    }
+
+    /**
+     * Starts the capture window for the next event, anchored to the given peak.
+     */
+    protected void startCapture(long peakTimestamp) {
+        capture = new PendingCapture();
+        dataManager.beginCapture(peakTimestamp, postPeakSamples, capture);
+    }
+
+    /**
+     * Drops the capture window started for an event that will not be fired.
+     */
+    protected void cancelCapture() {
+        if (capture != null) {
+            dataManager.cancelCapture(capture);
+            capture = null;
+        }
+    }
+
+    /**
+     * Fires an event whose snapshot is the one of the capture window previously started.
+     */
+    protected FallDetectionEvent fireCapturedEvent(float reliability) {
+        PendingCapture pending = capture;
+        capture = null;
+        FallDetectionEvent event = fireFallEvent(System.currentTimeMillis(), reliability, null);
+        pending.attach(event);
+        return event;
+    }
+
+    @Override
+    public void detach() {
+        dataManager.removeListener(this);
+        cancelCapture();
+    }
+
+    @Override
+    public void onDataAvailable(SensorDataManager sender, SensorData data) {
+        float[] values = data.values;
+        onDataAvailable(sender, data.timestamp, values[0], values[1], values[2], data.accuracy);
+    }
+
+    /**
+     * Joins a capture window, which may complete either before or after the event is fired, with
+     * the event itself.
+     */
+    protected static class PendingCapture implements OnCaptureCompletedListener
+    {
+        private SensorDataBuffer snapshot;
+        private FallDetectionEvent event;
+
+        @Override
+        public void onCaptureCompleted(SensorDataManager sender, SensorDataBuffer snapshot) {
+            FallDetectionEvent target;
+            synchronized (this) {
+                this.snapshot = snapshot;
+                target = event;
+            }
+            if (target != null) {
+                target.completeSnapshot(snapshot);
+            }
+        }
+
+        public void attach(FallDetectionEvent event) {
+            SensorDataBuffer completed;
+            synchronized (this) {
+                this.event = event;
+                completed = snapshot;
+            }
+            if (completed != null) {
+                event.completeSnapshot(completed);
+            }
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package it.unipi.ing.falldetection.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the ARFF files written by the {@link ArffWriter}: the header comments (class, user and
+ * notes), the attributes and the numeric rows, whose first value is the timestamp.
+ * <p>
+ * The input is read from a channel into a byte buffer, and the rows are parsed in place: no string
+ * is created for the values, which are converted to floats exactly (as {@link Float#parseFloat}
+ * does) by scaling their digits with a power of ten in double precision. The rare values that this
+ * cannot round exactly, such as those with more than 18 digits, fall back to
+ * {@link Float#parseFloat}.
+ * <p>
+ * Since recordings are also received from the network, their size is bounded: the lines are at
+ * most {@link #MAX_LINE_LENGTH} bytes long, and a recording has at most
+ * {@link BinaryEventFormat#MAX_CHANNELS} channels and {@link #MAX_ROWS} rows.
+ */
+public class ArffReader
+{
+    private static final String CLASS_COMMENT = "% Class: ";
+    private static final String USER_COMMENT = "% User (sex,age,height[cm],weight[kg]): ";
+    private static final String NOTES_COMMENT = "% Notes: ";
+
+    /**
+     * The maximum length in bytes of a line, rows included.
+     */
+    public static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    /**
+     * The maximum number of rows of a recording.
+     */
+    public static final int MAX_ROWS = 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * The powers of ten exactly representable as doubles.
+     */
+    private static final double[] powersOfTen = new double[23];
+
+    static {
+        powersOfTen[0] = 1;
+        for (int i = 1; i < powersOfTen.length; i++) {
+            powersOfTen[i] = powersOfTen[i - 1] * 10;
+        }
+    }
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] bytes;
+    private int position = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    /**
+     * Constructs a new instance of ArffReader reading from the given channel.
+     *
+     * @param bufferSize
+     *            The size of the buffer, which bounds the length of a row.
+     */
+    ArffReader(ReadableByteChannel channel, int bufferSize)
+    {
+        this.channel = channel;
+        this.bytes = new byte[bufferSize];
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    public static Recording read(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return read(fis.getChannel());
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Invalid value in " + file + ": " + e.getMessage());
+        }
+        finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Reads a recording. The stream is not closed.
+     *
+     * @see #read(ReadableByteChannel)
+     */
+    public static Recording read(InputStream in) throws IOException {
+        return read(Channels.newChannel(in));
+    }
+
+    /**
+     * Reads a recording. The channel is not closed.
+     *
+     * @throws IOException
+     *             If the recording cannot be read, has no data section or exceeds the limits.
+     * @throws NumberFormatException
+     *             If a value of the data section is not a number.
+     */
+    public static Recording read(ReadableByteChannel in) throws IOException {
+        ArffReader reader = new ArffReader(in, 64 * 1024);
+        boolean confirmed = false;
+        String user = null;
+        String notes = null;
+        List<String> descriptions = new ArrayList<String>();
+
+        String line;
+        while (true) {
+            line = reader.readLine();
+            if (line == null) {
+                throw new IOException("Missing @DATA section");
+            }
+            line = line.trim();
+            if (line.startsWith(CLASS_COMMENT)) {
+                confirmed = line.substring(CLASS_COMMENT.length()).trim().equals("Fall");
+            }
+            else if (line.startsWith(USER_COMMENT)) {
+                user = line.substring(USER_COMMENT.length()).trim();
+            }
+            else if (line.startsWith(NOTES_COMMENT)) {
+                notes = line.substring(NOTES_COMMENT.length());
+            }
+            else if (line.regionMatches(true, 0, "@ATTRIBUTE", 0, 10)) {
+                // "@ATTRIBUTE name NUMERIC"
+                String attribute = line.substring(10).trim();
+                int space = attribute.indexOf(' ');
+                descriptions.add(space < 0 ? attribute : attribute.substring(0, space));
+                if (descriptions.size() > BinaryEventFormat.MAX_CHANNELS + 1) {
+                    throw new IOException("More than " + BinaryEventFormat.MAX_CHANNELS + " channels");
+                }
+            }
+            else if (line.regionMatches(true, 0, "@DATA", 0, 5)) {
+                break;
+            }
+        }
+
+        SensorDataBuffer samples = reader.readRows(descriptions.toArray(new String[descriptions.size()]), MAX_ROWS);
+        return new Recording(confirmed, user, notes, samples);
+    }
+
+    /**
+     * Gets the next byte without consuming it, or -1 at the end of the input.
+     */
+    int peek() throws IOException {
+        while (position == limit && !eof) {
+            fill();
+        }
+        return position < limit ? bytes[position] : -1;
+    }
+
+    /**
+     * Reads a line, decoded as UTF-8, without the line terminator.
+     *
+     * @return The line, or {@code null} at the end of the input.
+     * @throws IOException
+     *             If the line is longer than {@link #MAX_LINE_LENGTH}.
+     */
+    String readLine() throws IOException {
+        ByteArrayOutputStream spill = null;
+        int scanned = position;
+        while (true) {
+            for (int i = scanned; i < limit; i++) {
+                if (bytes[i] == '\n') {
+                    String line = decode(spill, position, i);
+                    position = i + 1;
+                    return line;
+                }
+            }
+            if (eof) {
+                if (position == limit && spill == null) {
+                    return null;
+                }
+                String line = decode(spill, position, limit);
+                position = limit;
+                return line;
+            }
+            if (position == 0 && limit == bytes.length) {
+                // Longer than the buffer
+                if (spill == null) {
+                    spill = new ByteArrayOutputStream();
+                }
+                if (spill.size() + limit > MAX_LINE_LENGTH) {
+                    throw new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+                }
+                spill.write(bytes, 0, limit);
+                position = limit;
+            }
+            scanned = limit - position;
+            fill();
+        }
+    }
+
+    /**
+     * Reads the rows of comma-separated values up to the end of the input: the timestamp followed
+     * by one value for each channel. Empty lines and comments are skipped.
+     *
+     * @param descriptions
+     *            The names of the columns, which also give their number.
+     * @param maxRows
+     *            The maximum number of rows.
+     * @throws IOException
+     *             If a row is longer than the buffer or there are more than {@code maxRows} rows.
+     * @throws NumberFormatException
+     *             If a value is not a number.
+     */
+    SensorDataBuffer readRows(String[] descriptions, int maxRows) throws IOException {
+        int channels = Math.max(0, descriptions.length - 1);
+        int size = 0;
+        long[] timestamps = new long[4096];
+        float[][] columns = new float[channels][4096];
+        int scanned = position;
+        while (true) {
+            // Find the end of the row, refilling the buffer if needed
+            int end = -1;
+            for (int i = scanned; i < limit; i++) {
+                if (bytes[i] == '\n') {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0) {
+                if (eof) {
+                    if (position == limit) {
+                        break;
+                    }
+                    end = limit;
+                }
+                else {
+                    if (position == 0 && limit == bytes.length) {
+                        throw new IOException("Row " + size + " longer than " + bytes.length + " bytes");
+                    }
+                    scanned = limit - position;
+                    fill();
+                    continue;
+                }
+            }
+
+            int start = skipSpaces(position, end);
+            if (start < end && bytes[start] != '%') {
+                if (size == maxRows) {
+                    throw new IOException("More than " + maxRows + " rows");
+                }
+                if (size == timestamps.length) {
+                    timestamps = grow(timestamps);
+                    for (int c = 0; c < channels; c++) {
+                        columns[c] = grow(columns[c]);
+                    }
+                }
+                int comma = indexOf(',', start, end);
+                timestamps[size] = parseTimestamp(start, comma);
+                for (int c = 0; c < channels; c++) {
+                    if (comma == end) {
+                        throw new IOException("Missing values at row " + size);
+                    }
+                    start = comma + 1;
+                    comma = indexOf(',', start, end);
+                    columns[c][size] = parseFloat(start, comma);
+                }
+                size++;
+            }
+            position = Math.min(end + 1, limit);
+            scanned = position;
+        }
+
+        long[] t = new long[size];
+        System.arraycopy(timestamps, 0, t, 0, size);
+        float[][] v = new float[channels][size];
+        for (int c = 0; c < channels; c++) {
+            System.arraycopy(columns[c], 0, v[c], 0, size);
+        }
+        return new SensorDataBuffer(descriptions, t, v);
+    }
+
+    /**
+     * Moves the unread bytes to the start of the buffer and reads more after them.
+     */
+    private void fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(bytes, position, bytes, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        buffer.limit(bytes.length).position(limit);
+        int n;
+        do {
+            n = channel.read(buffer);
+        } while (n == 0 && buffer.hasRemaining());
+        if (n < 0) {
+            eof = true;
+        }
+        limit = buffer.position();
+    }
+
+    private String decode(ByteArrayOutputStream spill, int start, int end) throws IOException {
+        if (spill != null) {
+            if (spill.size() + end - start > MAX_LINE_LENGTH) {
+                throw new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+            }
+            spill.write(bytes, start, end - start);
+            byte[] line = spill.toByteArray();
+            int length = line.length;
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            return new String(line, 0, length, UTF8);
+        }
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+        return new String(bytes, start, end - start, UTF8);
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private int skipSpaces(int start, int end) {
+        while (start < end && isSpace(bytes[start])) {
+            start++;
+        }
+        return start;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private long parseTimestamp(int start, int end) {
+        start = skipSpaces(start, end);
+        while (end > start && isSpace(bytes[end - 1])) {
+            end--;
+        }
+        int i = start;
+        boolean negative = i < end && bytes[i] == '-';
+        if (negative || (i < end && bytes[i] == '+')) {
+            i++;
+        }
+        long value = 0;
+        int digits = 0;
+        for (; i < end; i++) {
+            int d = bytes[i] - '0';
+            if (d < 0 || d > 9 || digits == 18) {
+                break;
+            }
+            value = value * 10 + d;
+            digits++;
+        }
+        if (i == end && digits > 0) {
+            return negative ? -value : value;
+        }
+        // Older files stored the timestamps as floating point numbers
+        String text = new String(bytes, start, end - start, ASCII);
+        try {
+            return Long.parseLong(text);
+        }
+        catch (NumberFormatException e) {
+            return (long)Double.parseDouble(text);
+        }
+    }
+
+    /**
+     * Parses a float as {@link Float#parseFloat} does: the decimal digits (up to 18 significant
+     * ones) are scaled by an exact power of ten in double precision, which rounds once; rounding
+     * the double to a float again gives the float nearest to the decimal unless the double is a
+     * midpoint between two floats, which is left to {@link Float#parseFloat}.
+     */
+    private float parseFloat(int start, int end) {
+        start = skipSpaces(start, end);
+        while (end > start && isSpace(bytes[end - 1])) {
+            end--;
+        }
+        int i = start;
+        boolean negative = i < end && bytes[i] == '-';
+        if (negative || (i < end && bytes[i] == '+')) {
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int significant = 0;
+        int scale = 0;
+        boolean point = false;
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                digits++;
+                if (mantissa != 0 || b != '0') {
+                    significant++;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (point) {
+                    scale--;
+                }
+            }
+            else if (b == '.' && !point) {
+                point = true;
+            }
+            else {
+                break;
+            }
+        }
+
+        int exponent = 0;
+        if (i < end && digits > 0 && (bytes[i] == 'E' || bytes[i] == 'e')) {
+            i++;
+            boolean negativeExponent = i < end && bytes[i] == '-';
+            if (negativeExponent || (i < end && bytes[i] == '+')) {
+                i++;
+            }
+            int exponentDigits = 0;
+            for (; i < end && bytes[i] >= '0' && bytes[i] <= '9' && exponentDigits < 4; i++) {
+                exponent = exponent * 10 + (bytes[i] - '0');
+                exponentDigits++;
+            }
+            if (exponentDigits == 0) {
+                i = -1;
+            }
+            if (negativeExponent) {
+                exponent = -exponent;
+            }
+        }
+
+        if (i == end && digits > 0 && significant <= 18) {
+            if (mantissa == 0) {
+                return negative ? -0f : 0f;
+            }
+            int e10 = exponent + scale;
+            if (mantissa < (1L << 53) && e10 >= -22 && e10 <= 22) {
+                double d = e10 >= 0 ? mantissa * powersOfTen[e10] : mantissa / powersOfTen[-e10];
+                long bits = Double.doubleToRawLongBits(d);
+                // The 29 bits of a double below the precision of a float: a midpoint is 100...0
+                if (d >= Float.MIN_NORMAL && (bits & ((1L << 29) - 1)) != (1L << 28)) {
+                    return (float)(negative ? -d : d);
+                }
+            }
+        }
+        return Float.parseFloat(new String(bytes, start, end - start, ASCII));
+    }
+
+    private static long[] grow(long[] array) {
+        long[] grown = new long[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static float[] grow(float[] array) {
+        float[] grown = new float[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
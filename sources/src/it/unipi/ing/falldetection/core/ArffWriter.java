@@ -0,0 +1,200 @@
+package it.unipi.ing.falldetection.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Writes a labeled snapshot as an ARFF file, in the format read by {@link ArffReader}.
+ * <p>
+ * The rows are formatted into a byte buffer, which is written to the channel (or copied to the
+ * writer) whenever it is full: the timestamps as integers and the values as the shortest decimals
+ * that parse back to the same floats (see {@link FloatFormatter}), so that the file holds exactly
+ * the recorded samples. A writer can be reused for several snapshots, reusing its buffer.
+ */
+public class ArffWriter
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The maximum number of bytes of a value: a long timestamp or a float, and the separator.
+     */
+    private static final int maxValueLength = 21;
+
+    private final ByteBuffer buffer;
+    private final byte[] bytes;
+    private char[] chars;
+    private WritableByteChannel channel;
+    private Writer writer;
+
+    /**
+     * Constructs a new instance of ArffWriter.
+     *
+     * @param bufferSize
+     *            The size of the buffer the rows are formatted into.
+     */
+    public ArffWriter(int bufferSize)
+    {
+        this.bytes = new byte[Math.max(bufferSize, 4 * maxValueLength)];
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Writes a snapshot to a file.
+     */
+    public static void write(File file, boolean confirmed, String user, String notes, SensorDataBuffer snapshot)
+            throws IOException
+    {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            new ArffWriter(64 * 1024).write(fos.getChannel(), confirmed, user, notes, snapshot);
+        }
+        finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Writes a snapshot. The writer is flushed but not closed.
+     *
+     * @param confirmed
+     *            Whether the fall has been confirmed by the user.
+     * @param user
+     *            The information about the user, as "sex,age,height[cm],weight[kg]".
+     */
+    public static void write(Writer out, boolean confirmed, String user, String notes, SensorDataBuffer snapshot)
+            throws IOException
+    {
+        new ArffWriter(16 * 1024).write(null, out, confirmed, user, notes, snapshot);
+    }
+
+    /**
+     * Writes a snapshot. The channel is not closed.
+     */
+    public void write(WritableByteChannel out, boolean confirmed, String user, String notes,
+            SensorDataBuffer snapshot) throws IOException
+    {
+        write(out, null, confirmed, user, notes, snapshot);
+    }
+
+    private void write(WritableByteChannel channel, Writer writer, boolean confirmed, String user, String notes,
+            SensorDataBuffer snapshot) throws IOException
+    {
+        this.channel = channel;
+        this.writer = writer;
+        try {
+            text("% Class: " + (confirmed ? "Fall" : "False_Alarm") + "\n");
+            text("% User (sex,age,height[cm],weight[kg]): " + user + "\n");
+            text("% Notes: " + notes + "\n");
+
+            text("@RELATION  LinearAcceleration\n");
+            for (int i = 0; i < snapshot.descriptions.length; i++) {
+                text("@ATTRIBUTE " + snapshot.descriptions[i] + " NUMERIC\n");
+            }
+
+            text("@DATA\n");
+            int channels = snapshot.getChannelCount();
+            int rowLength = (channels + 1) * maxValueLength;
+            for (int i = 0; i < snapshot.size(); i++) {
+                if (bytes.length - buffer.position() < rowLength) {
+                    flush();
+                    if (bytes.length < rowLength) {
+                        throw new IOException("Buffer too small for " + channels + " channels");
+                    }
+                }
+                int position = putLong(snapshot.getTimestamp(i), bytes, buffer.position());
+                for (int j = 0; j < channels; j++) {
+                    bytes[position++] = ',';
+                    position = FloatFormatter.format(snapshot.getValue(i, j), bytes, position);
+                }
+                bytes[position++] = '\n';
+                buffer.position(position);
+            }
+            flush();
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+        finally {
+            this.channel = null;
+            this.writer = null;
+        }
+    }
+
+    /**
+     * Writes a line of the header.
+     */
+    private void text(String line) throws IOException {
+        if (writer != null) {
+            flush();
+            writer.write(line);
+            return;
+        }
+        byte[] encoded = line.getBytes(UTF8);
+        if (encoded.length > bytes.length - buffer.position()) {
+            flush();
+            if (encoded.length > bytes.length) {
+                drain(ByteBuffer.wrap(encoded));
+                return;
+            }
+        }
+        buffer.put(encoded);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        if (writer != null) {
+            // The rows are ASCII
+            int length = buffer.remaining();
+            if (chars == null || chars.length < length) {
+                chars = new char[bytes.length];
+            }
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char)bytes[i];
+            }
+            writer.write(chars, 0, length);
+            buffer.clear();
+            return;
+        }
+        drain(buffer);
+        buffer.clear();
+    }
+
+    private void drain(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+
+    /**
+     * Writes the decimal digits of a long.
+     *
+     * @return The position after the last digit.
+     */
+    private static int putLong(long value, byte[] out, int position) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                String digits = Long.toString(value);
+                for (int i = 0; i < digits.length(); i++) {
+                    out[position++] = (byte)digits.charAt(i);
+                }
+                return position;
+            }
+            out[position++] = '-';
+            value = -value;
+        }
+        int length = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            length++;
+        }
+        for (int i = position + length - 1; i >= position; i--) {
+            out[i] = (byte)('0' + value % 10);
+            value /= 10;
+        }
+        return position + length;
+    }
+}
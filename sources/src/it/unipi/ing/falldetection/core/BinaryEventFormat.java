@@ -0,0 +1,494 @@
+package it.unipi.ing.falldetection.core;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes a labeled snapshot in a compact binary format, about half the size of the
+ * ARFF text and much faster to write and parse. ARFF remains available as a conversion (see
+ * {@link #toArff}).
+ * <p>
+ * The format is little-endian; strings are an int length in bytes (-1 for null) followed by UTF-8:
+ *
+ * <pre>
+ * int      magic ('FDEV'), short version (2), byte confirmed, byte flags
+ * string   user, string notes
+ * int      description count D, D strings (the timestamp first, then the channels)
+ * int      sample count N, int channel count C
+ * int      CRC-32 of the decoded columns, laid out as in version 1
+ * long[N]  timestamps
+ * C times: int[N] bits of the values of a channel (see Float.floatToRawIntBits)
+ * </pre>
+ *
+ * With {@link #FLAG_DELTA}, each column but its first value is stored as the difference from the
+ * previous value (of the bits, for the floats), so that the slowly changing timestamps and samples
+ * become runs of small numbers that compress several times better; the encoding is lossless. The
+ * files are meant to be stored and sent gzipped (see {@link #writeCompressed}). Version 1 has no
+ * flags, no CRC and the plain columns.
+ * <p>
+ * Several events can be sent together ({@link #BATCH_CONTENT_TYPE}) as a sequence of frames, each
+ * made of an int length, a byte of flags ({@link #FRAME_GZIP} if the event is gzipped) and the
+ * event itself. The receiver answers with one line per frame, the status of the event as an HTTP
+ * status code: 200 once the event is stored, 400 if it is malformed.
+ * <p>
+ * The counts and lengths of the header are checked before anything is allocated for them: against
+ * the bytes actually left in the input (when known) and against fixed maximums
+ * ({@link #MAX_CHANNELS}, {@link #MAX_STRING_LENGTH}, {@link #MAX_DATA_SIZE}), so that a short
+ * malformed input cannot make the reader allocate more than it holds.
+ */
+public class BinaryEventFormat
+{
+    public static final int MAGIC = 0x56454446; // "FDEV" in little-endian
+    public static final short VERSION = 2;
+    public static final int FLAG_DELTA = 1;
+    public static final String CONTENT_TYPE = "application/x-fall-event";
+    public static final String EXTENSION = ".evt";
+    public static final String COMPRESSED_EXTENSION = ".evt.gz";
+    public static final String BATCH_CONTENT_TYPE = "application/x-fall-event-batch";
+    public static final int FRAME_HEADER_SIZE = 5;
+    public static final int FRAME_GZIP = 1;
+
+    /**
+     * The maximum number of channels (and of descriptions, with the timestamp) of an event.
+     */
+    public static final int MAX_CHANNELS = 64;
+
+    /**
+     * The maximum length in bytes of a string of the header.
+     */
+    public static final int MAX_STRING_LENGTH = 64 * 1024;
+
+    /**
+     * The maximum number of bytes of the columns of an event.
+     */
+    public static final int MAX_DATA_SIZE = 32 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The size of the chunks in which the columns are read from a stream.
+     */
+    private static final int chunkSize = 8192;
+
+    private BinaryEventFormat()
+    {
+    }
+
+    /**
+     * Encodes a snapshot into a buffer ready to be written.
+     */
+    public static ByteBuffer encode(boolean confirmed, String user, String notes, SensorDataBuffer snapshot) {
+        byte[] userBytes = user != null ? user.getBytes(UTF8) : null;
+        byte[] notesBytes = notes != null ? notes.getBytes(UTF8) : null;
+        String[] descriptions = snapshot.descriptions;
+        byte[][] descriptionBytes = new byte[descriptions.length][];
+        int size = 8 + stringSize(userBytes) + stringSize(notesBytes) + 4 + 12;
+        for (int i = 0; i < descriptions.length; i++) {
+            descriptionBytes[i] = descriptions[i] != null ? descriptions[i].getBytes(UTF8) : null;
+            size += stringSize(descriptionBytes[i]);
+        }
+        int samples = snapshot.size();
+        int channels = snapshot.getChannelCount();
+        size += samples * (8 + 4 * channels);
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putShort(VERSION).put((byte)(confirmed ? 1 : 0)).put((byte)FLAG_DELTA);
+        putString(buffer, userBytes);
+        putString(buffer, notesBytes);
+        buffer.putInt(descriptions.length);
+        for (byte[] d : descriptionBytes) {
+            putString(buffer, d);
+        }
+        buffer.putInt(samples).putInt(channels);
+
+        long[] timestamps = new long[samples];
+        float[][] columns = new float[channels][samples];
+        snapshot.getTimestamps(0, timestamps, 0, samples);
+        for (int c = 0; c < channels; c++) {
+            snapshot.getValues(c, 0, columns[c], 0, samples);
+        }
+        buffer.putInt(checksum(timestamps, columns));
+
+        for (int i = samples - 1; i > 0; i--) {
+            timestamps[i] -= timestamps[i - 1];
+        }
+        buffer.asLongBuffer().put(timestamps);
+        buffer.position(buffer.position() + 8 * samples);
+        int[] bits = channels > 0 ? new int[samples] : null;
+        for (int c = 0; c < channels; c++) {
+            int previous = 0;
+            for (int i = 0; i < samples; i++) {
+                int b = Float.floatToRawIntBits(columns[c][i]);
+                bits[i] = b - previous;
+                previous = b;
+            }
+            buffer.asIntBuffer().put(bits);
+            buffer.position(buffer.position() + 4 * samples);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Writes a snapshot to a channel, with a single write call for channels that accept the whole
+     * buffer at once (such as files).
+     */
+    public static void write(WritableByteChannel channel, boolean confirmed, String user, String notes,
+            SensorDataBuffer snapshot) throws IOException
+    {
+        ByteBuffer buffer = encode(confirmed, user, notes, snapshot);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public static void write(File file, boolean confirmed, String user, String notes, SensorDataBuffer snapshot)
+            throws IOException
+    {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            write(fos.getChannel(), confirmed, user, notes, snapshot);
+        }
+        finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Writes a snapshot gzipped, as a single chunk of input to the compressor. The stream is not
+     * closed.
+     */
+    public static void writeCompressed(OutputStream out, boolean confirmed, String user, String notes,
+            SensorDataBuffer snapshot) throws IOException
+    {
+        ByteBuffer buffer = encode(confirmed, user, notes, snapshot);
+        GZIPOutputStream gzip = new GZIPOutputStream(out, chunkSize);
+        gzip.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        gzip.finish();
+    }
+
+    /**
+     * Gets the header of a frame of a batch.
+     *
+     * @param length
+     *            The length of the event in bytes.
+     * @param flags
+     *            {@link #FRAME_GZIP} if the event is gzipped.
+     */
+    public static byte[] frameHeader(int length, int flags) {
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(length).put((byte)flags);
+        return header.array();
+    }
+
+    /**
+     * Reads a recording, gzipped if the name of the file ends with {@link #COMPRESSED_EXTENSION}.
+     */
+    public static Recording read(File file) throws IOException {
+        if (!file.getName().endsWith(COMPRESSED_EXTENSION)) {
+            return readMapped(file);
+        }
+        InputStream in = new GZIPInputStream(new FileInputStream(file), chunkSize);
+        try {
+            return read(in);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads an uncompressed recording by mapping its file into memory.
+     */
+    private static Recording readMapped(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return decode(buffer);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Decodes a recording from the remaining bytes of a buffer.
+     */
+    public static Recording decode(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a fall detection event");
+            }
+            short version = buffer.getShort();
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported event version: " + version);
+            }
+            boolean confirmed = buffer.get() != 0;
+            int flags = buffer.get();
+            if (version == 1) {
+                flags = 0;
+            }
+            String user = getString(buffer);
+            String notes = getString(buffer);
+            String[] descriptions = new String[checkCount(buffer.getInt(), MAX_CHANNELS + 1)];
+            for (int i = 0; i < descriptions.length; i++) {
+                descriptions[i] = getString(buffer);
+            }
+            int samples = checkCount(buffer.getInt(), Integer.MAX_VALUE);
+            int channels = checkCount(buffer.getInt(), MAX_CHANNELS);
+            int checksum = version > 1 ? buffer.getInt() : 0;
+            checkDataSize(samples, channels, buffer.remaining());
+
+            long[] timestamps = new long[samples];
+            buffer.asLongBuffer().get(timestamps);
+            buffer.position(buffer.position() + 8 * samples);
+            float[][] columns = new float[channels][samples];
+            // No buffer for the deltas if there is no column to decode
+            int[] bits = channels > 0 ? new int[samples] : null;
+            for (int c = 0; c < channels; c++) {
+                buffer.asIntBuffer().get(bits);
+                buffer.position(buffer.position() + 4 * samples);
+                decodeColumn(bits, columns[c], flags);
+            }
+            return newRecording(version, flags, checksum, confirmed, user, notes, descriptions, timestamps,
+                    columns);
+        }
+        catch (RuntimeException e) {
+            // A truncated buffer or a negative count
+            throw new IOException("Invalid event: " + e);
+        }
+    }
+
+    /**
+     * Reads a recording from a stream, without buffering it as a whole: the columns are read in
+     * chunks straight into their arrays. The stream is not closed.
+     *
+     * @see #read(InputStream, long)
+     */
+    public static Recording read(InputStream in) throws IOException {
+        return read(in, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads a recording from a stream, as {@link #read(InputStream)} does. The arrays grow with
+     * the bytes actually read, so a header announcing more samples than the stream holds fails at
+     * its end without allocating for them.
+     *
+     * @param maxLength
+     *            The maximum number of bytes of the event, such as the length of the body holding
+     *            it when not compressed.
+     * @throws IOException
+     *             If the event is malformed or longer than {@code maxLength}.
+     */
+    public static Recording read(InputStream in, long maxLength) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        long[] remaining = new long[] { maxLength };
+        consume(remaining, 8);
+        if (Integer.reverseBytes(data.readInt()) != MAGIC) {
+            throw new IOException("Not a fall detection event");
+        }
+        short version = Short.reverseBytes(data.readShort());
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unsupported event version: " + version);
+        }
+        boolean confirmed = data.readByte() != 0;
+        int flags = data.readByte();
+        if (version == 1) {
+            flags = 0;
+        }
+        String user = readString(data, remaining);
+        String notes = readString(data, remaining);
+        int count = readCount(data, remaining, MAX_CHANNELS + 1);
+        String[] descriptions = new String[count];
+        for (int i = 0; i < descriptions.length; i++) {
+            descriptions[i] = readString(data, remaining);
+        }
+        int samples = readCount(data, remaining, Integer.MAX_VALUE);
+        int channels = readCount(data, remaining, MAX_CHANNELS);
+        consume(remaining, version > 1 ? 4 : 0);
+        int checksum = version > 1 ? Integer.reverseBytes(data.readInt()) : 0;
+        checkDataSize(samples, channels, remaining[0]);
+
+        byte[] chunk = new byte[chunkSize];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+        long[] timestamps = new long[Math.min(samples, chunkSize / 8)];
+        for (int i = 0; i < samples;) {
+            int n = Math.min(samples - i, chunkSize / 8);
+            data.readFully(chunk, 0, n * 8);
+            if (i + n > timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, (int)Math.min(samples, 2L * (i + n)));
+            }
+            buffer.clear();
+            buffer.asLongBuffer().get(timestamps, i, n);
+            i += n;
+        }
+        // The timestamps have been read: the columns, each half their size, can be allocated
+        float[][] columns = new float[channels][];
+        int[] bits = channels > 0 ? new int[samples] : null;
+        for (int c = 0; c < channels; c++) {
+            for (int i = 0; i < samples;) {
+                int n = Math.min(samples - i, chunkSize / 4);
+                data.readFully(chunk, 0, n * 4);
+                buffer.clear();
+                buffer.asIntBuffer().get(bits, i, n);
+                i += n;
+            }
+            columns[c] = new float[samples];
+            decodeColumn(bits, columns[c], flags);
+        }
+        return newRecording(version, flags, checksum, confirmed, user, notes, descriptions, timestamps, columns);
+    }
+
+    /**
+     * Undoes the delta encoding of the timestamps, if any, verifies the checksum of version 2 and
+     * constructs the recording.
+     */
+    private static Recording newRecording(int version, int flags, int checksum, boolean confirmed, String user,
+            String notes, String[] descriptions, long[] timestamps, float[][] columns) throws IOException
+    {
+        if ((flags & FLAG_DELTA) != 0) {
+            for (int i = 1; i < timestamps.length; i++) {
+                timestamps[i] += timestamps[i - 1];
+            }
+        }
+        if (version > 1 && checksum(timestamps, columns) != checksum) {
+            throw new IOException("Checksum mismatch");
+        }
+        return new Recording(confirmed, user, notes, new SensorDataBuffer(descriptions, timestamps, columns));
+    }
+
+    private static void decodeColumn(int[] bits, float[] column, int flags) {
+        int previous = 0;
+        boolean delta = (flags & FLAG_DELTA) != 0;
+        for (int i = 0; i < column.length; i++) {
+            int b = delta ? previous + bits[i] : bits[i];
+            column[i] = Float.intBitsToFloat(b);
+            previous = b;
+        }
+    }
+
+    /**
+     * Computes the CRC-32 of the columns laid out as little-endian arrays, one after the other.
+     */
+    static int checksum(long[] timestamps, float[][] columns) {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < timestamps.length; i++) {
+            if (buffer.remaining() < 8) {
+                crc.update(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            buffer.putLong(timestamps[i]);
+        }
+        for (float[] column : columns) {
+            for (int i = 0; i < column.length; i++) {
+                if (buffer.remaining() < 4) {
+                    crc.update(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+                buffer.putInt(Float.floatToRawIntBits(column[i]));
+            }
+        }
+        crc.update(buffer.array(), 0, buffer.position());
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Converts a recording to ARFF (see {@link ArffWriter}).
+     */
+    public static void toArff(Recording recording, Writer out) throws IOException {
+        ArffWriter.write(out, recording.confirmed, recording.user, recording.notes, recording.samples);
+    }
+
+    private static int stringSize(byte[] bytes) {
+        return 4 + (bytes != null ? bytes.length : 0);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        }
+        else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_STRING_LENGTH || length > buffer.remaining()) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static String readString(DataInputStream data, long[] remaining) throws IOException {
+        consume(remaining, 4);
+        int length = Integer.reverseBytes(data.readInt());
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        consume(remaining, length);
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static int readCount(DataInputStream data, long[] remaining, int max) throws IOException {
+        consume(remaining, 4);
+        return checkCount(Integer.reverseBytes(data.readInt()), max);
+    }
+
+    private static int checkCount(int count, int max) throws IOException {
+        if (count < 0 || count > max) {
+            throw new IOException("Invalid count: " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Checks that the columns fit both the bytes left and {@link #MAX_DATA_SIZE}.
+     */
+    private static void checkDataSize(int samples, int channels, long remaining) throws IOException {
+        long size = (long)samples * (8 + 4L * channels);
+        if (size > MAX_DATA_SIZE || size > remaining) {
+            throw new IOException("Invalid sample count: " + samples + " samples of " + channels + " channels");
+        }
+    }
+
+    /**
+     * Takes the given number of bytes from those left to read.
+     */
+    private static void consume(long[] remaining, long bytes) throws IOException {
+        if (bytes > remaining[0]) {
+            throw new IOException("Event longer than expected");
+        }
+        remaining[0] -= bytes;
+    }
+}
@@ -0,0 +1,93 @@
+package it.unipi.ing.falldetection.core;
+
+/**
+ * Detects a fall with a trained {@link FallDetectionModel}.
+ * <p>
+ * The peaks are detected as in {@link SimpleFallDetectionStrategy}; when the delay after the last
+ * peak expires, the features of the windows described by the model are scored instead of firing
+ * the event right away. The event is fired only if the score reaches the threshold of the model,
+ * and the score becomes its reliability. The features are updated for each sample, so each
+ * inference costs only the evaluation of the model and allocates nothing; its duration is
+ * measured and exposed through {@link #getLastInferenceTime} and {@link #getMaxInferenceTime}.
+ */
+public class ClassifierFallDetectionStrategy extends SimpleFallDetectionStrategy
+{
+    protected final FallDetectionModel model;
+    protected final SlidingWindowFeatures features;
+
+    /**
+     * The feature vector, reused by every inference.
+     */
+    private final float[] vector;
+
+    private volatile long lastInferenceTime = 0;
+    private volatile long maxInferenceTime = 0;
+    private volatile int inferenceCount = 0;
+
+    /**
+     * Constructs a new instance of ClassifierFallDetectionStrategy.
+     *
+     * @see AbstractFallDetectionStrategy#AbstractFallDetectionStrategy(SensorDataManager, int)
+     */
+    public ClassifierFallDetectionStrategy(SensorDataManager dataManager, int postPeakSamples,
+            FallDetectionModel model)
+    {
+        super(dataManager, postPeakSamples);
+        this.model = model;
+        this.features = new SlidingWindowFeatures(model.windowLengths);
+        this.vector = new float[model.getFeatureCount()];
+    }
+
+    /**
+     * Gets the duration in nanoseconds of the last inference.
+     */
+    public long getLastInferenceTime() {
+        return lastInferenceTime;
+    }
+
+    /**
+     * Gets the duration in nanoseconds of the slowest inference so far.
+     */
+    public long getMaxInferenceTime() {
+        return maxInferenceTime;
+    }
+
+    /**
+     * Gets the number of inferences so far.
+     */
+    public int getInferenceCount() {
+        return inferenceCount;
+    }
+
+    /**
+     * Scores the features of the last samples and fires the pending event if the score is high
+     * enough. Otherwise the capture window started at the first peak is dropped.
+     */
+    @Override
+    protected void fireArmedEvent() {
+        armed = false;
+        features.getFeatures(vector, 0);
+        long start = System.nanoTime();
+        float score = model.score(vector);
+        long time = System.nanoTime() - start;
+
+        lastInferenceTime = time;
+        if (time > maxInferenceTime) {
+            maxInferenceTime = time;
+        }
+        inferenceCount++;
+
+        if (score >= model.threshold) {
+            fireCapturedEvent(score);
+        }
+        else {
+            cancelCapture();
+        }
+    }
+
+    @Override
+    public void onDataAvailable(SensorDataManager sender, long timestamp, float x, float y, float z, int accuracy) {
+        features.update(timestamp, x, y, z);
+        super.onDataAvailable(sender, timestamp, x, y, z, accuracy);
+    }
+}
@@ -0,0 +1,450 @@
+package it.unipi.ing.falldetection.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs several strategies in parallel and fires an event when enough of them agree.
+ * <p>
+ * The thread feeding the data manager only copies each sample into a bounded queue per child;
+ * each child consumes its queue on a thread of its own, so a heavy child adds no latency to the
+ * sensor callbacks. The thread of a child parks when its queue is empty and is unparked by the
+ * next sample, which neither allocates nor takes a lock. A child whose queue is full loses
+ * samples, and a child spending more than its latency budget on a sample is reported to the
+ * {@link OnStrategyLaggingListener}s.
+ * <p>
+ * The events fired by the children are votes: as soon as the weights of the children voting within
+ * the vote window reach the threshold, the composite fires an event whose reliability is the
+ * weighted mean of the votes and whose snapshot is the one of the heaviest vote. A child that has
+ * lost samples or exceeded its budget is excluded from the vote (neither its votes nor its weight
+ * count) until it consumes a sample within its budget with its queue drained. The listeners of
+ * the composite are called from the threads of the children.
+ */
+public class CompositeFallDetectionStrategy extends AbstractFallDetectionStrategy
+{
+    private final int queueCapacity;
+    private final long voteWindow;
+    private final float threshold;
+
+    private final List<ChildRunner> children = new ArrayList<ChildRunner>();
+    private volatile ChildRunner[] runners = new ChildRunner[0];
+
+    /**
+     * The listeners, replaced as a whole on every change so that they can be called without
+     * locking, even from the thread feeding the samples.
+     */
+    private volatile OnStrategyLaggingListener[] laggingListeners = new OnStrategyLaggingListener[0];
+
+    /**
+     * The votes collected in the current window, guarded by {@code votes} itself.
+     */
+    private final List<Vote> votes = new ArrayList<Vote>();
+    private long voteWindowStart;
+    private boolean voteDecided;
+    private volatile boolean votesPending = false;
+
+    /**
+     * Constructs a new instance of CompositeFallDetectionStrategy.
+     *
+     * @param queueCapacity
+     *            The number of samples each child can lag behind the data manager.
+     * @param voteWindow
+     *            The interval in milliseconds, measured by the timestamps of the samples, within
+     *            which the votes of the children are combined.
+     * @param threshold
+     *            The fraction of the total weight of the children needed to fire an event.
+     */
+    public CompositeFallDetectionStrategy(SensorDataManager dataManager, int queueCapacity, long voteWindow,
+            float threshold)
+    {
+        super(dataManager, 0);
+        this.queueCapacity = queueCapacity;
+        this.voteWindow = voteWindow * 1000000L;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Adds a child strategy. The child stops receiving the samples directly from the data manager
+     * and is fed by the composite instead, on a daemon thread running with a lower priority than
+     * the thread feeding the samples.
+     *
+     * @param weight
+     *            The weight of the votes of the child.
+     * @param latencyBudget
+     *            The time in nanoseconds the child may spend on a single sample.
+     */
+    public synchronized <T extends IFallDetectionStrategy & ISensorDataListener> void addChild(T child,
+            float weight, long latencyBudget)
+    {
+        dataManager.removeListener(child);
+        ChildRunner runner = new ChildRunner(child, child, weight, latencyBudget);
+        child.addListener(runner);
+        children.add(runner);
+        runners = children.toArray(new ChildRunner[children.size()]);
+        runner.thread.start();
+    }
+
+    public synchronized void addLaggingListener(OnStrategyLaggingListener listener) {
+        OnStrategyLaggingListener[] current = laggingListeners;
+        OnStrategyLaggingListener[] updated = new OnStrategyLaggingListener[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = listener;
+        laggingListeners = updated;
+    }
+
+    public synchronized void removeLaggingListener(OnStrategyLaggingListener listener) {
+        OnStrategyLaggingListener[] current = laggingListeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                OnStrategyLaggingListener[] updated = new OnStrategyLaggingListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                laggingListeners = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reports a lagging child, from its own thread or, when its queue overflows, from the thread
+     * feeding the samples.
+     */
+    protected void fireStrategyLagging(IFallDetectionStrategy child, long latency, long dropped) {
+        OnStrategyLaggingListener[] current = laggingListeners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].onStrategyLagging(this, child, latency, dropped);
+        }
+    }
+
+    @Override
+    public void onDataAvailable(SensorDataManager sender, long timestamp, float x, float y, float z, int accuracy) {
+        ChildRunner[] current = runners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].offer(timestamp, x, y, z, accuracy);
+        }
+        expireVotes(timestamp);
+    }
+
+    /**
+     * Forwards the wall-clock time to the children, on their own threads.
+     */
+    @Override
+    public void poll(long nanoTime) {
+        ChildRunner[] current = runners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].requestPoll(nanoTime);
+        }
+    }
+
+    /**
+     * Stops feeding the children and detaches them, once their threads have ended (the children
+     * are not thread-safe). The samples still queued are dropped.
+     */
+    @Override
+    public void detach() {
+        super.detach();
+        ChildRunner[] current = runners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].stop();
+        }
+        boolean interrupted = false;
+        for (int i = 0; i < current.length; i++) {
+            while (true) {
+                try {
+                    current[i].thread.join();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            current[i].strategy.removeListener(current[i]);
+            current[i].strategy.detach();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records a vote and fires the combined event if the threshold is reached.
+     */
+    protected void vote(ChildRunner child, FallDetectionEvent event, long timestamp) {
+        FallDetectionEvent fired = null;
+        if (child.lagging) {
+            // Its vote may rest on stale or missing samples
+            event.setOnSnapshotCompletedListener(snapshotReleaser);
+            return;
+        }
+        List<Vote> discarded = null;
+        synchronized (votes) {
+            if (!votes.isEmpty() && timestamp - voteWindowStart > voteWindow) {
+                discarded = closeWindow();
+            }
+            if (votes.isEmpty()) {
+                voteWindowStart = timestamp;
+                voteDecided = false;
+            }
+            votes.add(new Vote(child, event));
+            votesPending = true;
+            if (voteDecided) {
+                // The event has already been fired for this window
+                event.setOnSnapshotCompletedListener(snapshotReleaser);
+                return;
+            }
+
+            float weight = 0;
+            float reliability = 0;
+            Vote heaviest = null;
+            for (Vote v : votes) {
+                weight += v.child.weight;
+                reliability += v.child.weight * v.event.reliability;
+                if (heaviest == null || v.child.weight > heaviest.child.weight) {
+                    heaviest = v;
+                }
+            }
+            if (weight >= threshold * availableWeight()) {
+                voteDecided = true;
+                fired = new FallDetectionEvent(System.currentTimeMillis(), reliability / weight, null);
+                for (Vote v : votes) {
+                    if (v != heaviest) {
+                        v.event.setOnSnapshotCompletedListener(snapshotReleaser);
+                    }
+                }
+                heaviest.event.setOnSnapshotCompletedListener(new SnapshotForwarder(fired));
+            }
+        }
+        releaseAll(discarded);
+
+        if (fired != null) {
+            for (OnFallDetectedListener e : listeners) {
+                e.onFallDetected(this, fired);
+            }
+        }
+    }
+
+    /**
+     * Drops the votes of a window that did not reach the threshold in time.
+     */
+    protected void expireVotes(long timestamp) {
+        if (!votesPending) {
+            return;
+        }
+        List<Vote> discarded = null;
+        synchronized (votes) {
+            if (!votes.isEmpty() && timestamp - voteWindowStart > voteWindow) {
+                discarded = closeWindow();
+            }
+        }
+        releaseAll(discarded);
+    }
+
+    /**
+     * Gets the total weight of the children taking part in the vote.
+     */
+    private float availableWeight() {
+        ChildRunner[] current = runners;
+        float weight = 0;
+        for (int i = 0; i < current.length; i++) {
+            if (!current[i].lagging) {
+                weight += current[i].weight;
+            }
+        }
+        return weight;
+    }
+
+    private List<Vote> closeWindow() {
+        List<Vote> discarded = null;
+        if (!voteDecided) {
+            discarded = new ArrayList<Vote>(votes);
+        }
+        votes.clear();
+        votesPending = false;
+        return discarded;
+    }
+
+    private void releaseAll(List<Vote> discarded) {
+        if (discarded != null) {
+            for (Vote v : discarded) {
+                v.event.setOnSnapshotCompletedListener(snapshotReleaser);
+            }
+        }
+    }
+
+    private static final OnSnapshotCompletedListener snapshotReleaser = new OnSnapshotCompletedListener() {
+        @Override
+        public void onSnapshotCompleted(FallDetectionEvent event) {
+            event.snapshot.release();
+        }
+    };
+
+    private static class SnapshotForwarder implements OnSnapshotCompletedListener
+    {
+        private final FallDetectionEvent target;
+
+        public SnapshotForwarder(FallDetectionEvent target) {
+            this.target = target;
+        }
+
+        @Override
+        public void onSnapshotCompleted(FallDetectionEvent event) {
+            target.completeSnapshot(event.snapshot);
+        }
+    }
+
+    private static class Vote
+    {
+        final ChildRunner child;
+        final FallDetectionEvent event;
+
+        Vote(ChildRunner child, FallDetectionEvent event) {
+            this.child = child;
+            this.event = event;
+        }
+    }
+
+    /**
+     * Feeds a child from its queue. The queue is a ring with a single producer (the thread feeding
+     * the data manager) and a single consumer (the thread of the child).
+     * <p>
+     * The consumer announces through {@link #waiting} that it is about to park, then checks the
+     * queue once more; the producer unparks it only if it has announced so, after publishing the
+     * sample. Since both sides store before loading the other's volatile, at least one of them sees
+     * the other, and no sample is left waiting for a wake-up.
+     */
+    protected class ChildRunner implements Runnable, OnFallDetectedListener
+    {
+        final IFallDetectionStrategy strategy;
+        final ISensorDataListener listener;
+        final float weight;
+        final long latencyBudget;
+
+        private final long[] timestamps = new long[queueCapacity];
+        private final float[] xs = new float[queueCapacity];
+        private final float[] ys = new float[queueCapacity];
+        private final float[] zs = new float[queueCapacity];
+        private final int[] accuracies = new int[queueCapacity];
+
+        /**
+         * The number of samples consumed and produced.
+         */
+        private volatile long head = 0;
+        private volatile long tail = 0;
+
+        final Thread thread;
+        private volatile boolean waiting = false;
+        private volatile boolean stopped = false;
+        private volatile long pollRequest;
+        private volatile boolean pollRequested = false;
+        private volatile long dropped = 0;
+        private boolean dropping = false;
+
+        /**
+         * Whether the child is excluded from the vote, after losing samples or exceeding its
+         * budget.
+         */
+        volatile boolean lagging = false;
+
+        /**
+         * The timestamp of the sample being consumed, used to place the votes in time.
+         */
+        private long currentTimestamp;
+
+        ChildRunner(IFallDetectionStrategy strategy, ISensorDataListener listener, float weight, long latencyBudget) {
+            this.strategy = strategy;
+            this.listener = listener;
+            this.weight = weight;
+            this.latencyBudget = latencyBudget;
+            this.thread = new Thread(this, CompositeFallDetectionStrategy.class.getSimpleName() + "-"
+                    + strategy.getClass().getSimpleName());
+            this.thread.setDaemon(true);
+            this.thread.setPriority(Thread.NORM_PRIORITY - 1);
+        }
+
+        void offer(long timestamp, float x, float y, float z, int accuracy) {
+            long t = tail;
+            if (t - head == queueCapacity) {
+                dropped++;
+                lagging = true;
+                if (!dropping) {
+                    // Report only the first sample dropped of each overflow
+                    dropping = true;
+                    fireStrategyLagging(strategy, 0, dropped);
+                }
+                return;
+            }
+            dropping = false;
+
+            int index = (int)(t % queueCapacity);
+            timestamps[index] = timestamp;
+            xs[index] = x;
+            ys[index] = y;
+            zs[index] = z;
+            accuracies[index] = accuracy;
+            tail = t + 1;
+            wake();
+        }
+
+        void requestPoll(long nanoTime) {
+            pollRequest = nanoTime;
+            pollRequested = true;
+            wake();
+        }
+
+        void stop() {
+            stopped = true;
+            LockSupport.unpark(thread);
+        }
+
+        private void wake() {
+            if (waiting) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                if (head == tail && !pollRequested) {
+                    waiting = true;
+                    if (head == tail && !pollRequested && !stopped) {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                    continue;
+                }
+
+                if (pollRequested) {
+                    pollRequested = false;
+                    strategy.poll(pollRequest);
+                }
+
+                long h = head;
+                long t = tail;
+                for (; h < t && !stopped; h++) {
+                    int index = (int)(h % queueCapacity);
+                    currentTimestamp = timestamps[index];
+                    long start = System.nanoTime();
+                    listener.onDataAvailable(dataManager, timestamps[index], xs[index], ys[index], zs[index],
+                            accuracies[index]);
+                    long latency = System.nanoTime() - start;
+                    head = h + 1;
+                    if (latency > latencyBudget) {
+                        lagging = true;
+                        fireStrategyLagging(strategy, latency, dropped);
+                    }
+                    else if (lagging && h + 1 == tail) {
+                        // Caught up
+                        lagging = false;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onFallDetected(IFallDetectionStrategy sender, FallDetectionEvent event) {
+            vote(this, event, currentTimestamp);
+        }
+    }
+}
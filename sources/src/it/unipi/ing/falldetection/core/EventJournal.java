@@ -0,0 +1,413 @@
+package it.unipi.ing.falldetection.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A durable queue of the events waiting to be uploaded: an append-only log split into segments,
+ * with a cursor telling up to where the log has been uploaded.
+ * <p>
+ * Each record is addressed by its offset, the position of its first byte in the whole log. The
+ * segments are named after the offset of their first record ({@code %020d.seg}), so the segment
+ * holding an offset is found from the names alone. Each segment starts with the magic
+ * ({@code 'FDJL'}) and the version (1), followed by the records, each one laid out as an int
+ * length, the int CRC-32 of the payload and the payload (all little-endian).
+ * <p>
+ * Appending writes a single record at the end of the last segment and forces it to disk; when the
+ * segment is full, a new one is started. Draining reads the records sequentially from the cursor,
+ * and committing moves the cursor (written to a temporary file and renamed) and deletes the
+ * segments entirely before it. After a crash only the last segment is scanned, and is truncated
+ * after its last complete record. If its header is torn (the crash came between creating the file
+ * and writing the header), it is started over when it holds no complete record, and sealed
+ * otherwise, the appends going to a new segment. Records are never empty, so that a zero-filled
+ * tail is not taken for records.
+ */
+public class EventJournal
+{
+    public static final int MAGIC = 0x4C4A4446; // "FDJL" in little-endian
+    public static final int VERSION = 1;
+
+    private static final int segmentHeaderSize = 8;
+    private static final int recordHeaderSize = 8;
+    private static final String segmentSuffix = ".seg";
+    private static final String cursorName = "cursor";
+
+    private final File directory;
+    private final long maxSegmentSize;
+
+    /**
+     * The offsets of the first records of the segments, in ascending order.
+     */
+    private final List<Long> segments = new ArrayList<Long>();
+    private RandomAccessFile active;
+    private long end;
+    private long committed;
+
+    /**
+     * A record read from the journal.
+     */
+    public static class Entry
+    {
+        public final long offset;
+
+        /**
+         * The offset of the next record: the cursor to commit once this record is uploaded.
+         */
+        public final long next;
+        public final byte[] payload;
+
+        Entry(long offset, long next, byte[] payload) {
+            this.offset = offset;
+            this.next = next;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Opens the journal stored into the given directory, creating it if needed, and recovers it
+     * after a crash.
+     *
+     * @param maxSegmentSize
+     *            The size in bytes after which a new segment is started. A larger record gets a
+     *            segment of its own.
+     */
+    public EventJournal(File directory, long maxSegmentSize) throws IOException
+    {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        String[] names = directory.list();
+        long[] bases = new long[names != null ? names.length : 0];
+        int count = 0;
+        for (int i = 0; i < bases.length; i++) {
+            String name = names[i];
+            if (name.endsWith(segmentSuffix)) {
+                try {
+                    bases[count] = Long.parseLong(name.substring(0, name.length() - segmentSuffix.length()));
+                    count++;
+                }
+                catch (NumberFormatException e) {
+                    // Not a segment
+                }
+            }
+        }
+        Arrays.sort(bases, 0, count);
+        for (int i = 0; i < count; i++) {
+            segments.add(bases[i]);
+        }
+
+        if (segments.isEmpty()) {
+            segments.add(0L);
+        }
+        recover();
+
+        committed = readCursor();
+        if (committed < segments.get(0)) {
+            // Lost cursor: upload everything again rather than lose anything
+            committed = segments.get(0);
+        }
+        else if (committed > end) {
+            // The records after the end were lost by the crash, and the ones before uploaded
+            committed = end;
+        }
+    }
+
+    /**
+     * Gets the offset up to which the records have been uploaded.
+     */
+    public synchronized long getCommittedOffset() {
+        return committed;
+    }
+
+    /**
+     * Gets the offset after the last record.
+     */
+    public synchronized long getEndOffset() {
+        return end;
+    }
+
+    /**
+     * Tells whether all the records have been uploaded.
+     */
+    public synchronized boolean isDrained() {
+        return committed == end;
+    }
+
+    /**
+     * Appends a record and forces it to disk.
+     *
+     * @return The offset of the record.
+     * @throws IllegalArgumentException
+     *             If the payload is empty.
+     */
+    public synchronized long append(byte[] payload) throws IOException {
+        if (payload.length == 0) {
+            throw new IllegalArgumentException("Empty record");
+        }
+        if (active == null) {
+            throw new IOException("The journal is closed");
+        }
+        long size = active.length() - segmentHeaderSize;
+        if (size > 0 && size + recordHeaderSize + payload.length > maxSegmentSize) {
+            active.getChannel().force(true);
+            active.close();
+            active = null;
+            segments.add(end);
+            openSegment(end, true);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer header = ByteBuffer.allocate(recordHeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(payload.length).putInt((int)crc.getValue()).flip();
+        ByteBuffer[] buffers = new ByteBuffer[] { header, ByteBuffer.wrap(payload) };
+        FileChannel channel = active.getChannel();
+        channel.position(active.length());
+        while (buffers[1].hasRemaining()) {
+            channel.write(buffers);
+        }
+        channel.force(false);
+
+        long offset = end;
+        end += recordHeaderSize + payload.length;
+        return offset;
+    }
+
+    /**
+     * Reads the records following the cursor, up to the given number of bytes of payload (at least
+     * one record is read if any). A sealed segment found corrupted is skipped, since its records
+     * cannot be read anyway.
+     */
+    public synchronized List<Entry> read(long maxBytes) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        long bytes = 0;
+        long offset = committed;
+        int s = findSegment(offset);
+        while (offset < end && (entries.isEmpty() || bytes < maxBytes)) {
+            long base = segments.get(s);
+            long segmentEnd = s + 1 < segments.size() ? segments.get(s + 1) : end;
+            if (offset >= segmentEnd) {
+                s++;
+                continue;
+            }
+
+            RandomAccessFile file = new RandomAccessFile(segmentFile(base), "r");
+            try {
+                FileChannel channel = file.getChannel();
+                while (offset < segmentEnd && (entries.isEmpty() || bytes < maxBytes)) {
+                    byte[] payload = readRecord(channel, segmentHeaderSize + offset - base, segmentEnd - offset);
+                    if (payload == null) {
+                        break;
+                    }
+                    long next = offset + recordHeaderSize + payload.length;
+                    entries.add(new Entry(offset, next, payload));
+                    bytes += payload.length;
+                    offset = next;
+                }
+            }
+            finally {
+                file.close();
+            }
+
+            if (offset < segmentEnd && (entries.isEmpty() || bytes < maxBytes)) {
+                // Corrupted: skip the rest of the segment
+                offset = segmentEnd;
+                if (entries.isEmpty()) {
+                    commit(offset);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Moves the cursor to the given offset, which must be the {@link Entry#next} of a record read,
+     * and deletes the segments entirely before it.
+     */
+    public synchronized void commit(long offset) throws IOException {
+        if (offset <= committed || offset > end) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        buffer.putLong(offset);
+        crc.update(buffer.array(), 0, 8);
+        buffer.putInt((int)crc.getValue()).flip();
+
+        File temporary = new File(directory, cursorName + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temporary);
+        try {
+            FileChannel channel = fos.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        finally {
+            fos.close();
+        }
+        if (!temporary.renameTo(new File(directory, cursorName))) {
+            throw new IOException("Cannot rename " + temporary);
+        }
+        committed = offset;
+
+        // The last segment is kept, being the one appended to
+        while (segments.size() > 1 && segments.get(1) <= committed) {
+            File file = segmentFile(segments.get(0));
+            if (!file.delete() && file.exists()) {
+                break;
+            }
+            segments.remove(0);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (active != null) {
+            active.close();
+            active = null;
+        }
+    }
+
+    private int findSegment(long offset) {
+        int s = segments.size() - 1;
+        while (s > 0 && segments.get(s) > offset) {
+            s--;
+        }
+        return s;
+    }
+
+    private File segmentFile(long base) {
+        return new File(directory, String.format("%020d", base) + segmentSuffix);
+    }
+
+    /**
+     * Opens the last segment for appending, truncating it after its last complete record. A
+     * segment with a torn header is started over if it holds no complete record, otherwise it is
+     * sealed and a new segment is started after it.
+     */
+    private void recover() throws IOException {
+        long base = segments.get(segments.size() - 1);
+        File file = segmentFile(base);
+        if (!file.exists() || file.length() < segmentHeaderSize) {
+            openSegment(base, true);
+            return;
+        }
+        openSegment(base, false);
+
+        FileChannel channel = active.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(segmentHeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+        }
+        boolean valid = header.getInt(0) == MAGIC && header.getInt(4) == VERSION;
+
+        long length = active.length();
+        long position = segmentHeaderSize;
+        while (position < length) {
+            byte[] payload = readRecord(channel, position, length - position);
+            if (payload == null) {
+                break;
+            }
+            position += recordHeaderSize + payload.length;
+        }
+        if (!valid && position == segmentHeaderSize) {
+            active.close();
+            openSegment(base, true);
+            return;
+        }
+        if (position < length) {
+            channel.truncate(position);
+            channel.force(true);
+        }
+        end = base + position - segmentHeaderSize;
+        if (!valid) {
+            active.close();
+            active = null;
+            segments.add(end);
+            openSegment(end, true);
+        }
+    }
+
+    private void openSegment(long base, boolean create) throws IOException {
+        active = new RandomAccessFile(segmentFile(base), "rw");
+        if (create) {
+            ByteBuffer header = ByteBuffer.allocate(segmentHeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            active.setLength(0);
+            FileChannel channel = active.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+            end = base;
+        }
+    }
+
+    /**
+     * Reads the payload of the record at the given position of a segment, or returns {@code null}
+     * if the record is incomplete or corrupted.
+     *
+     * @param available
+     *            The number of bytes of the segment from the position.
+     */
+    private static byte[] readRecord(FileChannel channel, long position, long available) throws IOException {
+        if (available < recordHeaderSize) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(recordHeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+        if (!readFully(channel, header, position)) {
+            return null;
+        }
+        int length = header.getInt(0);
+        if (length <= 0 || length > available - recordHeaderSize) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        if (!readFully(channel, ByteBuffer.wrap(payload), position + recordHeaderSize)) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        return (int)crc.getValue() == header.getInt(4) ? payload : null;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long readCursor() throws IOException {
+        File file = new File(directory, cursorName);
+        if (!file.exists()) {
+            return -1;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            if (!readFully(raf.getChannel(), buffer, 0)) {
+                return -1;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 0, 8);
+            return (int)crc.getValue() == buffer.getInt(8) ? buffer.getLong(0) : -1;
+        }
+        finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package it.unipi.ing.falldetection.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Gzips the events in the {@link BinaryEventFormat} and appends them to an {@link EventJournal} on
+ * a thread of its own, so that the thread submitting them (the one delivering the samples too) is
+ * never delayed by the storage.
+ * <p>
+ * The queue of the events waiting to be written is bounded. When it is full, a denied event is
+ * dropped rather than a confirmed one: the submitted event if denied, otherwise the oldest denied
+ * event queued. If all of them are confirmed, the submitted event is dropped, since the storage
+ * is evidently not keeping up. The snapshot of a dropped event is released. {@link #close} writes
+ * the events still queued before returning.
+ */
+public class EventWriter implements Runnable
+{
+    private final EventJournal journal;
+    private final int capacity;
+    private final Thread thread;
+    private final LinkedList<Event> queue = new LinkedList<Event>();
+
+    private boolean closed = false;
+    private boolean writing = false;
+    private long droppedCount = 0;
+    private long failedCount = 0;
+
+    private static class Event
+    {
+        final boolean confirmed;
+        final String user;
+        final String notes;
+        final SensorDataBuffer snapshot;
+
+        Event(boolean confirmed, String user, String notes, SensorDataBuffer snapshot) {
+            this.confirmed = confirmed;
+            this.user = user;
+            this.notes = notes;
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * Constructs a new instance of EventWriter and starts its thread.
+     *
+     * @param capacity
+     *            The maximum number of events waiting to be written.
+     */
+    public EventWriter(EventJournal journal, int capacity)
+    {
+        this.journal = journal;
+        this.capacity = capacity;
+        this.thread = new Thread(this, getClass().getSimpleName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues an event to be written. Never blocks.
+     *
+     * @param snapshot
+     *            The samples of the event. A view over the ring of a {@link SensorDataManager} is
+     *            copied out of it on the thread of the writer, unless the ring does it first.
+     * @return {@code false} if the event has been dropped, the queue being full or the writer
+     *         closed.
+     */
+    public synchronized boolean submit(boolean confirmed, String user, String notes, SensorDataBuffer snapshot) {
+        if (closed) {
+            droppedCount++;
+            snapshot.release();
+            return false;
+        }
+        if (queue.size() >= capacity) {
+            if (!confirmed || !dropDenied()) {
+                droppedCount++;
+                snapshot.release();
+                return false;
+            }
+        }
+        queue.add(new Event(confirmed, user, notes, snapshot));
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Gets the number of events dropped so far.
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Gets the number of events that could not be written so far.
+     */
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * Stops accepting events and waits for the queued ones to be written.
+     *
+     * @param timeout
+     *            The maximum time to wait in milliseconds.
+     * @return {@code true} if all the events have been written in time.
+     */
+    public synchronized boolean close(long timeout) throws InterruptedException {
+        closed = true;
+        notifyAll();
+        long end = System.currentTimeMillis() + timeout;
+        while (!queue.isEmpty() || writing) {
+            long now = System.currentTimeMillis();
+            if (now >= end) {
+                return false;
+            }
+            wait(end - now);
+        }
+        return true;
+    }
+
+    /**
+     * Called on the thread of the writer after an event has been appended to the journal.
+     */
+    protected void onWritten() {
+    }
+
+    /**
+     * Called on the thread of the writer when an event cannot be written, either because the
+     * journal failed or because the event could not be encoded. The event is lost.
+     */
+    protected void onWriteFailed(Exception e) {
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Event event;
+            synchronized (this) {
+                writing = false;
+                notifyAll();
+                try {
+                    while (queue.isEmpty() && !closed) {
+                        wait();
+                    }
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                event = queue.removeFirst();
+                writing = true;
+            }
+
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+                BinaryEventFormat.writeCompressed(bytes, event.confirmed, event.user, event.notes, event.snapshot);
+                journal.append(bytes.toByteArray());
+            }
+            catch (IOException e) {
+                failed(event, e);
+                continue;
+            }
+            catch (RuntimeException e) {
+                failed(event, e);
+                continue;
+            }
+            onWritten();
+        }
+    }
+
+    private void failed(Event event, Exception e) {
+        synchronized (this) {
+            failedCount++;
+        }
+        event.snapshot.release();
+        onWriteFailed(e);
+    }
+
+    /**
+     * Removes the oldest denied event from the queue.
+     *
+     * @return {@code false} if all the queued events are confirmed.
+     */
+    private boolean dropDenied() {
+        for (Iterator<Event> i = queue.iterator(); i.hasNext();) {
+            Event event = i.next();
+            if (!event.confirmed) {
+                i.remove();
+                droppedCount++;
+                event.snapshot.release();
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -8,6 +8,8 @@ public class FallDetectionEvent
     public String notes;
     public SensorDataBuffer snapshot;
 
+    private OnSnapshotCompletedListener snapshotListener;
+
     public FallDetectionEvent(long timestamp, float reliability, SensorDataBuffer snapshot)
     {
         this.timestamp = timestamp;
@@ -19,4 +21,33 @@ public class FallDetectionEvent
         this.confirmed = confirmed;
         this.notes = info;
     }
+
+    /**
+     * Sets the snapshot of an event fired before the end of its capture window.
+     */
+    public void completeSnapshot(SensorDataBuffer snapshot) {
+        OnSnapshotCompletedListener listener;
+        synchronized (this) {
+            this.snapshot = snapshot;
+            listener = snapshotListener;
+        }
+        if (listener != null) {
+            listener.onSnapshotCompleted(this);
+        }
+    }
+
+    /**
+     * Sets the listener to be called when the snapshot is available. It is called immediately if
+     * the snapshot is already available, otherwise by the thread completing the capture window.
+     */
+    public void setOnSnapshotCompletedListener(OnSnapshotCompletedListener listener) {
+        boolean completed;
+        synchronized (this) {
+            snapshotListener = listener;
+            completed = snapshot != null;
+        }
+        if (completed && listener != null) {
+            listener.onSnapshotCompleted(this);
+        }
+    }
 }
@@ -0,0 +1,297 @@
+package it.unipi.ing.falldetection.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A trained classifier scoring the features computed by {@link SlidingWindowFeatures}: either a
+ * logistic regression or an ensemble of decision trees, stored as flat arrays so that it can be
+ * evaluated without allocating any object.
+ * <p>
+ * The model file is little-endian and is laid out as follows:
+ *
+ * <pre>
+ * int      magic ('FDMD'), version (1), kind (0 = logistic regression, 1 = tree ensemble)
+ * int      window count W, then W window lengths (in samples)
+ * int      feature count F (must be W * SlidingWindowFeatures.FEATURE_COUNT)
+ * float    threshold on the score to fire an event
+ * float    bias
+ * float[F] means, float[F] scales: each feature is standardized as (f - mean) / scale
+ * kind 0:  float[F] weights
+ * kind 1:  int tree count T, int node count N, int max depth, int[T] roots,
+ *          int[N] features (-1 for a leaf), float[N] splits, int[N] left, int[N] right,
+ *          float[N] values (of the leaves)
+ * </pre>
+ *
+ * In both cases the score is the logistic function of the bias plus the weighted sum of the
+ * standardized features (kind 0) or plus the sum of the values of the leaves reached in each tree
+ * (kind 1), so it can be used as the reliability of an event.
+ * <p>
+ * The nodes of the trees are stored so that the children of a node always follow it: a valid
+ * ensemble has no cycle, and {@link #score} never reads outside of the arrays.
+ */
+public class FallDetectionModel
+{
+    public static final int MAGIC = 0x444D4446; // "FDMD" in little-endian
+    public static final int VERSION = 1;
+    public static final int LOGISTIC_REGRESSION = 0;
+    public static final int TREE_ENSEMBLE = 1;
+
+    public final int kind;
+    public final int[] windowLengths;
+    public final float threshold;
+    public final float bias;
+    public final float[] means;
+    public final float[] scales;
+
+    // Logistic regression
+    public final float[] weights;
+
+    // Tree ensemble
+    public final int maxDepth;
+    public final int[] roots;
+    public final int[] features;
+    public final float[] splits;
+    public final int[] left;
+    public final int[] right;
+    public final float[] values;
+
+    /**
+     * Constructs a logistic regression model.
+     */
+    public FallDetectionModel(int[] windowLengths, float threshold, float bias, float[] means, float[] scales,
+            float[] weights)
+    {
+        this(LOGISTIC_REGRESSION, windowLengths, threshold, bias, means, scales, weights, 0, null, null, null, null,
+                null, null);
+    }
+
+    /**
+     * Constructs a tree ensemble model.
+     */
+    public FallDetectionModel(int[] windowLengths, float threshold, float bias, float[] means, float[] scales,
+            int maxDepth, int[] roots, int[] features, float[] splits, int[] left, int[] right, float[] values)
+    {
+        this(TREE_ENSEMBLE, windowLengths, threshold, bias, means, scales, null, maxDepth, roots, features, splits,
+                left, right, values);
+    }
+
+    private FallDetectionModel(int kind, int[] windowLengths, float threshold, float bias, float[] means,
+            float[] scales, float[] weights, int maxDepth, int[] roots, int[] features, float[] splits, int[] left,
+            int[] right, float[] values)
+    {
+        this.kind = kind;
+        this.windowLengths = windowLengths;
+        this.threshold = threshold;
+        this.bias = bias;
+        this.means = means;
+        this.scales = scales;
+        this.weights = weights;
+        this.maxDepth = maxDepth;
+        this.roots = roots;
+        this.features = features;
+        this.splits = splits;
+        this.left = left;
+        this.right = right;
+        this.values = values;
+    }
+
+    /**
+     * Gets the number of features the model expects.
+     */
+    public int getFeatureCount() {
+        return means.length;
+    }
+
+    /**
+     * Loads a model by mapping its file into memory.
+     *
+     * @throws IOException
+     *             If the file cannot be read or is not a valid model.
+     */
+    public static FallDetectionModel load(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a fall detection model: " + file);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported model version: " + version);
+            }
+            int kind = buffer.getInt();
+            int[] windowLengths = readInts(buffer, buffer.getInt());
+            int featureCount = buffer.getInt();
+            if (featureCount != windowLengths.length * SlidingWindowFeatures.FEATURE_COUNT) {
+                throw new IOException("Invalid feature count: " + featureCount);
+            }
+            float threshold = buffer.getFloat();
+            float bias = buffer.getFloat();
+            float[] means = readFloats(buffer, featureCount);
+            float[] scales = readFloats(buffer, featureCount);
+
+            if (kind == LOGISTIC_REGRESSION) {
+                float[] weights = readFloats(buffer, featureCount);
+                return new FallDetectionModel(windowLengths, threshold, bias, means, scales, weights);
+            }
+            else if (kind == TREE_ENSEMBLE) {
+                int treeCount = buffer.getInt();
+                int nodeCount = buffer.getInt();
+                int maxDepth = buffer.getInt();
+                int[] roots = readInts(buffer, treeCount);
+                int[] features = readInts(buffer, nodeCount);
+                float[] splits = readFloats(buffer, nodeCount);
+                int[] left = readInts(buffer, nodeCount);
+                int[] right = readInts(buffer, nodeCount);
+                float[] values = readFloats(buffer, nodeCount);
+                checkTrees(roots, features, left, right, featureCount);
+                return new FallDetectionModel(windowLengths, threshold, bias, means, scales, maxDepth, roots,
+                        features, splits, left, right, values);
+            }
+            throw new IOException("Unknown model kind: " + kind);
+        }
+        catch (RuntimeException e) {
+            // A truncated file or a negative count
+            throw new IOException("Invalid model file: " + file + " (" + e + ")");
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the model in the format read by {@link #load}.
+     */
+    public void save(File file) throws IOException {
+        int featureCount = getFeatureCount();
+        int size = 4 * (7 + windowLengths.length + 2 * featureCount);
+        if (kind == LOGISTIC_REGRESSION) {
+            size += 4 * featureCount;
+        }
+        else {
+            size += 4 * (3 + roots.length + 5 * features.length);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(kind);
+        buffer.putInt(windowLengths.length);
+        putInts(buffer, windowLengths);
+        buffer.putInt(featureCount).putFloat(threshold).putFloat(bias);
+        putFloats(buffer, means);
+        putFloats(buffer, scales);
+        if (kind == LOGISTIC_REGRESSION) {
+            putFloats(buffer, weights);
+        }
+        else {
+            buffer.putInt(roots.length).putInt(features.length).putInt(maxDepth);
+            putInts(buffer, roots);
+            putInts(buffer, features);
+            putFloats(buffer, splits);
+            putInts(buffer, left);
+            putInts(buffer, right);
+            putFloats(buffer, values);
+        }
+        buffer.flip();
+
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            FileChannel channel = fos.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Checks that the roots are nodes, that the features of the internal nodes are in range and
+     * that their children follow them.
+     *
+     * @throws IOException
+     *             If the trees are malformed.
+     */
+    private static void checkTrees(int[] roots, int[] features, int[] left, int[] right, int featureCount)
+            throws IOException
+    {
+        int nodeCount = features.length;
+        for (int t = 0; t < roots.length; t++) {
+            if (roots[t] < 0 || roots[t] >= nodeCount) {
+                throw new IOException("Invalid root of tree " + t + ": " + roots[t]);
+            }
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            int f = features[node];
+            if (f == -1) {
+                continue;
+            }
+            if (f < 0 || f >= featureCount) {
+                throw new IOException("Invalid feature of node " + node + ": " + f);
+            }
+            if (left[node] <= node || left[node] >= nodeCount || right[node] <= node || right[node] >= nodeCount) {
+                throw new IOException("Invalid children of node " + node + ": " + left[node] + ", " + right[node]);
+            }
+        }
+    }
+
+    private static void putInts(ByteBuffer buffer, int[] array) {
+        buffer.asIntBuffer().put(array);
+        buffer.position(buffer.position() + 4 * array.length);
+    }
+
+    private static void putFloats(ByteBuffer buffer, float[] array) {
+        buffer.asFloatBuffer().put(array);
+        buffer.position(buffer.position() + 4 * array.length);
+    }
+
+    private static int[] readInts(MappedByteBuffer buffer, int count) {
+        int[] array = new int[count];
+        buffer.asIntBuffer().get(array);
+        buffer.position(buffer.position() + 4 * count);
+        return array;
+    }
+
+    private static float[] readFloats(MappedByteBuffer buffer, int count) {
+        float[] array = new float[count];
+        buffer.asFloatBuffer().get(array);
+        buffer.position(buffer.position() + 4 * count);
+        return array;
+    }
+
+    /**
+     * Computes the score of the given features, in the range [0, 1]. The cost is bounded by the
+     * number of features (logistic regression) or by the number of trees times their maximum depth
+     * (tree ensemble), and no object is allocated.
+     */
+    public float score(float[] x) {
+        double sum = bias;
+        if (kind == LOGISTIC_REGRESSION) {
+            for (int i = 0; i < weights.length; i++) {
+                sum += weights[i] * (x[i] - means[i]) / scales[i];
+            }
+        }
+        else {
+            for (int t = 0; t < roots.length; t++) {
+                int node = roots[t];
+                // The trees have no cycle, the depth limit only bounds the cost
+                for (int depth = 0; features[node] >= 0 && depth < maxDepth; depth++) {
+                    int f = features[node];
+                    node = (x[f] - means[f]) / scales[f] <= splits[node] ? left[node] : right[node];
+                }
+                sum += values[node];
+            }
+        }
+        return (float)(1 / (1 + Math.exp(-sum)));
+    }
+}
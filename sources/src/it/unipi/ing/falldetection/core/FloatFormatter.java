@@ -0,0 +1,312 @@
+package it.unipi.ing.falldetection.core;
+
+import java.math.BigInteger;
+
+/**
+ * Formats floats as the shortest decimal that parses back to the same float, without allocating:
+ * the digits are written into a byte array, in the layout of {@link Float#toString} ("9.81",
+ * "-0.5", "1.0E-5"), so that any parser of Java floats reads them.
+ * <p>
+ * The digits are computed with the Ryu algorithm (Ulf Adams, "Ryu: fast float-to-string
+ * conversion", PLDI 2018), with the same 64-bit multipliers: the interval of the decimals rounding
+ * to the float is scaled by a power of 5 and 2 in integer arithmetic, and digits are removed while
+ * both ends of the interval still differ. The multipliers are computed when the class is loaded.
+ */
+final class FloatFormatter
+{
+    /**
+     * The maximum number of bytes written for a float ("-1.2345678E-45").
+     */
+    public static final int MAX_LENGTH = 15;
+
+    private static final int mantissaBits = 23;
+    private static final int exponentBits = 8;
+    private static final int bias = 127;
+
+    private static final int pow5InvBitCount = 59;
+    private static final int pow5BitCount = 61;
+    private static final long[] pow5InvSplit = new long[31];
+    private static final long[] pow5Split = new long[47];
+
+    static {
+        BigInteger five = BigInteger.valueOf(5);
+        for (int i = 0; i < pow5Split.length; i++) {
+            BigInteger pow = five.pow(i);
+            int length = pow.bitLength();
+            pow5Split[i] = length >= pow5BitCount ? pow.shiftRight(length - pow5BitCount).longValue()
+                    : pow.shiftLeft(pow5BitCount - length).longValue();
+            if (i < pow5InvSplit.length) {
+                int j = length - 1 + pow5InvBitCount;
+                pow5InvSplit[i] = BigInteger.ONE.shiftLeft(j).divide(pow).add(BigInteger.ONE).longValue();
+            }
+        }
+    }
+
+    private FloatFormatter()
+    {
+    }
+
+    /**
+     * Writes a float at the given position of the array, which must have at least
+     * {@link #MAX_LENGTH} bytes left.
+     *
+     * @return The position after the last byte written.
+     */
+    public static int format(float value, byte[] out, int position) {
+        int bits = Float.floatToRawIntBits(value);
+        int ieeeMantissa = bits & ((1 << mantissaBits) - 1);
+        int ieeeExponent = (bits >>> mantissaBits) & ((1 << exponentBits) - 1);
+        boolean negative = bits < 0;
+
+        if (ieeeExponent == (1 << exponentBits) - 1) {
+            if (ieeeMantissa != 0) {
+                return ascii("NaN", out, position);
+            }
+            return ascii(negative ? "-Infinity" : "Infinity", out, position);
+        }
+        if (negative) {
+            out[position++] = '-';
+        }
+        if (ieeeExponent == 0 && ieeeMantissa == 0) {
+            out[position++] = '0';
+            out[position++] = '.';
+            out[position++] = '0';
+            return position;
+        }
+
+        // Decimal digits and exponent of the shortest representation
+        int e2;
+        long m2;
+        if (ieeeExponent == 0) {
+            e2 = 1 - bias - mantissaBits - 2;
+            m2 = ieeeMantissa;
+        }
+        else {
+            e2 = ieeeExponent - bias - mantissaBits - 2;
+            m2 = (1L << mantissaBits) | ieeeMantissa;
+        }
+        boolean acceptBounds = (m2 & 1) == 0;
+
+        long mv = 4 * m2;
+        long mp = 4 * m2 + 2;
+        int mmShift = ieeeMantissa != 0 || ieeeExponent <= 1 ? 1 : 0;
+        long mm = 4 * m2 - 1 - mmShift;
+
+        long vr, vp, vm;
+        int e10;
+        boolean vmIsTrailingZeros = false;
+        boolean vrIsTrailingZeros = false;
+        int lastRemovedDigit = 0;
+        if (e2 >= 0) {
+            int q = log10Pow2(e2);
+            e10 = q;
+            int k = pow5InvBitCount + pow5Bits(q) - 1;
+            int i = -e2 + q + k;
+            vr = mulShift(mv, pow5InvSplit[q], i);
+            vp = mulShift(mp, pow5InvSplit[q], i);
+            vm = mulShift(mm, pow5InvSplit[q], i);
+            if (q != 0 && (vp - 1) / 10 <= vm / 10) {
+                int l = pow5InvBitCount + pow5Bits(q - 1) - 1;
+                lastRemovedDigit = (int)(mulShift(mv, pow5InvSplit[q - 1], -e2 + q - 1 + l) % 10);
+            }
+            if (q <= 9) {
+                if (mv % 5 == 0) {
+                    vrIsTrailingZeros = pow5Factor(mv) >= q;
+                }
+                else if (acceptBounds) {
+                    vmIsTrailingZeros = pow5Factor(mm) >= q;
+                }
+                else if (pow5Factor(mp) >= q) {
+                    vp--;
+                }
+            }
+        }
+        else {
+            int q = log10Pow5(-e2);
+            e10 = q + e2;
+            int i = -e2 - q;
+            int k = pow5Bits(i) - pow5BitCount;
+            int j = q - k;
+            vr = mulShift(mv, pow5Split[i], j);
+            vp = mulShift(mp, pow5Split[i], j);
+            vm = mulShift(mm, pow5Split[i], j);
+            if (q != 0 && (vp - 1) / 10 <= vm / 10) {
+                j = q - 1 - (pow5Bits(i + 1) - pow5BitCount);
+                lastRemovedDigit = (int)(mulShift(mv, pow5Split[i + 1], j) % 10);
+            }
+            if (q <= 1) {
+                vrIsTrailingZeros = true;
+                if (acceptBounds) {
+                    vmIsTrailingZeros = mmShift == 1;
+                }
+                else {
+                    vp--;
+                }
+            }
+            else if (q < 31) {
+                vrIsTrailingZeros = (mv & ((1L << (q - 1)) - 1)) == 0;
+            }
+        }
+
+        int removed = 0;
+        long output;
+        if (vmIsTrailingZeros || vrIsTrailingZeros) {
+            while (vp / 10 > vm / 10) {
+                vmIsTrailingZeros &= vm % 10 == 0;
+                vrIsTrailingZeros &= lastRemovedDigit == 0;
+                lastRemovedDigit = (int)(vr % 10);
+                vp /= 10;
+                vr /= 10;
+                vm /= 10;
+                removed++;
+            }
+            if (vmIsTrailingZeros) {
+                while (vm % 10 == 0) {
+                    vrIsTrailingZeros &= lastRemovedDigit == 0;
+                    lastRemovedDigit = (int)(vr % 10);
+                    vp /= 10;
+                    vr /= 10;
+                    vm /= 10;
+                    removed++;
+                }
+            }
+            if (vrIsTrailingZeros && lastRemovedDigit == 5 && vr % 2 == 0) {
+                // Round even
+                lastRemovedDigit = 4;
+            }
+            output = vr + ((vr == vm && (!acceptBounds || !vmIsTrailingZeros)) || lastRemovedDigit >= 5 ? 1 : 0);
+        }
+        else {
+            while (vp / 10 > vm / 10) {
+                lastRemovedDigit = (int)(vr % 10);
+                vp /= 10;
+                vr /= 10;
+                vm /= 10;
+                removed++;
+            }
+            output = vr + (vr == vm || lastRemovedDigit >= 5 ? 1 : 0);
+        }
+        int exponent = e10 + removed;
+
+        // Layout of Float.toString: plain in [1e-3, 1e7), scientific otherwise
+        int length = decimalLength(output);
+        int scientific = exponent + length - 1;
+        if (scientific >= -3 && scientific < 7) {
+            if (scientific < 0) {
+                // 0.00ddd
+                out[position++] = '0';
+                out[position++] = '.';
+                for (int z = -1; z > scientific; z--) {
+                    out[position++] = '0';
+                }
+                position = digits(output, length, out, position);
+            }
+            else if (exponent >= 0) {
+                // ddd000.0
+                position = digits(output, length, out, position);
+                for (int z = 0; z < exponent; z++) {
+                    out[position++] = '0';
+                }
+                out[position++] = '.';
+                out[position++] = '0';
+            }
+            else {
+                // dd.ddd
+                int integerLength = length + exponent;
+                digits(output, length, out, position + 1);
+                System.arraycopy(out, position + 1, out, position, integerLength);
+                out[position + integerLength] = '.';
+                position += length + 1;
+            }
+        }
+        else {
+            // d.dddE-n
+            digits(output, length, out, position + 1);
+            out[position] = out[position + 1];
+            out[position + 1] = '.';
+            position += length + 1;
+            if (length == 1) {
+                out[position++] = '0';
+            }
+            out[position++] = 'E';
+            if (scientific < 0) {
+                out[position++] = '-';
+                scientific = -scientific;
+            }
+            if (scientific >= 10) {
+                out[position++] = (byte)('0' + scientific / 10);
+            }
+            out[position++] = (byte)('0' + scientific % 10);
+        }
+        return position;
+    }
+
+    /**
+     * Writes the decimal digits of a positive number, given its number of digits.
+     */
+    private static int digits(long value, int length, byte[] out, int position) {
+        for (int i = position + length - 1; i >= position; i--) {
+            out[i] = (byte)('0' + value % 10);
+            value /= 10;
+        }
+        return position + length;
+    }
+
+    private static int ascii(String text, byte[] out, int position) {
+        for (int i = 0; i < text.length(); i++) {
+            out[position++] = (byte)text.charAt(i);
+        }
+        return position;
+    }
+
+    private static int decimalLength(long value) {
+        int length = 1;
+        for (long limit = 10; value >= limit && length < 19; limit *= 10) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Multiplies by a 64-bit factor and shifts right, in 32-bit halves so that nothing overflows.
+     * The value is less than 2^32.
+     */
+    private static long mulShift(long m, long factor, int shift) {
+        long factorLo = factor & 0xFFFFFFFFL;
+        long factorHi = factor >>> 32;
+        long bits0 = m * factorLo;
+        long bits1 = m * factorHi;
+        long sum = (bits0 >>> 32) + bits1;
+        return sum >>> (shift - 32);
+    }
+
+    private static int pow5Factor(long value) {
+        int count = 0;
+        while (value % 5 == 0) {
+            value /= 5;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of bits of 5^e (for e in [0, 3528]).
+     */
+    private static int pow5Bits(int e) {
+        return ((e * 1217359) >>> 19) + 1;
+    }
+
+    /**
+     * Gets floor(log10(2^e)) (for e in [0, 1650]).
+     */
+    private static int log10Pow2(int e) {
+        return (e * 78913) >>> 18;
+    }
+
+    /**
+     * Gets floor(log10(5^e)) (for e in [0, 2620]).
+     */
+    private static int log10Pow5(int e) {
+        return (e * 732923) >>> 20;
+    }
+}
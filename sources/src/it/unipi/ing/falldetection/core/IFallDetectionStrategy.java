@@ -5,4 +5,18 @@ public interface IFallDetectionStrategy
     void addListener(OnFallDetectedListener listener);
 
     void removeListener(OnFallDetectedListener listener);
+
+    /**
+     * Lets the time-based decisions progress even when no sample is received, by comparing the
+     * deadlines against the given wall-clock time instead of the timestamps of the samples.
+     *
+     * @param nanoTime
+     *            The current time, as returned by {@link System#nanoTime}.
+     */
+    void poll(long nanoTime);
+
+    /**
+     * Stops receiving samples from the data manager. The strategy cannot be used anymore.
+     */
+    void detach();
 }
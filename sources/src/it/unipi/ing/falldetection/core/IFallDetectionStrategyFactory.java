@@ -0,0 +1,9 @@
+package it.unipi.ing.falldetection.core;
+
+public interface IFallDetectionStrategyFactory
+{
+    /**
+     * Creates a new strategy fed by the given data manager.
+     */
+    IFallDetectionStrategy create(SensorDataManager dataManager);
+}
@@ -1,6 +1,12 @@
 package it.unipi.ing.falldetection.core;
 
+/**
+ * Receives the samples fed to a {@link SensorDataManager}. Each sample is delivered through the
+ * method matching the {@code feed} overload used by the producer.
+ */
 public interface ISensorDataListener
 {
     void onDataAvailable(SensorDataManager sender, SensorData data);
+
+    void onDataAvailable(SensorDataManager sender, long timestamp, float x, float y, float z, int accuracy);
 }
@@ -7,4 +7,10 @@ public interface ISensorDataProvider
 	public void removeListener(ISensorDataListener listener);
 
     public void feed(SensorData data);
+
+    /**
+     * Feeds a three-axis sample without wrapping it into a {@link SensorData}, so that the samples
+     * can be delivered without allocating any object.
+     */
+    public void feed(long timestamp, float x, float y, float z, int accuracy);
 }
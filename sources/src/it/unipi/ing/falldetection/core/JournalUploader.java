@@ -0,0 +1,338 @@
+package it.unipi.ing.falldetection.core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Uploads the records of an {@link EventJournal}, each one a gzipped event, in batches (see
+ * {@link BinaryEventFormat}), and moves the cursor of the journal past the events the server
+ * acknowledges.
+ * <p>
+ * A batch larger than the chunk size is uploaded in resumable chunks: each request carries the
+ * id of the batch ({@code Upload-Id}), the total length ({@code Upload-Length}) and the position of
+ * the chunk ({@code Upload-Offset}); the server answers each chunk with the number of bytes it has
+ * received so far. If the connection breaks, the next attempt resumes from there instead of
+ * starting the batch over, as long as the batch is the same.
+ * <p>
+ * An event can also be uploaded directly with {@link #uploadEvent}, without going through the
+ * journal.
+ * <p>
+ * Only 408, 429 and 5xx are taken as transient failures. Any other answer outside the protocol
+ * (another status, or a batch answered without a status per event) means that the URL does not
+ * point to an ingestion server, and is reported with a {@link ProtocolException}, since trying
+ * again would get the same answer.
+ */
+public class JournalUploader
+{
+    private static final int connectTimeout = 30 * 1000;
+    private static final int readTimeout = 60 * 1000;
+    private static final int maxConflicts = 3;
+
+    private final EventJournal journal;
+    private final String postUrl;
+    private final String userAgent;
+    private final long maxBatchSize;
+    private final int chunkSize;
+
+    /**
+     * Identifies the batches of this instance to the server.
+     */
+    private final String clientId = UUID.randomUUID().toString();
+
+    /**
+     * The batch being uploaded in chunks, kept across failed attempts to resume it: the offset of
+     * its first record (-1 if none), the number of records, the length of the body and the number
+     * of bytes the server has acknowledged.
+     */
+    private long pendingOffset = -1;
+    private int pendingCount;
+    private long pendingLength;
+    private long pendingAcknowledged;
+
+    private volatile long uploadedCount = 0;
+    private volatile long rejectedCount = 0;
+
+    /**
+     * Constructs a new instance of JournalUploader.
+     *
+     * @param maxBatchSize
+     *            The maximum number of bytes of events uploaded by a batch.
+     * @param chunkSize
+     *            The maximum number of bytes uploaded by a single request.
+     */
+    public JournalUploader(EventJournal journal, String postUrl, String userAgent, long maxBatchSize, int chunkSize)
+    {
+        this.journal = journal;
+        this.postUrl = postUrl;
+        this.userAgent = userAgent;
+        this.maxBatchSize = maxBatchSize;
+        this.chunkSize = chunkSize;
+    }
+
+    public EventJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Gets the number of events stored by the server so far.
+     */
+    public long getUploadedCount() {
+        return uploadedCount;
+    }
+
+    /**
+     * Gets the number of events the server rejected as malformed so far. They are dropped, since
+     * uploading them again would not help.
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Uploads the journal up to its end.
+     *
+     * @return {@code false} if the server left some events without a status, so that they have to
+     *         be uploaded again later.
+     * @throws ProtocolException
+     *             If the server does not follow the protocol.
+     * @throws IOException
+     *             If the server cannot be reached or fails.
+     */
+    public synchronized boolean upload() throws IOException {
+        while (!journal.isDrained()) {
+            List<EventJournal.Entry> entries = journal.read(maxBatchSize);
+            if (entries.isEmpty()) {
+                continue;
+            }
+            // The batch interrupted last time is resumed only if it is the same
+            if (entries.get(0).offset == pendingOffset && entries.size() >= pendingCount) {
+                entries = entries.subList(0, pendingCount);
+            }
+
+            int done = uploadBatch(entries);
+            if (done > 0) {
+                journal.commit(entries.get(done - 1).next);
+            }
+            if (done < entries.size()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Uploads a single event directly, gzipped in the {@link BinaryEventFormat}. The event is
+     * serialized straight into the body of the request, which is sent in chunks since its length
+     * is not known in advance.
+     *
+     * @return {@code true} if the server stored the event or rejected it as malformed, in which
+     *         case it need not be uploaded again.
+     * @throws IOException
+     *             If the server cannot be reached.
+     */
+    public boolean uploadEvent(boolean confirmed, String user, String notes, SensorDataBuffer snapshot)
+            throws IOException
+    {
+        HttpURLConnection con = open(BinaryEventFormat.CONTENT_TYPE);
+        con.setRequestProperty("Content-Encoding", "gzip");
+        con.setChunkedStreamingMode(chunkSize);
+        OutputStream out = con.getOutputStream();
+        BinaryEventFormat.writeCompressed(out, confirmed, user, notes, snapshot);
+        out.close();
+
+        int code = con.getResponseCode();
+        consume(con);
+        if (code == 200) {
+            uploadedCount++;
+        }
+        else if (code == 400) {
+            rejectedCount++;
+        }
+        return code == 200 || code == 400;
+    }
+
+    /**
+     * Uploads a batch, in chunks if needed.
+     *
+     * @return The number of leading events that need not be uploaded again: stored by the
+     *         server, or rejected as malformed.
+     */
+    private int uploadBatch(List<EventJournal.Entry> entries) throws IOException {
+        long length = 0;
+        for (EventJournal.Entry e : entries) {
+            length += BinaryEventFormat.FRAME_HEADER_SIZE + e.payload.length;
+        }
+
+        if (length <= chunkSize) {
+            pendingOffset = -1;
+            HttpURLConnection con = open(BinaryEventFormat.BATCH_CONTENT_TYPE);
+            con.setFixedLengthStreamingMode((int)length);
+            OutputStream out = con.getOutputStream();
+            writeBody(out, entries, 0, length);
+            out.close();
+            return readStatuses(con, entries);
+        }
+
+        long first = entries.get(0).offset;
+        if (pendingOffset != first || pendingCount != entries.size() || pendingLength != length) {
+            pendingOffset = first;
+            pendingCount = entries.size();
+            pendingLength = length;
+            pendingAcknowledged = 0;
+        }
+        String id = clientId + "-" + first + "-" + length;
+        int conflicts = 0;
+        while (true) {
+            long from = pendingAcknowledged;
+            long to = Math.min(length, from + chunkSize);
+            HttpURLConnection con = open(BinaryEventFormat.BATCH_CONTENT_TYPE);
+            con.setRequestProperty("Upload-Id", id);
+            con.setRequestProperty("Upload-Offset", Long.toString(from));
+            con.setRequestProperty("Upload-Length", Long.toString(length));
+            con.setFixedLengthStreamingMode((int)(to - from));
+            OutputStream out = con.getOutputStream();
+            writeBody(out, entries, from, to);
+            out.close();
+
+            int code = con.getResponseCode();
+            if (code == 200) {
+                pendingOffset = -1;
+                return readStatuses(con, entries);
+            }
+            String acknowledged = con.getHeaderField("Upload-Offset");
+            consume(con);
+            if (code != 202 && code != 409) {
+                throw failure("Chunk rejected", code);
+            }
+            if (acknowledged == null) {
+                throw new ProtocolException("Chunk answered without Upload-Offset");
+            }
+            if (code == 409 && ++conflicts > maxConflicts) {
+                throw new IOException("Cannot agree on the offset of the upload");
+            }
+            try {
+                pendingAcknowledged = Long.parseLong(acknowledged);
+            }
+            catch (NumberFormatException e) {
+                throw new IOException("Invalid offset: " + acknowledged);
+            }
+            if (pendingAcknowledged < 0 || pendingAcknowledged >= length) {
+                pendingAcknowledged = 0;
+                throw new IOException("Invalid offset: " + acknowledged);
+            }
+        }
+    }
+
+    private HttpURLConnection open(String contentType) throws IOException {
+        HttpURLConnection con = (HttpURLConnection)new URL(postUrl).openConnection();
+        con.setRequestMethod("POST");
+        con.setRequestProperty("User-Agent", userAgent);
+        con.setRequestProperty("Content-Type", contentType);
+        con.setConnectTimeout(connectTimeout);
+        con.setReadTimeout(readTimeout);
+        con.setDoOutput(true);
+        return con;
+    }
+
+    /**
+     * Writes the bytes from {@code from} to {@code to} of the body of a batch, without building
+     * the whole body.
+     */
+    private static void writeBody(OutputStream out, List<EventJournal.Entry> entries, long from, long to)
+            throws IOException
+    {
+        long position = 0;
+        for (int i = 0; i < entries.size() && position < to; i++) {
+            byte[] payload = entries.get(i).payload;
+            byte[] header = BinaryEventFormat.frameHeader(payload.length, BinaryEventFormat.FRAME_GZIP);
+            position = writeRange(out, header, position, from, to);
+            position = writeRange(out, payload, position, from, to);
+        }
+    }
+
+    private static long writeRange(OutputStream out, byte[] bytes, long position, long from, long to)
+            throws IOException
+    {
+        long start = Math.max(from, position);
+        long end = Math.min(to, position + bytes.length);
+        if (start < end) {
+            out.write(bytes, (int)(start - position), (int)(end - start));
+        }
+        return position + bytes.length;
+    }
+
+    /**
+     * Reads the status of each event of a batch, in order.
+     */
+    private int readStatuses(HttpURLConnection con, List<EventJournal.Entry> entries) throws IOException {
+        if (con.getResponseCode() != 200) {
+            int code = con.getResponseCode();
+            consume(con);
+            throw failure("Batch rejected", code);
+        }
+        int done = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(con.getInputStream(), "US-ASCII"));
+        try {
+            String line;
+            while (done < entries.size() && (line = reader.readLine()) != null) {
+                if (line.equals("200")) {
+                    uploadedCount++;
+                }
+                else if (line.equals("400")) {
+                    rejectedCount++;
+                }
+                else {
+                    break;
+                }
+                done++;
+            }
+            // Reading the response to its end lets the connection be reused
+            while (reader.read(new char[256]) != -1) {
+            }
+        }
+        finally {
+            reader.close();
+        }
+        if (done == 0) {
+            throw new ProtocolException("Batch answered without a status per event");
+        }
+        return done;
+    }
+
+    /**
+     * Gets the exception for a request that failed with the given status: a
+     * {@link ProtocolException} unless the status is a transient failure.
+     */
+    private static IOException failure(String message, int code) {
+        if (code == 408 || code == 429 || code >= 500) {
+            return new IOException(message + " with status " + code);
+        }
+        return new ProtocolException(message + " with status " + code);
+    }
+
+    /**
+     * Reads the response to its end and closes it, so that the connection can be reused.
+     */
+    private static void consume(HttpURLConnection con) {
+        try {
+            InputStream in = con.getResponseCode() < 400 ? con.getInputStream() : con.getErrorStream();
+            if (in != null) {
+                byte[] discard = new byte[256];
+                while (in.read(discard) != -1) {
+                }
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            // The connection is not reused
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package it.unipi.ing.falldetection.core;
+
+/**
+ * Detects a fall as a sequence of phases: an optional free fall, an impact, a settling interval
+ * and a period of inactivity, during which the orientation of the device is compared with the one
+ * it had before the fall.
+ * <p>
+ * Each phase keeps only a few running sums, so the cost per sample is constant regardless of the
+ * length of the intervals. The timing is driven by the timestamps of the samples, as in
+ * {@link SimpleFallDetectionStrategy}. All methods must be called from the thread feeding the data
+ * manager.
+ */
+public class MultiStageFallDetectionStrategy extends AbstractFallDetectionStrategy
+{
+    protected static final double freeFallThreshold = 0.6 * g;
+    protected static final long minFreeFallDuration = 60; // milliseconds
+    protected static final long maxFreeFallToImpact = 1000; // milliseconds
+    protected static final double impactThreshold = 2 * g;
+    protected static final long settlingInterval = 1000; // milliseconds
+    protected static final long inactivityInterval = 2000; // milliseconds
+    protected static final double inactivityMaxDeviation = 0.1 * g;
+    protected static final double orientationChangeThreshold = Math.toRadians(45);
+
+    /**
+     * The weight of the smoothing applied to the gravity estimate for each new sample.
+     */
+    protected static final double gravitySmoothing = 0.02;
+
+    /**
+     * The reliability needed to fire an event, in the range [0, 1].
+     */
+    protected static final float minReliability = 0.6f;
+
+    protected enum Phase
+    {
+        IDLE, FREE_FALL, AFTER_FREE_FALL, IMPACT, INACTIVITY
+    }
+
+    protected Phase phase = Phase.IDLE;
+
+    /**
+     * The timestamp at which the current phase started.
+     */
+    protected long phaseStart;
+
+    /**
+     * Whether a long enough free fall preceded the impact.
+     */
+    protected boolean freeFallDetected;
+
+    /**
+     * The timestamp and the magnitude of the last impact peak.
+     */
+    protected long lastImpact;
+    protected double impactMagnitude;
+
+    /**
+     * The direction of gravity, estimated by smoothing the samples while nothing is happening.
+     */
+    protected double gravityX, gravityY, gravityZ;
+    protected boolean gravityInitialized = false;
+
+    /**
+     * The running sums of the inactivity phase.
+     */
+    protected int inactiveCount;
+    protected double inactiveSum, inactiveSumOfSquares;
+    protected double inactiveSumX, inactiveSumY, inactiveSumZ;
+
+    /**
+     * Constructs a new instance of MultiStageFallDetectionStrategy.
+     *
+     * @see AbstractFallDetectionStrategy#AbstractFallDetectionStrategy(SensorDataManager, int)
+     */
+    public MultiStageFallDetectionStrategy(SensorDataManager dataManager, int postPeakSamples)
+    {
+        super(dataManager, postPeakSamples);
+    }
+
+    /**
+     * Does nothing: unlike an impact, inactivity can be assessed only from the samples.
+     */
+    @Override
+    public void poll(long nanoTime) {
+    }
+
+    @Override
+    public void detach() {
+        super.detach();
+        phase = Phase.IDLE;
+    }
+
+    @Override
+    public void onDataAvailable(SensorDataManager sender, long timestamp, float x, float y, float z, int accuracy) {
+        double magnitude = Math.sqrt(x * x + y * y + z * z);
+
+        switch (phase) {
+            case IDLE:
+                updateGravity(x, y, z);
+                if (magnitude < freeFallThreshold) {
+                    enterPhase(Phase.FREE_FALL, timestamp);
+                }
+                else if (magnitude >= impactThreshold) {
+                    freeFallDetected = false;
+                    enterImpact(timestamp, magnitude);
+                }
+                break;
+
+            case FREE_FALL:
+                if (magnitude < freeFallThreshold) {
+                    break;
+                }
+                freeFallDetected = timestamp - phaseStart >= minFreeFallDuration * 1000000L;
+                if (magnitude >= impactThreshold) {
+                    enterImpact(timestamp, magnitude);
+                }
+                else if (freeFallDetected) {
+                    enterPhase(Phase.AFTER_FREE_FALL, timestamp);
+                }
+                else {
+                    phase = Phase.IDLE;
+                }
+                break;
+
+            case AFTER_FREE_FALL:
+                if (magnitude >= impactThreshold) {
+                    enterImpact(timestamp, magnitude);
+                }
+                else if (timestamp - phaseStart > maxFreeFallToImpact * 1000000L) {
+                    // A free fall without impact (e.g., the device has been thrown and caught)
+                    phase = Phase.IDLE;
+                }
+                break;
+
+            case IMPACT:
+                if (magnitude >= impactThreshold) {
+                    // Further peaks of the same impact postpone the settling
+                    lastImpact = timestamp;
+                    impactMagnitude = Math.max(impactMagnitude, magnitude);
+                }
+                else if (timestamp - lastImpact >= settlingInterval * 1000000L) {
+                    enterPhase(Phase.INACTIVITY, timestamp);
+                    inactiveCount = 0;
+                    inactiveSum = inactiveSumOfSquares = 0;
+                    inactiveSumX = inactiveSumY = inactiveSumZ = 0;
+                }
+                break;
+
+            case INACTIVITY:
+                if (magnitude >= impactThreshold) {
+                    // Still moving: wait for the end of the new impact
+                    lastImpact = timestamp;
+                    impactMagnitude = Math.max(impactMagnitude, magnitude);
+                    phase = Phase.IMPACT;
+                    break;
+                }
+                inactiveCount++;
+                inactiveSum += magnitude;
+                inactiveSumOfSquares += magnitude * magnitude;
+                inactiveSumX += x;
+                inactiveSumY += y;
+                inactiveSumZ += z;
+                if (timestamp - phaseStart >= inactivityInterval * 1000000L) {
+                    evaluate();
+                    phase = Phase.IDLE;
+                }
+                break;
+        }
+    }
+
+    protected void enterPhase(Phase phase, long timestamp) {
+        this.phase = phase;
+        this.phaseStart = timestamp;
+    }
+
+    protected void enterImpact(long timestamp, double magnitude) {
+        enterPhase(Phase.IMPACT, timestamp);
+        lastImpact = timestamp;
+        impactMagnitude = magnitude;
+        startCapture(timestamp);
+    }
+
+    protected void updateGravity(float x, float y, float z) {
+        if (!gravityInitialized) {
+            gravityX = x;
+            gravityY = y;
+            gravityZ = z;
+            gravityInitialized = true;
+        }
+        else {
+            gravityX += gravitySmoothing * (x - gravityX);
+            gravityY += gravitySmoothing * (y - gravityY);
+            gravityZ += gravitySmoothing * (z - gravityZ);
+        }
+    }
+
+    /**
+     * Scores the phases observed after the impact and fires an event if the score is high enough.
+     * Otherwise the capture window started at the impact is dropped.
+     */
+    protected void evaluate() {
+        double mean = inactiveSum / inactiveCount;
+        double variance = Math.max(0, inactiveSumOfSquares / inactiveCount - mean * mean);
+        boolean inactive = Math.sqrt(variance) <= inactivityMaxDeviation;
+
+        // Angle between the gravity before the fall and the mean acceleration while lying
+        double ax = inactiveSumX / inactiveCount;
+        double ay = inactiveSumY / inactiveCount;
+        double az = inactiveSumZ / inactiveCount;
+        double norms = Math.sqrt(ax * ax + ay * ay + az * az)
+                * Math.sqrt(gravityX * gravityX + gravityY * gravityY + gravityZ * gravityZ);
+        double angle = 0;
+        if (norms > 0) {
+            double cosine = (ax * gravityX + ay * gravityY + az * gravityZ) / norms;
+            angle = Math.acos(Math.max(-1, Math.min(1, cosine)));
+        }
+
+        float reliability = 0;
+        if (inactive) {
+            reliability += 0.4f;
+        }
+        if (freeFallDetected) {
+            reliability += 0.2f;
+        }
+        reliability += 0.1f * (float)Math.min(1, (impactMagnitude - impactThreshold) / impactThreshold);
+        reliability += 0.3f * (float)Math.min(1, angle / orientationChangeThreshold);
+
+        if (inactive && reliability >= minReliability) {
+            fireCapturedEvent(Math.min(1, reliability));
+        }
+        else {
+            cancelCapture();
+        }
+    }
+}
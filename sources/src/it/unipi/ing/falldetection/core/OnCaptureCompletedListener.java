@@ -0,0 +1,6 @@
+package it.unipi.ing.falldetection.core;
+
+public interface OnCaptureCompletedListener
+{
+    void onCaptureCompleted(SensorDataManager sender, SensorDataBuffer snapshot);
+}
@@ -0,0 +1,6 @@
+package it.unipi.ing.falldetection.core;
+
+public interface OnSnapshotCompletedListener
+{
+    void onSnapshotCompleted(FallDetectionEvent event);
+}
@@ -0,0 +1,15 @@
+package it.unipi.ing.falldetection.core;
+
+public interface OnStrategyLaggingListener
+{
+    /**
+     * Called when a child strategy exceeds its latency budget or its queue overflows.
+     *
+     * @param latency
+     *            The time in nanoseconds the child spent on the last sample.
+     * @param dropped
+     *            The number of samples dropped so far because the queue of the child was full.
+     */
+    void onStrategyLagging(CompositeFallDetectionStrategy sender, IFallDetectionStrategy child, long latency,
+            long dropped);
+}
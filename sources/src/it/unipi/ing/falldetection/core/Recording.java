@@ -0,0 +1,27 @@
+package it.unipi.ing.falldetection.core;
+
+/**
+ * A labeled recording of a fall detection event, as saved by the {@link Uploader}.
+ */
+public class Recording
+{
+    /**
+     * Whether the user confirmed the fall ({@code Fall}) or denied it ({@code False_Alarm}).
+     */
+    public final boolean confirmed;
+
+    /**
+     * The information about the user, as "sex,age,height[cm],weight[kg]", or {@code null}.
+     */
+    public final String user;
+    public final String notes;
+    public final SensorDataBuffer samples;
+
+    public Recording(boolean confirmed, String user, String notes, SensorDataBuffer samples)
+    {
+        this.confirmed = confirmed;
+        this.user = user;
+        this.notes = notes;
+        this.samples = samples;
+    }
+}
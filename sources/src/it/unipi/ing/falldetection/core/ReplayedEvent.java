@@ -0,0 +1,21 @@
+package it.unipi.ing.falldetection.core;
+
+/**
+ * An event fired while replaying a trace, placed in time by the samples of the trace.
+ */
+public class ReplayedEvent
+{
+    /**
+     * The timestamp and the index of the sample being fed when the event was fired.
+     */
+    public final long sampleTimestamp;
+    public final int sampleIndex;
+    public final FallDetectionEvent event;
+
+    public ReplayedEvent(long sampleTimestamp, int sampleIndex, FallDetectionEvent event)
+    {
+        this.sampleTimestamp = sampleTimestamp;
+        this.sampleIndex = sampleIndex;
+        this.event = event;
+    }
+}
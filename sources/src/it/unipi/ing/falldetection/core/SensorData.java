@@ -1,24 +1,22 @@
 package it.unipi.ing.falldetection.core;
 
-import android.hardware.Sensor;
-
 public class SensorData
 {
     /**
-     * The values acquired from the sensor. See {@link android.hardware.Sensor#values Sensor.values}
-     * for details.
+     * The values acquired from the sensor. See {@code android.hardware.SensorEvent.values} for
+     * details.
      */
     public final float[] values;
 
     /**
-     * The sensor that produced the values. See {@link android.hardware.SensorManager SensorManager}
-     * for details.
+     * The type of the sensor that produced the values, as returned by
+     * {@code android.hardware.Sensor.getType()}. The type is kept instead of the sensor itself so
+     * that this package does not depend on Android.
      */
-    public Sensor sensor;
+    public int sensorType;
 
     /**
-     * The accuracy of this sensor reading. See {@link android.hardware.SensorManager SensorManager}
-     * for details.
+     * The accuracy of this sensor reading. See {@code android.hardware.SensorManager} for details.
      */
     public int accuracy;
 
@@ -27,9 +25,9 @@ public class SensorData
      */
     public long timestamp;
 
-    public SensorData(Sensor sensor, float[] values, int accuracy, long timestamp)
+    public SensorData(int sensorType, float[] values, int accuracy, long timestamp)
     {
-        this.sensor = sensor;
+        this.sensorType = sensorType;
         this.values = values;
         this.accuracy = accuracy;
         this.timestamp = timestamp;
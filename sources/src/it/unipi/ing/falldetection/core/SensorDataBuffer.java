@@ -1,12 +1,174 @@
 package it.unipi.ing.falldetection.core;
 
+/**
+ * A sequence of sensor samples stored by columns: the timestamps in nanoseconds and one column of
+ * values for each channel.
+ * <p>
+ * A buffer returned by {@link SensorDataManager#takeSnapshot} is initially a read-only view over
+ * the ring of the manager: its samples are copied out of the ring the first time they are read (or
+ * when {@link #retain} is called), or earlier by the writer if it is about to overwrite them. A
+ * view that is not needed anymore should be {@link #release released}.
+ */
 public final class SensorDataBuffer
 {
     public final String[] descriptions;
-    public final float[][] values;
+    private final int size;
+    private final int channels;
 
-    public SensorDataBuffer(String[] descriptions, float[][] values) {
+    /**
+     * The manager whose ring holds the samples of this view, or {@code null} for a buffer
+     * constructed from its own arrays.
+     */
+    private final SensorDataManager source;
+
+    /**
+     * The number of the first sample of this view into the ring of the source.
+     */
+    final long first;
+
+    /**
+     * The samples copied out of the ring. The columns are always stored before the timestamps, so
+     * that a non-null {@code timestamps} implies that both are available.
+     */
+    private volatile float[][] columns;
+    private volatile long[] timestamps;
+    private volatile boolean released;
+
+    /**
+     * Whether the capture window of this snapshot was completed before its post-peak region was
+     * full. Set before the snapshot is handed over.
+     */
+    boolean truncated;
+
+    /**
+     * Constructs a new instance of SensorDataBuffer.
+     *
+     * @param descriptions
+     *            The names of the columns: the first one describes the timestamps, the others the
+     *            channels.
+     * @param timestamps
+     *            The timestamps of the samples.
+     * @param columns
+     *            The values of the samples, one array for each channel. Each array must have the
+     *            same length as {@code timestamps}.
+     */
+    public SensorDataBuffer(String[] descriptions, long[] timestamps, float[][] columns) {
         this.descriptions = descriptions;
-        this.values = values;
+        this.size = timestamps.length;
+        this.channels = columns.length;
+        this.source = null;
+        this.first = 0;
+        this.columns = columns;
+        this.timestamps = timestamps;
+    }
+
+    SensorDataBuffer(SensorDataManager source, long first, int size) {
+        this.descriptions = source.descriptions;
+        this.size = size;
+        this.channels = source.cardinality;
+        this.source = source;
+        this.first = first;
+    }
+
+    /**
+     * Gets the number of samples.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of values of each sample, excluding the timestamp.
+     */
+    public int getChannelCount() {
+        return channels;
+    }
+
+    /**
+     * Tells whether this snapshot ends before the end of its capture window, because the samples
+     * stopped coming (see {@link SensorDataManager#completeCaptures}).
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public long getTimestamp(int index) {
+        return retainedTimestamps()[index];
+    }
+
+    public float getValue(int index, int channel) {
+        retainedTimestamps();
+        return columns[channel][index];
+    }
+
+    /**
+     * Copies {@code length} timestamps, starting from sample {@code index}, into {@code dst}.
+     */
+    public void getTimestamps(int index, long[] dst, int offset, int length) {
+        System.arraycopy(retainedTimestamps(), index, dst, offset, length);
+    }
+
+    /**
+     * Copies {@code length} values of the given channel, starting from sample {@code index}, into
+     * {@code dst}.
+     */
+    public void getValues(int channel, int index, float[] dst, int offset, int length) {
+        retainedTimestamps();
+        System.arraycopy(columns[channel], index, dst, offset, length);
+    }
+
+    /**
+     * Copies the samples out of the ring, if not done yet, so that they are kept after the writer
+     * overwrites them. Should be called as soon as the owner knows it will keep the buffer.
+     *
+     * @throws IllegalStateException
+     *             If the view has been released.
+     */
+    public void retain() {
+        retainedTimestamps();
+    }
+
+    /**
+     * Tells that the samples of this view are not needed anymore, so that the writer has not to
+     * copy them. The view cannot be read afterwards. Has no effect on a retained buffer.
+     */
+    public void release() {
+        if (timestamps == null && !released) {
+            released = true;
+            source.unregister(this);
+        }
+    }
+
+    private long[] retainedTimestamps() {
+        long[] t = timestamps;
+        if (t != null) {
+            return t;
+        }
+        if (released) {
+            throw new IllegalStateException("The snapshot has been released");
+        }
+
+        t = new long[size];
+        float[][] v = new float[channels][size];
+        if (source.copy(first, size, t, v)) {
+            detach(t, v);
+            source.unregister(this);
+            return t;
+        }
+
+        // The writer has claimed some of these samples, so it is copying the view by itself
+        while ((t = timestamps) == null) {
+            Thread.yield();
+        }
+        return t;
+    }
+
+    /**
+     * Stores the samples copied out of the ring. Both the writer and a reader may do this for the
+     * same view, but they always copy the same samples.
+     */
+    void detach(long[] timestamps, float[][] columns) {
+        this.columns = columns;
+        this.timestamps = timestamps;
     }
 }
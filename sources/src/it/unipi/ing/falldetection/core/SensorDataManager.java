@@ -1,57 +1,380 @@
 package it.unipi.ing.falldetection.core;
 
-import java.util.Vector;
-
+/**
+ * Stores the most recent sensor samples into a ring buffer and dispatches them to the listeners.
+ * <p>
+ * The ring has a single writer (the thread calling {@link #feed}) and any number of readers (the
+ * threads reading the snapshots). The writer never blocks: it announces each sample through
+ * {@link #claimed} before overwriting it and publishes it through {@link #published} afterwards.
+ * Readers copy the samples without locking and validate the copy against {@link #claimed}, retrying
+ * if the writer has overwritten some of them in the meanwhile (as in a seqlock).
+ * <p>
+ * Snapshots are views over a frozen region of the ring: their samples are copied out only when
+ * they are actually needed (see {@link SensorDataBuffer#retain}) or when the writer is about to
+ * overwrite them. The ring can hold more samples than a snapshot, so that a view survives for a
+ * while before the writer has to copy it.
+ */
 public class SensorDataManager implements ISensorDataProvider
 {
-    protected Vector<ISensorDataListener> listeners = new Vector<ISensorDataListener>();
+    /**
+     * The listeners, replaced as a whole on every change so that they can be iterated by index
+     * (without allocating an iterator) for each sample.
+     */
+    protected volatile ISensorDataListener[] listeners = new ISensorDataListener[0];
     protected int history;
+    protected int capacity;
     protected int cardinality;
     protected String[] descriptions;
-    protected float[][] pool;
 
-    protected int position = 0;
+    /**
+     * The ring, stored by columns: one array for the timestamps and one array for each channel.
+     */
+    protected long[] timestamps;
+    protected float[][] columns;
+
+    /**
+     * The number of samples the writer has started to store. Sample {@code n} is stored at index
+     * {@code n % capacity} of each column, hence it is overwritten as soon as
+     * {@code claimed > n + capacity}.
+     */
+    protected volatile long claimed = 0;
+
+    /**
+     * The number of samples completely stored, i.e. visible to readers.
+     */
+    protected volatile long published = 0;
+
+    /**
+     * The snapshots still referring to the ring, replaced as a whole on every change.
+     */
+    protected volatile SensorDataBuffer[] views = new SensorDataBuffer[0];
 
+    /**
+     * The capture windows not completed yet, replaced as a whole on every change.
+     */
+    protected volatile Capture[] captures = new Capture[0];
+
+    /**
+     * Used only for its memory effects. Java 6 has no explicit fences, so a volatile store on the
+     * reader side (followed by the volatile load of {@link #claimed}) keeps the plain loads of the
+     * columns before the validation. On the writer side, the volatile load of {@link #views} that
+     * follows the claim plays the same role for the plain stores.
+     */
+    private volatile int fence;
+
+    /**
+     * Constructs a new instance of SensorDataManager whose ring holds just one snapshot.
+     *
+     * @see #SensorDataManager(int, int, int, String[])
+     */
     public SensorDataManager(int history, int cardinality, String[] descriptions) {
+        this(history, 0, cardinality, descriptions);
+    }
+
+    /**
+     * Constructs a new instance of SensorDataManager.
+     *
+     * @param history
+     *            The number of samples of a snapshot.
+     * @param retention
+     *            The number of additional samples the ring can hold, i.e. the number of samples
+     *            after which a snapshot still referring to the ring is copied out by the writer.
+     * @param cardinality
+     *            The number of values (channels) of each sample, excluding the timestamp.
+     * @param descriptions
+     *            The names of the columns: the first one describes the timestamp, the others the
+     *            channels.
+     */
+    public SensorDataManager(int history, int retention, int cardinality, String[] descriptions) {
         this.history = history;
+        this.capacity = history + retention;
         this.cardinality = cardinality;
         this.descriptions = descriptions;
-        this.pool = new float[history][cardinality];
+        this.timestamps = new long[capacity];
+        this.columns = new float[cardinality][capacity];
     }
 
-    public void addListener(ISensorDataListener listener) {
-        listeners.addElement(listener);
+    public synchronized void addListener(ISensorDataListener listener) {
+        ISensorDataListener[] current = listeners;
+        ISensorDataListener[] updated = new ISensorDataListener[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = listener;
+        listeners = updated;
     }
 
-    public void removeListener(ISensorDataListener listener) {
-        listeners.removeElement(listener);
+    public synchronized void removeListener(ISensorDataListener listener) {
+        ISensorDataListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                ISensorDataListener[] updated = new ISensorDataListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                listeners = updated;
+                return;
+            }
+        }
     }
 
     protected void fireDataAvailable(SensorData data) {
-        for (ISensorDataListener e : listeners) {
-            e.onDataAvailable(this, data);
+        ISensorDataListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].onDataAvailable(this, data);
         }
     }
 
+    protected void fireDataAvailable(long timestamp, float x, float y, float z, int accuracy) {
+        ISensorDataListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].onDataAvailable(this, timestamp, x, y, z, accuracy);
+        }
+    }
+
+    /**
+     * Stores a new sample. Must always be called from the same thread.
+     */
     public void feed(SensorData data) {
-        synchronized (this) {
-            pool[position][0] = data.timestamp;
-            System.arraycopy(data.values, 0, pool[position], 1, data.values.length);
-            position = (position + 1) % pool.length;
+        long sequence = published;
+        int index = claim(sequence);
+        timestamps[index] = data.timestamp;
+        for (int c = 0; c < cardinality; c++) {
+            columns[c][index] = data.values[c];
         }
+        published = sequence + 1;
+
+        advanceCaptures(sequence);
         fireDataAvailable(data);
     }
 
+    /**
+     * Stores a new three-axis sample into the first three channels. Must always be called from the
+     * same thread. Neither this method nor the dispatching to the listeners allocate any object.
+     */
+    public void feed(long timestamp, float x, float y, float z, int accuracy) {
+        long sequence = published;
+        int index = claim(sequence);
+        timestamps[index] = timestamp;
+        columns[0][index] = x;
+        columns[1][index] = y;
+        columns[2][index] = z;
+        published = sequence + 1;
+
+        advanceCaptures(sequence);
+        fireDataAvailable(timestamp, x, y, z, accuracy);
+    }
+
+    /**
+     * Announces that the given sample is going to be stored and copies out the snapshots whose
+     * samples would be overwritten.
+     *
+     * @return The index of the sample into the columns.
+     */
+    private int claim(long sequence) {
+        claimed = sequence + 1;
+        // Also keeps the stores of the caller after the claim (volatile store, then volatile load)
+        SensorDataBuffer[] current = views;
+        long overwritten = sequence - capacity;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].first <= overwritten) {
+                // No need to validate: the writer itself is the only one changing the ring
+                SensorDataBuffer view = current[i];
+                long[] t = new long[view.size()];
+                float[][] v = new float[cardinality][view.size()];
+                copy(view.first, view.size(), t, v);
+                view.detach(t, v);
+                unregister(view);
+            }
+        }
+        return (int)(sequence % capacity);
+    }
+
+    /**
+     * Returns a read-only view of the last samples stored, from the oldest to the newest. It can be
+     * called from any thread and never blocks the writer.
+     * <p>
+     * The view refers to the ring until it is retained or released. Owners that discard it should
+     * call {@link SensorDataBuffer#release} to spare the writer a useless copy.
+     */
     public SensorDataBuffer takeSnapshot() {
-        float[][] ordered = new float[pool.length][cardinality];
+        while (true) {
+            long end = published;
+            int count = (int)Math.min(end, history);
+            SensorDataBuffer view = new SensorDataBuffer(this, end - count, count);
+            register(view);
+            // From now on the writer sees the view before overwriting it: check that it has not
+            // already overwritten it (volatile store, then volatile load)
+            if (claimed - end + count <= capacity) {
+                return view;
+            }
+            unregister(view);
+        }
+    }
+
+    /**
+     * Starts a capture window around a peak: the samples following the peak keep filling the ring
+     * and, as soon as {@code postSamples} of them have been stored, the listener receives a view
+     * of the last samples, ending with them (see {@link #takeSnapshot}). It can be called from any
+     * thread; the listener is called by the writer.
+     *
+     * @param peakTimestamp
+     *            The timestamp of the peak. The window is anchored to the last sample stored with a
+     *            timestamp not greater than it, so the peak can be marked after a short delay.
+     * @param postSamples
+     *            The number of samples to capture after the peak. Should be less than the number
+     *            of samples of a snapshot.
+     */
+    public void beginCapture(long peakTimestamp, int postSamples, OnCaptureCompletedListener listener) {
+        Capture capture = new Capture(peakTimestamp, postSamples, listener);
         synchronized (this) {
-            for (int i = 0; i < pool.length - position; i++) {
-                System.arraycopy(pool[position + i], 0, ordered[i], 0, cardinality);
+            Capture[] current = captures;
+            Capture[] updated = new Capture[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = capture;
+            captures = updated;
+        }
+    }
+
+    /**
+     * Stops the capture windows started with the given listener, which will not be called.
+     */
+    public synchronized void cancelCapture(OnCaptureCompletedListener listener) {
+        Capture[] current = captures;
+        int count = 0;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].listener != listener) {
+                count++;
+            }
+        }
+        Capture[] updated = new Capture[count];
+        for (int i = 0, j = 0; i < current.length; i++) {
+            if (current[i].listener != listener) {
+                updated[j++] = current[i];
+            }
+        }
+        captures = updated;
+    }
+
+    /**
+     * Completes the capture windows still pending with the samples stored so far, as if their
+     * post-peak regions were full, and marks their snapshots as
+     * {@link SensorDataBuffer#isTruncated truncated}. Meant for when no more samples will be fed
+     * (the sensor is unregistered, or the trace has ended), so that the events waiting for their
+     * snapshots still get one. Must be called by the writer, or once it has stopped.
+     */
+    public void completeCaptures() {
+        Capture[] pending;
+        synchronized (this) {
+            pending = captures;
+            captures = new Capture[0];
+        }
+        long end = published;
+        int count = (int)Math.min(end, history);
+        for (int i = 0; i < pending.length; i++) {
+            SensorDataBuffer view = new SensorDataBuffer(this, end - count, count);
+            view.truncated = true;
+            register(view);
+            pending[i].listener.onCaptureCompleted(this, view);
+        }
+    }
+
+    /**
+     * Anchors the new capture windows and completes the ones whose post-peak region is full.
+     * Called by the writer after storing the given sample.
+     */
+    private void advanceCaptures(long sequence) {
+        Capture[] current = captures;
+        for (int i = 0; i < current.length; i++) {
+            Capture capture = current[i];
+            if (capture.peak < 0) {
+                // Look backwards for the peak, among the samples still stored
+                long peak = sequence;
+                long oldest = Math.max(0, sequence - capacity + 1);
+                while (peak > oldest && timestamps[(int)(peak % capacity)] > capture.peakTimestamp) {
+                    peak--;
+                }
+                capture.peak = peak;
+            }
+            if (sequence - capture.peak >= capture.postSamples) {
+                long end = sequence + 1;
+                int count = (int)Math.min(end, history);
+                // The writer itself creates the view, so no sample can be overwritten meanwhile
+                SensorDataBuffer view = new SensorDataBuffer(this, end - count, count);
+                register(view);
+                synchronized (this) {
+                    Capture[] remaining = captures;
+                    for (int j = 0; j < remaining.length; j++) {
+                        if (remaining[j] == capture) {
+                            Capture[] updated = new Capture[remaining.length - 1];
+                            System.arraycopy(remaining, 0, updated, 0, j);
+                            System.arraycopy(remaining, j + 1, updated, j, remaining.length - j - 1);
+                            captures = updated;
+                            break;
+                        }
+                    }
+                }
+                capture.listener.onCaptureCompleted(this, view);
             }
-            for (int i = 0; i < position; i++) {
-                System.arraycopy(pool[i], 0, ordered[pool.length - position + i], 0, cardinality);
+        }
+    }
+
+    /**
+     * Copies the samples from {@code first} to {@code first + count} into the given arrays.
+     *
+     * @return Whether the copy is consistent, i.e. the writer has not overwritten any of these
+     *         samples while being copied.
+     */
+    boolean copy(long first, int count, long[] dstTimestamps, float[][] dstColumns) {
+        // The samples go from start to the end of the ring, then wrap around to its beginning
+        int start = (int)(first % capacity);
+        int head = Math.min(count, capacity - start);
+        System.arraycopy(timestamps, start, dstTimestamps, 0, head);
+        System.arraycopy(timestamps, 0, dstTimestamps, head, count - head);
+        for (int c = 0; c < cardinality; c++) {
+            System.arraycopy(columns[c], start, dstColumns[c], 0, head);
+            System.arraycopy(columns[c], 0, dstColumns[c], head, count - head);
+        }
+
+        // Keep the loads above before the validation (volatile store, then volatile load)
+        fence = 0;
+        return claimed - first <= capacity;
+    }
+
+    protected static class Capture
+    {
+        final long peakTimestamp;
+        final int postSamples;
+        final OnCaptureCompletedListener listener;
+
+        /**
+         * The number of the peak sample, or -1 until the writer anchors the window. Accessed only
+         * by the writer.
+         */
+        long peak = -1;
+
+        Capture(long peakTimestamp, int postSamples, OnCaptureCompletedListener listener) {
+            this.peakTimestamp = peakTimestamp;
+            this.postSamples = postSamples;
+            this.listener = listener;
+        }
+    }
+
+    synchronized void register(SensorDataBuffer view) {
+        SensorDataBuffer[] current = views;
+        SensorDataBuffer[] updated = new SensorDataBuffer[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = view;
+        views = updated;
+    }
+
+    synchronized void unregister(SensorDataBuffer view) {
+        SensorDataBuffer[] current = views;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == view) {
+                SensorDataBuffer[] updated = new SensorDataBuffer[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                views = updated;
+                return;
             }
         }
-        return new SensorDataBuffer(descriptions, ordered);
     }
 }
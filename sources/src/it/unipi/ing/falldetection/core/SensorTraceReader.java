@@ -0,0 +1,124 @@
+package it.unipi.ing.falldetection.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the recorded traces of three-axis samples, in one of the following formats, chosen by the
+ * extension of the file:
+ * <ul>
+ * <li>{@code .evt} and {@code .evt.gz}: the snapshots saved by the {@link Uploader} (see
+ * {@link BinaryEventFormat});</li>
+ * <li>{@code .arff}: the snapshots saved by older versions (see {@link ArffReader});</li>
+ * <li>{@code .csv}: one sample per line, as "timestamp,x,y,z", with an optional header line;</li>
+ * <li>{@code .bin}: little-endian records of a long timestamp followed by three floats.</li>
+ * </ul>
+ * The timestamps are in nanoseconds.
+ */
+public class SensorTraceReader
+{
+    private static final String[] defaultDescriptions = new String[] {
+            "time[ns]", "acceleration_x", "acceleration_y", "acceleration_z"
+    };
+
+    private static final int binaryRecordSize = 8 + 3 * 4;
+
+    private SensorTraceReader()
+    {
+    }
+
+    /**
+     * Tells whether the file is a trace this class can read.
+     */
+    public static boolean isTrace(File file) {
+        String name = file.getName();
+        return isRecording(file) || name.endsWith(".csv") || name.endsWith(".bin");
+    }
+
+    /**
+     * Tells whether the file is a labeled recording, which {@link #readRecording} can read.
+     */
+    public static boolean isRecording(File file) {
+        String name = file.getName();
+        return name.endsWith(BinaryEventFormat.EXTENSION) || name.endsWith(BinaryEventFormat.COMPRESSED_EXTENSION)
+                || name.endsWith(".arff");
+    }
+
+    /**
+     * Reads a labeled recording, either binary or ARFF.
+     */
+    public static Recording readRecording(File file) throws IOException {
+        if (!file.getName().endsWith(".arff")) {
+            return BinaryEventFormat.read(file);
+        }
+        return ArffReader.read(file);
+    }
+
+    public static SensorDataBuffer read(File file) throws IOException {
+        String name = file.getName();
+        if (isRecording(file)) {
+            return readRecording(file).samples;
+        }
+        else if (name.endsWith(".csv")) {
+            return readCsv(file);
+        }
+        else if (name.endsWith(".bin")) {
+            return readBinary(file);
+        }
+        throw new IOException("Unknown trace format: " + file);
+    }
+
+    public static SensorDataBuffer readCsv(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            ArffReader reader = new ArffReader(fis.getChannel(), 64 * 1024);
+            String[] descriptions = defaultDescriptions;
+            int first = reader.peek();
+            if (first != -1 && first != '\n' && first != '\r' && !Character.isDigit(first) && first != '-') {
+                descriptions = reader.readLine().split(",");
+                for (int i = 0; i < descriptions.length; i++) {
+                    descriptions[i] = descriptions[i].trim();
+                }
+            }
+            return reader.readRows(descriptions, Integer.MAX_VALUE);
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Invalid value in " + file + ": " + e.getMessage());
+        }
+        finally {
+            fis.close();
+        }
+    }
+
+    public static SensorDataBuffer readBinary(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length % binaryRecordSize != 0 || length / binaryRecordSize > Integer.MAX_VALUE) {
+                throw new IOException("Invalid binary trace: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            int size = (int)(length / binaryRecordSize);
+            long[] timestamps = new long[size];
+            float[][] columns = new float[3][size];
+            for (int i = 0; i < size; i++) {
+                timestamps[i] = buffer.getLong();
+                columns[0][i] = buffer.getFloat();
+                columns[1][i] = buffer.getFloat();
+                columns[2][i] = buffer.getFloat();
+            }
+            return new SensorDataBuffer(defaultDescriptions, timestamps, columns);
+        }
+        finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package it.unipi.ing.falldetection.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays recorded traces through a {@link SensorDataManager} and a strategy, outside of the
+ * service, and collects the events fired.
+ * <p>
+ * Each trace is fed to a new data manager and a new strategy, so that the traces do not affect
+ * each other. The samples are fed as fast as possible, or paced at a multiple of real time. At the
+ * end of a trace, the strategy is polled as if its wall-clock deadlines had expired, so that the
+ * events pending at the end of the trace are fired as they would be on the device, and the capture
+ * windows still open are completed with the samples of the trace (their snapshots are truncated).
+ * <p>
+ * The events are placed in time by the sample being fed when they were fired. Strategies firing
+ * their events from other threads (such as {@link CompositeFallDetectionStrategy}) are supported,
+ * but their events may be attributed to later samples.
+ */
+public class SensorTraceReplayer implements OnFallDetectedListener
+{
+    /**
+     * How far the wall clock is moved forward to flush the pending events at the end of a trace.
+     */
+    private static final long flushInterval = 3600 * 1000000000L; // nanoseconds
+
+    /**
+     * The number of samples fed between two checks of the pace.
+     */
+    private static final int paceCheckInterval = 64;
+
+    private final IFallDetectionStrategyFactory factory;
+    private final int history;
+    private final double speed;
+    private final boolean keepSnapshots;
+
+    private final List<ReplayedEvent> events = new ArrayList<ReplayedEvent>();
+    private volatile long currentTimestamp;
+    private volatile int currentIndex;
+
+    private long samples = 0;
+    private long traceTime = 0;
+    private long replayTime = 0;
+
+    /**
+     * Constructs a new instance of SensorTraceReplayer.
+     *
+     * @param history
+     *            The number of samples of a snapshot (see {@link SensorDataManager}).
+     * @param speed
+     *            The pace of the replay as a multiple of real time, or 0 to feed the samples as fast
+     *            as possible.
+     * @param keepSnapshots
+     *            Whether the snapshots of the events are kept. Otherwise they are released as soon
+     *            as they are completed, which spares the copy of the samples.
+     */
+    public SensorTraceReplayer(IFallDetectionStrategyFactory factory, int history, double speed,
+            boolean keepSnapshots)
+    {
+        this.factory = factory;
+        this.history = history;
+        this.speed = speed;
+        this.keepSnapshots = keepSnapshots;
+    }
+
+    /**
+     * Replays a trace.
+     *
+     * @return The events fired, in order.
+     */
+    public List<ReplayedEvent> replay(SensorDataBuffer trace) {
+        int size = trace.size();
+        if (trace.getChannelCount() < 3) {
+            throw new IllegalArgumentException("A trace needs three channels");
+        }
+        synchronized (events) {
+            events.clear();
+        }
+
+        SensorDataManager dataManager = new SensorDataManager(history, trace.getChannelCount(), trace.descriptions);
+        IFallDetectionStrategy strategy = factory.create(dataManager);
+        strategy.addListener(this);
+
+        long[] timestamps = new long[size];
+        float[] x = new float[size];
+        float[] y = new float[size];
+        float[] z = new float[size];
+        trace.getTimestamps(0, timestamps, 0, size);
+        trace.getValues(0, 0, x, 0, size);
+        trace.getValues(1, 0, y, 0, size);
+        trace.getValues(2, 0, z, 0, size);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            if (speed > 0 && i % paceCheckInterval == 0) {
+                pace(start, timestamps[i] - timestamps[0]);
+            }
+            currentTimestamp = timestamps[i];
+            currentIndex = i;
+            dataManager.feed(timestamps[i], x[i], y[i], z[i], 0);
+        }
+        strategy.poll(System.nanoTime() + flushInterval);
+        long elapsed = System.nanoTime() - start;
+
+        strategy.removeListener(this);
+        strategy.detach();
+        dataManager.completeCaptures();
+
+        samples += size;
+        if (size > 0) {
+            traceTime += timestamps[size - 1] - timestamps[0];
+        }
+        replayTime += elapsed;
+
+        synchronized (events) {
+            return new ArrayList<ReplayedEvent>(events);
+        }
+    }
+
+    /**
+     * Waits until the given offset of the trace is due, according to the speed.
+     */
+    private void pace(long start, long offset) {
+        long due = start + (long)(offset / speed);
+        long wait = due - System.nanoTime();
+        if (wait > 1000000) {
+            try {
+                Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void onFallDetected(IFallDetectionStrategy sender, FallDetectionEvent event) {
+        if (!keepSnapshots) {
+            event.setOnSnapshotCompletedListener(snapshotReleaser);
+        }
+        synchronized (events) {
+            events.add(new ReplayedEvent(currentTimestamp, currentIndex, event));
+        }
+    }
+
+    /**
+     * Gets the number of samples replayed so far.
+     */
+    public long getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * Gets the time spanned by the traces replayed so far, in nanoseconds.
+     */
+    public long getTraceTime() {
+        return traceTime;
+    }
+
+    /**
+     * Gets the time spent replaying the traces so far, in nanoseconds.
+     */
+    public long getReplayTime() {
+        return replayTime;
+    }
+
+    private static final OnSnapshotCompletedListener snapshotReleaser = new OnSnapshotCompletedListener() {
+        @Override
+        public void onSnapshotCompleted(FallDetectionEvent event) {
+            event.snapshot.release();
+        }
+    };
+}
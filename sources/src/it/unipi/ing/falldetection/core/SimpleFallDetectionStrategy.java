@@ -1,62 +1,92 @@
 package it.unipi.ing.falldetection.core;
 
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.Vector;
-
-public class SimpleFallDetectionStrategy implements IFallDetectionStrategy, ISensorDataListener
+/**
+ * Fires an event when the acceleration exceeds 2g, as soon as 2.5 seconds have passed since the
+ * last peak.
+ * <p>
+ * The delay is measured by a state machine driven by the timestamps of the samples, so that no
+ * thread is needed and the strategy behaves the same when fed with recorded samples faster than
+ * real time. Optionally, the delay can also be checked against the wall clock (see {@link #poll}),
+ * in case the sensor stops delivering samples. All methods must be called from the thread feeding
+ * the data manager.
+ */
+public class SimpleFallDetectionStrategy extends AbstractFallDetectionStrategy
 {
-    protected static final double g = 9.80665;
-    protected static final long timerDelay = 2500;
+    protected static final long eventDelay = 2500; // milliseconds
+
+    /**
+     * Whether a peak has been detected and the event is waiting to be fired.
+     */
+    protected boolean armed = false;
 
-    private SensorDataManager dataManager;
+    /**
+     * The timestamp of the samples after which the event is fired.
+     */
+    protected long deadline;
 
+    /**
+     * The time, as returned by {@link System#nanoTime}, after which the event is fired even if no
+     * sample has been received.
+     */
+    protected long wallClockDeadline;
+
+    /**
+     * Constructs a new instance of SimpleFallDetectionStrategy whose snapshots are centered on the
+     * peak.
+     */
     public SimpleFallDetectionStrategy(SensorDataManager dataManager)
     {
-        this.dataManager = dataManager;
-        dataManager.addListener(this);
+        this(dataManager, dataManager.history / 2);
     }
 
-    protected Vector<OnFallDetectedListener> listeners = new Vector<OnFallDetectedListener>();
+    /**
+     * Constructs a new instance of SimpleFallDetectionStrategy.
+     *
+     * @see AbstractFallDetectionStrategy#AbstractFallDetectionStrategy(SensorDataManager, int)
+     */
+    public SimpleFallDetectionStrategy(SensorDataManager dataManager, int postPeakSamples)
+    {
+        super(dataManager, postPeakSamples);
+    }
 
-    @Override
-    public void addListener(OnFallDetectedListener listener) {
-        listeners.addElement(listener);
+    /**
+     * Fires the pending event, whose snapshot is the one of the capture window started at the
+     * first peak.
+     */
+    protected void fireArmedEvent() {
+        armed = false;
+        fireCapturedEvent(1.0f);
     }
 
     @Override
-    public void removeListener(OnFallDetectedListener listener) {
-        listeners.removeElement(listener);
+    public void poll(long nanoTime) {
+        if (armed && nanoTime - wallClockDeadline >= 0) {
+            fireArmedEvent();
+        }
     }
 
-    protected void fireFallEvent(long timestamp, float reliability, SensorDataBuffer snapshot) {
-        FallDetectionEvent event = new FallDetectionEvent(timestamp, reliability, snapshot);
-        for (OnFallDetectedListener e : listeners) {
-            e.onFallDetected(this, event);
-        }
+    @Override
+    public void detach() {
+        super.detach();
+        armed = false;
     }
 
-    protected class EventFiringTimerTask extends TimerTask
-    {
-        @Override
-        public void run() {
-            fireFallEvent(System.currentTimeMillis(), 1.0f, dataManager.takeSnapshot());
+    @Override
+    public void onDataAvailable(SensorDataManager sender, long timestamp, float x, float y, float z, int accuracy) {
+        if (armed && timestamp - deadline >= 0) {
+            fireArmedEvent();
         }
-    };
-
-    protected Timer timer = new Timer();
-    protected TimerTask timerTask = new EventFiringTimerTask();
 
-    @Override
-    public void onDataAvailable(SensorDataManager sender, SensorData data) {
-        float x = data.values[0];
-        float y = data.values[1];
-        float z = data.values[2];
         double magnitude = Math.sqrt(x * x + y * y + z * z);
         if (magnitude >= 2 * g) {
-            timer.cancel();
-            timer = new Timer();
-            timer.schedule(timerTask, timerDelay);
+            if (!armed) {
+                // First peak of a burst: the snapshot is anchored to it
+                armed = true;
+                startCapture(timestamp);
+            }
+            // Any further peak postpones the event
+            deadline = timestamp + eventDelay * 1000000L;
+            wallClockDeadline = System.nanoTime() + eventDelay * 1000000L;
         }
     }
 }
@@ -0,0 +1,305 @@
+package it.unipi.ing.falldetection.core;
+
+/**
+ * Computes the features of the last samples over several sliding windows at once.
+ * <p>
+ * For each window the extractor keeps running sums (mean, variance, signal magnitude area, jerk
+ * and tilt) and monotonic deques (minimum and maximum of the magnitude), so that each new sample
+ * costs O(1) amortized time per window. To avoid the drift of the running sums, they are
+ * recomputed from scratch once every window length, which does not change the amortized cost.
+ * Neither updating nor reading the features allocate any object.
+ * <p>
+ * The extractor can be fed directly through {@link #update} or attached to a
+ * {@link SensorDataManager} as a listener. It is not thread-safe.
+ */
+public class SlidingWindowFeatures implements ISensorDataListener
+{
+    /** The mean of the magnitude of the acceleration. */
+    public static final int MEAN = 0;
+    /** The variance of the magnitude of the acceleration. */
+    public static final int VARIANCE = 1;
+    /** The minimum of the magnitude of the acceleration. */
+    public static final int MIN = 2;
+    /** The maximum of the magnitude of the acceleration. */
+    public static final int MAX = 3;
+    /** The signal magnitude area, i.e. the mean of |x| + |y| + |z|. */
+    public static final int SMA = 4;
+    /** The mean of the norm of the jerk (the derivative of the acceleration), per second. */
+    public static final int JERK = 5;
+    /** The angle in radians between the mean acceleration and the z axis of the device. */
+    public static final int TILT = 6;
+
+    /** The number of features computed for each window. */
+    public static final int FEATURE_COUNT = 7;
+
+    private final int[] lengths;
+    private final int capacity;
+
+    /**
+     * The last samples (and the quantities derived from them), in a ring as long as the longest
+     * window.
+     */
+    private final float[] x, y, z, magnitude, absoluteSum, jerk;
+
+    /**
+     * The number of samples received so far.
+     */
+    private long count = 0;
+    private long lastTimestamp;
+
+    /**
+     * The running sums of each window.
+     */
+    private final double[] sumMagnitude, sumSquares, sumAbsolute, sumJerk, sumX, sumY, sumZ;
+
+    /**
+     * The monotonic deques of each window, as rings of sample numbers: the magnitudes of the
+     * samples referred by {@code minima[w]} are increasing from head to tail, the ones referred by
+     * {@code maxima[w]} decreasing.
+     */
+    private final long[][] minima, maxima;
+    private final int[] minHead, minSize, maxHead, maxSize;
+
+    /**
+     * Constructs a new instance of SlidingWindowFeatures.
+     *
+     * @param lengths
+     *            The lengths of the windows, in samples.
+     */
+    public SlidingWindowFeatures(int... lengths) {
+        this.lengths = lengths.clone();
+        int longest = 1;
+        for (int length : lengths) {
+            if (length < 1) {
+                throw new IllegalArgumentException("Invalid window length: " + length);
+            }
+            longest = Math.max(longest, length);
+        }
+        this.capacity = longest;
+
+        x = new float[capacity];
+        y = new float[capacity];
+        z = new float[capacity];
+        magnitude = new float[capacity];
+        absoluteSum = new float[capacity];
+        jerk = new float[capacity];
+
+        int n = lengths.length;
+        sumMagnitude = new double[n];
+        sumSquares = new double[n];
+        sumAbsolute = new double[n];
+        sumJerk = new double[n];
+        sumX = new double[n];
+        sumY = new double[n];
+        sumZ = new double[n];
+        minima = new long[n][];
+        maxima = new long[n][];
+        for (int w = 0; w < n; w++) {
+            minima[w] = new long[lengths[w]];
+            maxima[w] = new long[lengths[w]];
+        }
+        minHead = new int[n];
+        minSize = new int[n];
+        maxHead = new int[n];
+        maxSize = new int[n];
+    }
+
+    /**
+     * Gets the number of windows.
+     */
+    public int getWindowCount() {
+        return lengths.length;
+    }
+
+    public int getWindowLength(int window) {
+        return lengths[window];
+    }
+
+    /**
+     * Gets the number of samples received so far.
+     */
+    public long getSampleCount() {
+        return count;
+    }
+
+    @Override
+    public void onDataAvailable(SensorDataManager sender, SensorData data) {
+        float[] values = data.values;
+        update(data.timestamp, values[0], values[1], values[2]);
+    }
+
+    @Override
+    public void onDataAvailable(SensorDataManager sender, long timestamp, float x, float y, float z, int accuracy) {
+        update(timestamp, x, y, z);
+    }
+
+    /**
+     * Adds a new sample to all the windows.
+     */
+    public void update(long timestamp, float ax, float ay, float az) {
+        long n = count;
+        int index = (int)(n % capacity);
+
+        float m = (float)Math.sqrt(ax * ax + ay * ay + az * az);
+        float a = Math.abs(ax) + Math.abs(ay) + Math.abs(az);
+        float j = 0;
+        if (n > 0 && timestamp > lastTimestamp) {
+            int previous = (int)((n - 1) % capacity);
+            float dx = ax - x[previous];
+            float dy = ay - y[previous];
+            float dz = az - z[previous];
+            j = (float)(Math.sqrt(dx * dx + dy * dy + dz * dz) * 1e9 / (timestamp - lastTimestamp));
+        }
+
+        // The samples leaving the windows must be read before being overwritten
+        for (int w = 0; w < lengths.length; w++) {
+            int length = lengths[w];
+            if (n >= length) {
+                int old = (int)((n - length) % capacity);
+                sumMagnitude[w] -= magnitude[old];
+                sumSquares[w] -= (double)magnitude[old] * magnitude[old];
+                sumAbsolute[w] -= absoluteSum[old];
+                sumJerk[w] -= jerk[old];
+                sumX[w] -= x[old];
+                sumY[w] -= y[old];
+                sumZ[w] -= z[old];
+            }
+        }
+
+        x[index] = ax;
+        y[index] = ay;
+        z[index] = az;
+        magnitude[index] = m;
+        absoluteSum[index] = a;
+        jerk[index] = j;
+        count = n + 1;
+        lastTimestamp = timestamp;
+
+        for (int w = 0; w < lengths.length; w++) {
+            int length = lengths[w];
+            if (count % length == 0) {
+                recompute(w);
+            }
+            else {
+                sumMagnitude[w] += m;
+                sumSquares[w] += (double)m * m;
+                sumAbsolute[w] += a;
+                sumJerk[w] += j;
+                sumX[w] += ax;
+                sumY[w] += ay;
+                sumZ[w] += az;
+            }
+            pushMinimum(w, n, m);
+            pushMaximum(w, n, m);
+        }
+    }
+
+    /**
+     * Recomputes the running sums of the given window from the samples it contains.
+     */
+    private void recompute(int w) {
+        int length = (int)Math.min(count, lengths[w]);
+        double sm = 0, ss = 0, sa = 0, sj = 0, sx = 0, sy = 0, sz = 0;
+        for (long s = count - length; s < count; s++) {
+            int i = (int)(s % capacity);
+            sm += magnitude[i];
+            ss += (double)magnitude[i] * magnitude[i];
+            sa += absoluteSum[i];
+            sj += jerk[i];
+            sx += x[i];
+            sy += y[i];
+            sz += z[i];
+        }
+        sumMagnitude[w] = sm;
+        sumSquares[w] = ss;
+        sumAbsolute[w] = sa;
+        sumJerk[w] = sj;
+        sumX[w] = sx;
+        sumY[w] = sy;
+        sumZ[w] = sz;
+    }
+
+    private void pushMinimum(int w, long sample, float value) {
+        long[] deque = minima[w];
+        int length = deque.length;
+        // Drop the sample out of the window, then the ones that cannot be the minimum anymore
+        if (minSize[w] > 0 && deque[minHead[w]] <= sample - length) {
+            minHead[w] = (minHead[w] + 1) % length;
+            minSize[w]--;
+        }
+        while (minSize[w] > 0 && magnitude[ringIndex(deque[(minHead[w] + minSize[w] - 1) % length])] >= value) {
+            minSize[w]--;
+        }
+        deque[(minHead[w] + minSize[w]) % length] = sample;
+        minSize[w]++;
+    }
+
+    private void pushMaximum(int w, long sample, float value) {
+        long[] deque = maxima[w];
+        int length = deque.length;
+        if (maxSize[w] > 0 && deque[maxHead[w]] <= sample - length) {
+            maxHead[w] = (maxHead[w] + 1) % length;
+            maxSize[w]--;
+        }
+        while (maxSize[w] > 0 && magnitude[ringIndex(deque[(maxHead[w] + maxSize[w] - 1) % length])] <= value) {
+            maxSize[w]--;
+        }
+        deque[(maxHead[w] + maxSize[w]) % length] = sample;
+        maxSize[w]++;
+    }
+
+    private int ringIndex(long sample) {
+        return (int)(sample % capacity);
+    }
+
+    /**
+     * Gets a feature of a window. Before the window is full, the features refer to the samples
+     * received so far; before any sample is received, they are all zero.
+     *
+     * @param window
+     *            The index of the window, in the order given to the constructor.
+     * @param feature
+     *            One of {@link #MEAN}, {@link #VARIANCE}, {@link #MIN}, {@link #MAX}, {@link #SMA},
+     *            {@link #JERK}, {@link #TILT}.
+     */
+    public float getFeature(int window, int feature) {
+        int n = (int)Math.min(count, lengths[window]);
+        if (n == 0) {
+            return 0;
+        }
+        switch (feature) {
+            case MEAN:
+                return (float)(sumMagnitude[window] / n);
+            case VARIANCE:
+                double mean = sumMagnitude[window] / n;
+                return (float)Math.max(0, sumSquares[window] / n - mean * mean);
+            case MIN:
+                return magnitude[ringIndex(minima[window][minHead[window]])];
+            case MAX:
+                return magnitude[ringIndex(maxima[window][maxHead[window]])];
+            case SMA:
+                return (float)(sumAbsolute[window] / n);
+            case JERK:
+                return (float)(sumJerk[window] / n);
+            case TILT:
+                double mx = sumX[window], my = sumY[window], mz = sumZ[window];
+                double norm = Math.sqrt(mx * mx + my * my + mz * mz);
+                return norm > 0 ? (float)Math.acos(Math.max(-1, Math.min(1, mz / norm))) : 0;
+            default:
+                throw new IllegalArgumentException("Invalid feature: " + feature);
+        }
+    }
+
+    /**
+     * Copies the features of all the windows into {@code dst}, starting from {@code offset}: the
+     * {@link #FEATURE_COUNT} features of the first window, then the ones of the second window, and
+     * so on.
+     */
+    public void getFeatures(float[] dst, int offset) {
+        for (int w = 0; w < lengths.length; w++) {
+            for (int f = 0; f < FEATURE_COUNT; f++) {
+                dst[offset++] = getFeature(w, f);
+            }
+        }
+    }
+}
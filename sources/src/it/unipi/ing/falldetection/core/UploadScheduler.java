@@ -0,0 +1,285 @@
+package it.unipi.ing.falldetection.core;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs a {@link JournalUploader} on its own thread when there is something to upload.
+ * <p>
+ * The thread sleeps until {@link #wake} is called (typically after an event is journaled), then
+ * waits a little longer so that a burst of events is uploaded together. If the upload fails, or
+ * leaves some events behind, it is retried after a delay that doubles at each consecutive failure,
+ * up to a maximum, with a random jitter so that many devices coming back online do not retry in
+ * lockstep; the retry is not anticipated by new events. A successful upload resets the delay.
+ * If the server does not follow the protocol ({@link ProtocolException}), the uploads are not
+ * retried at all until the scheduler is restarted, and the events stay in the journal.
+ * <p>
+ * Other network tasks, such as the direct upload of an event, can be run on the same thread with
+ * {@link #execute}: they are run as soon as the current upload ends, without any delay. A task or
+ * upload throwing a {@link RuntimeException} does not stop the scheduler: the task is reported to
+ * {@link #onTaskFailed}, the upload is handled as a failed one.
+ */
+public class UploadScheduler implements Runnable
+{
+    private final JournalUploader uploader;
+    private final long coalesceDelay;
+    private final long minBackoff;
+    private final long maxBackoff;
+    private final Random random = new Random();
+    private final Thread thread;
+    private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+    private boolean requested = true;
+    private boolean stopped = false;
+
+    /**
+     * Whether the uploads have been given up because the server does not follow the protocol.
+     */
+    private boolean halted = false;
+
+    /**
+     * The end of the wait for further events after a wake-up, or 0 if not waiting.
+     */
+    private long coalesceTime = 0;
+
+    /**
+     * The time (as {@link System#currentTimeMillis}) of the next retry, or 0 if none is due.
+     */
+    private long retryTime = 0;
+    private int failures = 0;
+
+    /**
+     * Constructs a new instance of UploadScheduler. The journal is uploaded as soon as the
+     * scheduler starts, in case it holds events from a previous run.
+     *
+     * @param coalesceDelay
+     *            The time in milliseconds to wait after a wake-up for further events.
+     * @param minBackoff
+     *            The delay in milliseconds before the first retry.
+     * @param maxBackoff
+     *            The maximum delay in milliseconds between two retries.
+     */
+    public UploadScheduler(JournalUploader uploader, long coalesceDelay, long minBackoff, long maxBackoff)
+    {
+        this.uploader = uploader;
+        this.coalesceDelay = coalesceDelay;
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+        this.thread = new Thread(this, getClass().getSimpleName());
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the scheduler. An upload or task in progress is not interrupted, but no other one is
+     * started.
+     *
+     * @return The tasks that have not been run.
+     */
+    public synchronized List<Runnable> stop() {
+        stopped = true;
+        notifyAll();
+        List<Runnable> pending = new ArrayList<Runnable>(tasks);
+        tasks.clear();
+        return pending;
+    }
+
+    /**
+     * Waits for the thread of the scheduler to end, after {@link #stop}.
+     *
+     * @return {@code false} if the thread is still running after the timeout.
+     */
+    public boolean join(long timeout) throws InterruptedException {
+        thread.join(timeout);
+        return !thread.isAlive();
+    }
+
+    /**
+     * Runs a task on the thread of the scheduler, before the next upload.
+     *
+     * @throws IllegalStateException
+     *             If the scheduler has been stopped.
+     */
+    public synchronized void execute(Runnable task) {
+        if (stopped) {
+            throw new IllegalStateException("The scheduler has been stopped");
+        }
+        tasks.add(task);
+        notifyAll();
+    }
+
+    /**
+     * Requests an upload.
+     */
+    public synchronized void wake() {
+        requested = true;
+        notifyAll();
+    }
+
+    /**
+     * Gets the number of consecutive failed uploads.
+     */
+    public synchronized int getFailureCount() {
+        return failures;
+    }
+
+    /**
+     * Called on the thread of the scheduler before the first upload.
+     */
+    protected void onStart() {
+    }
+
+    /**
+     * Called on the thread of the scheduler when it stops, after the last upload or task has
+     * ended.
+     */
+    protected void onStop() {
+    }
+
+    /**
+     * Called on the thread of the scheduler when an upload fails.
+     *
+     * @param e
+     *            The cause of the failure, or {@code null} if the server left some events behind.
+     * @param retryDelay
+     *            The time in milliseconds before the next attempt, or -1 if the uploads have been
+     *            given up.
+     */
+    protected void onUploadFailed(IOException e, long retryDelay) {
+    }
+
+    /**
+     * Called on the thread of the scheduler when a task run with {@link #execute} throws.
+     */
+    protected void onTaskFailed(Runnable task, RuntimeException e) {
+    }
+
+    @Override
+    public void run() {
+        try {
+            onStart();
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    if (!awaitWork()) {
+                        return;
+                    }
+                    task = tasks.poll();
+                }
+                if (task != null) {
+                    try {
+                        task.run();
+                    }
+                    catch (RuntimeException e) {
+                        onTaskFailed(task, e);
+                    }
+                }
+                else {
+                    upload();
+                }
+            }
+        }
+        finally {
+            onStop();
+        }
+    }
+
+    private void upload() {
+        boolean drained;
+        IOException failure = null;
+        try {
+            drained = uploader.upload();
+        }
+        catch (IOException e) {
+            drained = false;
+            failure = e;
+        }
+        catch (RuntimeException e) {
+            drained = false;
+            failure = new IOException(e);
+        }
+
+        long delay = 0;
+        synchronized (this) {
+            if (drained) {
+                failures = 0;
+                retryTime = 0;
+            }
+            else if (failure instanceof ProtocolException) {
+                failures++;
+                delay = -1;
+                retryTime = 0;
+                halted = true;
+            }
+            else {
+                failures++;
+                delay = backoff(failures);
+                retryTime = System.currentTimeMillis() + delay;
+            }
+        }
+        if (!drained) {
+            onUploadFailed(failure, delay);
+        }
+    }
+
+    /**
+     * Waits for a task, or for an upload to be due (after the coalescing delay). Must be called
+     * holding the lock.
+     *
+     * @return {@code false} if the scheduler has been stopped.
+     */
+    private boolean awaitWork() {
+        try {
+            while (!stopped && tasks.isEmpty()) {
+                long now = System.currentTimeMillis();
+                if (retryTime > 0) {
+                    if (now >= retryTime) {
+                        break;
+                    }
+                    wait(retryTime - now);
+                }
+                else if (requested && !halted) {
+                    if (coalesceTime == 0) {
+                        coalesceTime = now + coalesceDelay;
+                    }
+                    if (now >= coalesceTime) {
+                        break;
+                    }
+                    wait(coalesceTime - now);
+                }
+                else {
+                    wait();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            stopped = true;
+        }
+        if (!stopped && tasks.isEmpty()) {
+            // An upload is due
+            requested = false;
+            retryTime = 0;
+            coalesceTime = 0;
+        }
+        return !stopped;
+    }
+
+    /**
+     * Gets the delay before the given retry: the minimum delay doubled at each failure after the
+     * first one, up to the maximum, then randomized between half and all of it.
+     */
+    private long backoff(int failures) {
+        long delay = minBackoff << Math.min(failures - 1, 30);
+        if (delay <= 0 || delay > maxBackoff) {
+            delay = maxBackoff;
+        }
+        return delay / 2 + (long)(random.nextDouble() * (delay / 2));
+    }
+}
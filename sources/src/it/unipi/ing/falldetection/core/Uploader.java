@@ -1,35 +1,132 @@
 package it.unipi.ing.falldetection.core;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.net.URL;
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.regex.Pattern;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.text.format.DateFormat;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import it.unipi.ing.falldetection.R;
 import it.unipi.ing.falldetection.UserInformationHelper;
 
+/**
+ * Uploads the confirmed or denied events.
+ * <p>
+ * When the device is online and the last upload succeeded, an event is uploaded directly from
+ * memory, gzipped in the {@link BinaryEventFormat}, without touching the storage. Otherwise, or if
+ * the direct upload fails, the event is queued into an {@link EventJournal} by an
+ * {@link EventWriter}, on a thread of its own, and uploaded later in batches by a
+ * {@link JournalUploader}. All the uploads are run by an {@link UploadScheduler}, woken
+ * when an event is queued and backing off while the server cannot be reached. The files saved into
+ * {@code getFilesDir()} by older versions are moved into the journal when the scheduler starts.
+ */
 public class Uploader
 {
-    protected String postUrl = "https://posttestserver.com/post.php";
+    public static final String JOURNAL_DIRECTORY = "journal";
+
+    /**
+     * Appended to the notes of an event whose snapshot has been truncated (see
+     * {@link SensorDataBuffer#isTruncated}), so that the server can tell it apart.
+     */
+    public static final String TRUNCATED_NOTE = "[truncated]";
+
+    protected String postUrl;
     protected Context context;
-    protected Timer timer;
     protected String userAgent;
 
+    /**
+     * The maximum number of bytes of events uploaded by a batch.
+     */
+    protected static final long maxBatchSize = 4 * 1024 * 1024;
+
+    /**
+     * The maximum number of bytes uploaded by a single request: larger batches are uploaded in
+     * resumable chunks, so that a broken connection costs at most a chunk.
+     */
+    protected static final int chunkSize = 256 * 1024;
+
+    /**
+     * The size of the segments of the journal.
+     */
+    protected static final long maxSegmentSize = 1024 * 1024;
+
+    /**
+     * The time to wait after an event is queued for further ones, to upload them together.
+     */
+    protected static final long coalesceDelay = 10 * 1000;
+
+    /**
+     * The delays before the first retry of a failed upload and between the later ones.
+     */
+    protected static final long minBackoff = 30 * 1000;
+    protected static final long maxBackoff = 60 * 60 * 1000;
+
+    /**
+     * The maximum number of events waiting to be written to the journal.
+     */
+    protected static final int writerCapacity = 16;
+
+    /**
+     * The maximum time to wait on stop for the queued events to be written.
+     */
+    protected static final long flushTimeout = 5 * 1000;
+
+    /**
+     * The maximum time to wait on stop for the upload in progress to end and the queued events to
+     * be written.
+     */
+    protected static final long stopTimeout = 15 * 1000;
+
+    /**
+     * The names of the files saved by older versions, one per event.
+     */
+    private static final Pattern legacyName =
+            Pattern.compile("\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}-\\d{2}\\.(arff|evt|evt\\.gz)");
+
+    private EventJournal journal;
+    private JournalUploader uploader;
+    private UploadScheduler scheduler;
+    private EventWriter writer;
+
+    /**
+     * The profile of the user, as "sex,age,height[cm],weight[kg]", read again whenever the
+     * preferences change, so that enqueuing an event does not read them.
+     */
+    private volatile String userProfile;
+    private final SharedPreferences preferences;
+    private final OnSharedPreferenceChangeListener profileUpdater = new OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            userProfile = readUserProfile();
+        }
+    };
+
+    /**
+     * Constructs a new instance of Uploader, uploading to the URL of the {@code upload_url}
+     * resource.
+     */
     public Uploader(Context context) {
+        this(context, context.getString(R.string.upload_url));
+    }
+
+    /**
+     * Constructs a new instance of Uploader.
+     *
+     * @param postUrl
+     *            The URL the recorded events are POSTed to, either HTTP or HTTPS.
+     */
+    public Uploader(Context context, String postUrl) {
         this.context = context;
-        this.timer = new Timer();
-        this.timer.scheduleAtFixedRate(new DoUploadTimerTask(), 10 * 60 * 1000, 20 * 60 * 1000);
+        this.postUrl = postUrl;
+        this.preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        this.preferences.registerOnSharedPreferenceChangeListener(profileUpdater);
+        this.userProfile = readUserProfile();
 
         try {
             String v = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionName;
@@ -38,100 +135,224 @@ public class Uploader
         catch (NameNotFoundException e) {
             this.userAgent = context.getString(R.string.app_name);
         }
-    }
 
-    public void stop() {
-        timer.cancel();
+        try {
+            journal = new EventJournal(context.getDir(JOURNAL_DIRECTORY, Context.MODE_PRIVATE), maxSegmentSize);
+        }
+        catch (IOException e) {
+            // Without the journal the events cannot be kept, let alone uploaded
+            Log.e(getClass().getSimpleName(), "Cannot open the journal: " + e);
+            return;
+        }
+        uploader = new JournalUploader(journal, postUrl, userAgent, maxBatchSize, chunkSize);
+        scheduler = new UploadScheduler(uploader, coalesceDelay, minBackoff, maxBackoff) {
+            @Override
+            protected void onStart() {
+                try {
+                    importLegacyFiles();
+                }
+                catch (IOException e) {
+                    Log.w(Uploader.class.getSimpleName(), "Cannot import the saved events: " + e);
+                }
+            }
+
+            @Override
+            protected void onUploadFailed(IOException e, long retryDelay) {
+                if (retryDelay < 0) {
+                    Log.e(Uploader.class.getSimpleName(), "Uploads given up, the events are kept: " + e);
+                    return;
+                }
+                Log.i(Uploader.class.getSimpleName(), "Upload failed (" + (e != null ? e : "incomplete")
+                        + "), retrying in " + retryDelay / 1000 + " s");
+            }
+
+            @Override
+            protected void onTaskFailed(Runnable task, RuntimeException e) {
+                Log.w(Uploader.class.getSimpleName(), "Direct upload failed, queuing the event: " + e);
+                ((DirectUpload)task).queue();
+            }
+
+            @Override
+            protected void onStop() {
+                close();
+            }
+        };
+        writer = new EventWriter(journal, writerCapacity) {
+            @Override
+            protected void onWritten() {
+                scheduler.wake();
+            }
+
+            @Override
+            protected void onWriteFailed(Exception e) {
+                Log.w(Uploader.class.getSimpleName(), "Cannot queue the event: " + e);
+            }
+        };
+        scheduler.start();
     }
 
-    public void enqueue(FallDetectionEvent event)
-    {
+    /**
+     * Stops the uploads. The events still waiting for their direct upload are queued into the
+     * journal, to be uploaded on the next run. The writer and the journal are closed by the thread
+     * of the scheduler once the upload in progress ends, so that an event whose direct upload fails
+     * meanwhile is still queued; this method waits for that, up to a timeout.
+     */
+    public void stop() {
+        preferences.unregisterOnSharedPreferenceChangeListener(profileUpdater);
+        if (scheduler == null) {
+            close();
+            return;
+        }
+        for (Runnable task : scheduler.stop()) {
+            ((DirectUpload)task).queue();
+        }
         try {
-            saveLocally(event);
+            if (!scheduler.join(stopTimeout)) {
+                Log.w(getClass().getSimpleName(), "Still uploading, the journal will be closed when done");
+            }
         }
-        catch (Exception e) {
-            StringWriter sw = new StringWriter();
-            PrintWriter pw = new PrintWriter(sw);
-            e.printStackTrace(pw);
-            Log.i(getClass().getSimpleName(), sw.toString());
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    private class DoUploadTimerTask extends TimerTask
-    {
-        @Override
-        public void run()
-        {
-            String[] list = context.getFilesDir().list();
-            for (int i = 0; i < list.length; i++) {
-                try {
-                    if (upload(list[i])) {
-                        if (context.deleteFile(list[i]) == false) {
-                            Log.w(getClass().getSimpleName(), "Cannot delete file: " + list[i]);
-                        }
-                    }
-                }
-                catch (Exception e) {
-                    StringWriter sw = new StringWriter();
-                    PrintWriter pw = new PrintWriter(sw);
-                    e.printStackTrace(pw);
-                    Log.i(getClass().getSimpleName(), sw.toString());
+    /**
+     * Writes the queued events and closes the journal.
+     */
+    private void close() {
+        if (writer != null) {
+            try {
+                if (!writer.close(flushTimeout)) {
+                    Log.w(getClass().getSimpleName(), "Some events could not be queued in time");
                 }
             }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            }
+            catch (IOException e) {
+                Log.w(getClass().getSimpleName(), "Cannot close the journal: " + e);
+            }
         }
     }
 
-    private void saveLocally(FallDetectionEvent event) throws IOException
+    /**
+     * Uploads an event, or queues it if it cannot be uploaded right away. Called on the thread
+     * delivering the samples, which only hands the event over: the snapshot is copied out of the
+     * ring (unless the ring does it first, before overwriting it) and serialized on the thread of
+     * the scheduler or of the writer.
+     */
+    public void enqueue(FallDetectionEvent event)
     {
-        String filename = DateFormat.format("yyyy-MM-dd-HH-mm-ss", new Date()).toString() + ".arff";
+        String notes = event.notes;
+        if (event.snapshot.isTruncated()) {
+            notes = notes != null && notes.length() > 0 ? notes + " " + TRUNCATED_NOTE : TRUNCATED_NOTE;
+        }
+        DirectUpload upload = new DirectUpload(event.confirmed, userProfile, notes, event.snapshot);
+        if (scheduler != null && scheduler.getFailureCount() == 0 && isOnline()) {
+            scheduler.execute(upload);
+        }
+        else {
+            upload.queue();
+        }
+    }
 
-        FileOutputStream fos = context.openFileOutput(filename, Context.MODE_PRIVATE);
-        PrintWriter writer = new PrintWriter(fos);
+    private String readUserProfile() {
+        return UserInformationHelper.getUserSex(context) + "," + UserInformationHelper.getUserAge(context) + ","
+                + UserInformationHelper.getUserHeight(context) + "," + UserInformationHelper.getUserWeight(context);
+    }
 
-        writer.println("% Class: " + (event.confirmed ? "Fall" : "False_Alarm"));
-        String sex = UserInformationHelper.getUserSex(context);
-        String age = UserInformationHelper.getUserAge(context) + "";
-        String h = UserInformationHelper.getUserHeight(context) + "";
-        String w = UserInformationHelper.getUserWeight(context) + "";
-        writer.println("% User (sex,age,height[cm],weight[kg]): " + sex + "," + age + "," + h + "," + w);
-        writer.println("% Notes: " + event.notes);
+    /**
+     * Tells whether the device has a network connection.
+     */
+    protected boolean isOnline() {
+        ConnectivityManager cm = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm != null ? cm.getActiveNetworkInfo() : null;
+        return info != null && info.isConnected();
+    }
+
+    /**
+     * Uploads an event directly, on the thread of the scheduler, and queues it into the journal if
+     * that fails.
+     */
+    private class DirectUpload implements Runnable
+    {
+        private final boolean confirmed;
+        private final String user;
+        private final String notes;
+        private final SensorDataBuffer snapshot;
 
-        writer.println("@RELATION  LinearAcceleration");
-        for (int i = 0; i < event.snapshot.descriptions.length; i++) {
-            writer.println("@ATTRIBUTE " + event.snapshot.descriptions[i] + " NUMERIC");
+        public DirectUpload(boolean confirmed, String user, String notes, SensorDataBuffer snapshot)
+        {
+            this.confirmed = confirmed;
+            this.user = user;
+            this.notes = notes;
+            this.snapshot = snapshot;
         }
 
-        writer.println("@DATA");
-        for (int i = 0; i < event.snapshot.values.length; i++) {
-            for (int j = 0; j < event.snapshot.values[i].length; j++) {
-                if (j > 0) {
-                    writer.print(",");
+        @Override
+        public void run()
+        {
+            try {
+                if (uploader.uploadEvent(confirmed, user, notes, snapshot)) {
+                    return;
                 }
-                writer.print(event.snapshot.values[i][j]);
+                Log.i(Uploader.class.getSimpleName(), "Direct upload refused, queuing the event");
+            }
+            catch (IOException e) {
+                Log.i(Uploader.class.getSimpleName(), "Direct upload failed, queuing the event: " + e);
             }
-            writer.println();
+            queue();
         }
 
-        fos.close();
+        /**
+         * Hands the event to the writer, to be appended to the journal.
+         */
+        public void queue()
+        {
+            if (writer == null || !writer.submit(confirmed, user, notes, snapshot)) {
+                Log.w(Uploader.class.getSimpleName(), "Dropping the event: the writer is full or stopped");
+            }
+        }
     }
 
-    private boolean upload(String file) throws IOException
+    /**
+     * Moves the events saved as single files by older versions into the journal. Only the files
+     * named as they were are considered, since other components may store files there too.
+     */
+    private void importLegacyFiles() throws IOException
     {
-        HttpsURLConnection con = (HttpsURLConnection)new URL(postUrl).openConnection();
-
-        con.setRequestMethod("POST");
-        con.setRequestProperty("User-Agent", userAgent);
-        con.setRequestProperty("Content-Type", "text/x-arff");
-        con.setDoOutput(true);
-
-        FileInputStream fis = context.openFileInput(file);
-        byte[] buffer = new byte[256];
-        int bytesRead = 0;
-        while ((bytesRead = fis.read(buffer)) != -1) {
-            con.getOutputStream().write(buffer, 0, bytesRead);
+        String[] list = context.getFilesDir().list();
+        for (int i = 0; list != null && i < list.length; i++) {
+            String name = list[i];
+            if (!legacyName.matcher(name).matches()) {
+                continue;
+            }
+            byte[] payload;
+            try {
+                Recording r = SensorTraceReader.readRecording(context.getFileStreamPath(name));
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+                BinaryEventFormat.writeCompressed(bytes, r.confirmed, r.user, r.notes, r.samples);
+                payload = bytes.toByteArray();
+            }
+            catch (IOException e) {
+                Log.w(getClass().getSimpleName(), "Dropping the unreadable file " + name + ": " + e);
+                context.deleteFile(name);
+                continue;
+            }
+            catch (NumberFormatException e) {
+                Log.w(getClass().getSimpleName(), "Dropping the unreadable file " + name + ": " + e);
+                context.deleteFile(name);
+                continue;
+            }
+            journal.append(payload);
+            if (context.deleteFile(name) == false) {
+                Log.w(getClass().getSimpleName(), "Cannot delete file: " + name);
+            }
         }
-
-        int responseCode = con.getResponseCode();
-        return responseCode == 200;
     }
 }
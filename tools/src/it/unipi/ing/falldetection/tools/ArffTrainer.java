@@ -0,0 +1,330 @@
+package it.unipi.ing.falldetection.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import it.unipi.ing.falldetection.core.FallDetectionModel;
+import it.unipi.ing.falldetection.core.Recording;
+import it.unipi.ing.falldetection.core.SensorTraceReader;
+
+/**
+ * Trains the model of the {@link it.unipi.ing.falldetection.core.ClassifierFallDetectionStrategy}
+ * from the recordings saved by the {@link it.unipi.ing.falldetection.core.Uploader}, binary or ARFF.
+ * <p>
+ * The files are parsed and reduced to their features in parallel, so that only the features are
+ * kept in memory. The classifier is cross-validated with its folds trained in parallel, then
+ * trained on all the recordings and exported.
+ *
+ * <pre>
+ * java it.unipi.ing.falldetection.tools.ArffTrainer [options] directory model
+ *   -windows 25,125,250   window lengths, in samples
+ *   -post 1500            samples saved after the peak
+ *   -folds 10             cross-validation folds (0 to skip)
+ *   -lambda 1             L2 regularization
+ *   -threshold 0.5        score needed to fire an event
+ *   -threads N            parallelism (default: available processors)
+ * </pre>
+ */
+public class ArffTrainer
+{
+    /**
+     * The number of files parsed by a task without splitting it further.
+     */
+    private static final int filesPerTask = 4;
+
+    private int[] windowLengths = { 25, 125, 250 };
+    private int postPeakSamples = 1500;
+    private int folds = 10;
+    private double lambda = 1;
+    private float threshold = 0.5f;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    public static void main(String[] args) throws Exception {
+        ArffTrainer trainer = new ArffTrainer();
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i += 2) {
+            if (i + 1 >= args.length) {
+                usage();
+            }
+            String value = args[i + 1];
+            if (args[i].equals("-windows")) {
+                trainer.windowLengths = parseInts(value);
+            }
+            else if (args[i].equals("-post")) {
+                trainer.postPeakSamples = Integer.parseInt(value);
+            }
+            else if (args[i].equals("-folds")) {
+                trainer.folds = Integer.parseInt(value);
+            }
+            else if (args[i].equals("-lambda")) {
+                trainer.lambda = Double.parseDouble(value);
+            }
+            else if (args[i].equals("-threshold")) {
+                trainer.threshold = Float.parseFloat(value);
+            }
+            else if (args[i].equals("-threads")) {
+                trainer.threads = Integer.parseInt(value);
+            }
+            else {
+                usage();
+            }
+        }
+        if (args.length - i != 2) {
+            usage();
+        }
+        trainer.run(new File(args[i]), new File(args[i + 1]));
+    }
+
+    private static void usage() {
+        System.err.println("Usage: ArffTrainer [-windows l1,l2,...] [-post samples] [-folds k] [-lambda l]"
+                + " [-threshold t] [-threads n] directory model");
+        System.exit(2);
+    }
+
+    static int[] parseInts(String value) {
+        String[] parts = value.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+
+    /**
+     * Collects the recordings (binary or ARFF) of a directory and of its subdirectories.
+     */
+    static void listFiles(File directory, List<File> files) {
+        File[] list = directory.listFiles();
+        if (list == null) {
+            return;
+        }
+        for (File f : list) {
+            if (f.isDirectory()) {
+                listFiles(f, files);
+            }
+            else if (SensorTraceReader.isRecording(f)) {
+                files.add(f);
+            }
+        }
+    }
+
+    public void run(File directory, File output) throws IOException {
+        List<File> files = new ArrayList<File>();
+        listFiles(directory, files);
+        if (files.isEmpty()) {
+            throw new IOException("No recordings in " + directory);
+        }
+        // A fixed order makes the folds reproducible
+        Collections.sort(files);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            long start = System.nanoTime();
+            Examples examples = pool.invoke(new ExtractTask(files, 0, files.size()));
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            System.out.printf("Parsed %d files in %d ms: %d falls, %d false alarms, %d without peaks, %d invalid%n",
+                    files.size(), elapsed, examples.positives(), examples.count - examples.positives(),
+                    examples.withoutPeaks, examples.invalid);
+            if (examples.count == 0) {
+                throw new IOException("No usable recordings");
+            }
+
+            if (folds > 1) {
+                start = System.nanoTime();
+                crossValidate(pool, examples);
+                elapsed = (System.nanoTime() - start) / 1000000;
+                System.out.printf("Cross-validated in %d ms%n", elapsed);
+            }
+
+            FallDetectionModel model = new LogisticRegression(lambda).fit(examples.x, examples.y, examples.count,
+                    windowLengths, threshold);
+            model.save(output);
+            System.out.printf("Model saved to %s (%d features)%n", output, model.getFeatureCount());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    private void crossValidate(ForkJoinPool pool, Examples examples) {
+        // Shuffle once, then fold i gets the examples whose position is i modulo the folds
+        int[] order = new int[examples.count];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Random random = new Random(42);
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+
+        List<FoldTask> tasks = new ArrayList<FoldTask>();
+        for (int fold = 0; fold < folds; fold++) {
+            FoldTask task = new FoldTask(examples, order, fold);
+            pool.execute(task);
+            tasks.add(task);
+        }
+        long truePositives = 0, falseNegatives = 0, trueNegatives = 0, falsePositives = 0;
+        for (FoldTask task : tasks) {
+            long[] c = task.join();
+            truePositives += c[0];
+            falseNegatives += c[1];
+            trueNegatives += c[2];
+            falsePositives += c[3];
+        }
+        System.out.printf("%d-fold cross-validation: sensitivity %.4f, specificity %.4f, accuracy %.4f%n", folds,
+                ratio(truePositives, truePositives + falseNegatives),
+                ratio(trueNegatives, trueNegatives + falsePositives),
+                ratio(truePositives + trueNegatives, examples.count));
+    }
+
+    private static double ratio(long a, long b) {
+        return b > 0 ? (double)a / b : Double.NaN;
+    }
+
+    /**
+     * The features of the recordings, with their labels.
+     */
+    static class Examples
+    {
+        float[][] x = new float[16][];
+        boolean[] y = new boolean[16];
+        int count = 0;
+        int withoutPeaks = 0;
+        int invalid = 0;
+
+        void add(float[] features, boolean fall) {
+            if (count == x.length) {
+                float[][] grownX = new float[count * 2][];
+                boolean[] grownY = new boolean[count * 2];
+                System.arraycopy(x, 0, grownX, 0, count);
+                System.arraycopy(y, 0, grownY, 0, count);
+                x = grownX;
+                y = grownY;
+            }
+            x[count] = features;
+            y[count] = fall;
+            count++;
+        }
+
+        void addAll(Examples other) {
+            for (int i = 0; i < other.count; i++) {
+                add(other.x[i], other.y[i]);
+            }
+            withoutPeaks += other.withoutPeaks;
+            invalid += other.invalid;
+        }
+
+        int positives() {
+            int positives = 0;
+            for (int i = 0; i < count; i++) {
+                if (y[i]) {
+                    positives++;
+                }
+            }
+            return positives;
+        }
+    }
+
+    /**
+     * Parses a range of files, splitting it in halves until it is small enough.
+     */
+    private class ExtractTask extends RecursiveTask<Examples>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> files;
+        private final int from, to;
+
+        ExtractTask(List<File> files, int from, int to) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Examples compute() {
+            if (to - from > filesPerTask) {
+                int middle = (from + to) >>> 1;
+                ExtractTask left = new ExtractTask(files, from, middle);
+                left.fork();
+                Examples right = new ExtractTask(files, middle, to).compute();
+                Examples result = left.join();
+                result.addAll(right);
+                return result;
+            }
+
+            Examples result = new Examples();
+            for (int i = from; i < to; i++) {
+                try {
+                    Recording recording = SensorTraceReader.readRecording(files.get(i));
+                    float[] features = FeatureExtractor.extract(recording, windowLengths, postPeakSamples);
+                    if (features == null) {
+                        result.withoutPeaks++;
+                    }
+                    else {
+                        result.add(features, recording.confirmed);
+                    }
+                }
+                catch (IOException e) {
+                    System.err.println("Skipping " + files.get(i) + ": " + e.getMessage());
+                    result.invalid++;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Trains the classifier on all the folds but one and counts its outcomes on the remaining one:
+     * true positives, false negatives, true negatives and false positives.
+     */
+    private class FoldTask extends RecursiveTask<long[]>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Examples examples;
+        private final int[] order;
+        private final int fold;
+
+        FoldTask(Examples examples, int[] order, int fold) {
+            this.examples = examples;
+            this.order = order;
+            this.fold = fold;
+        }
+
+        @Override
+        protected long[] compute() {
+            float[][] x = new float[order.length][];
+            boolean[] y = new boolean[order.length];
+            int count = 0;
+            for (int i = 0; i < order.length; i++) {
+                if (i % folds != fold) {
+                    x[count] = examples.x[order[i]];
+                    y[count] = examples.y[order[i]];
+                    count++;
+                }
+            }
+            if (count == 0) {
+                return new long[4];
+            }
+            FallDetectionModel model = new LogisticRegression(lambda).fit(x, y, count, windowLengths, threshold);
+
+            long[] outcomes = new long[4];
+            for (int i = fold; i < order.length; i += folds) {
+                boolean fall = examples.y[order[i]];
+                boolean detected = model.score(examples.x[order[i]]) >= threshold;
+                outcomes[fall ? (detected ? 0 : 1) : (detected ? 3 : 2)]++;
+            }
+            return outcomes;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package it.unipi.ing.falldetection.tools;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+import it.unipi.ing.falldetection.core.ArffWriter;
+import it.unipi.ing.falldetection.core.FallDetectionEvent;
+import it.unipi.ing.falldetection.core.IFallDetectionStrategy;
+import it.unipi.ing.falldetection.core.OnFallDetectedListener;
+import it.unipi.ing.falldetection.core.OnSnapshotCompletedListener;
+import it.unipi.ing.falldetection.core.SensorDataBuffer;
+import it.unipi.ing.falldetection.core.SensorDataManager;
+import it.unipi.ing.falldetection.core.SimpleFallDetectionStrategy;
+
+/**
+ * Benchmarks the hot paths of the core package at the history sizes of the service, with samples
+ * at 50 Hz:
+ * <ul>
+ * <li>{@link SensorDataManager#feed}, with and without a strategy listening;</li>
+ * <li>{@link SensorDataManager#takeSnapshot}, released right away or retained (copied);</li>
+ * <li>{@link SimpleFallDetectionStrategy#onDataAvailable}, on quiet samples and on peaks;</li>
+ * <li>the ARFF serialization of a snapshot ({@link ArffWriter}).</li>
+ * </ul>
+ * The run fails if the primitive {@link SensorDataManager#feed(long, float, float, float, int)}
+ * allocates once the ring is warm, with or without the simple strategy listening to quiet
+ * samples, since it is called for every sample.
+ *
+ * <pre>
+ * java -Xms512m -Xmx512m it.unipi.ing.falldetection.tools.CoreBenchmarks [history...]
+ * </pre>
+ */
+public class CoreBenchmarks
+{
+    private static final long samplePeriod = 20000000L; // nanoseconds, 50 Hz
+    private static final String[] descriptions = new String[] {
+            "time[ns]", "acceleration_x[g]", "acceleration_y[g]", "acceleration_z[g]"
+    };
+
+    /**
+     * Precomputed samples, so that the benchmarks do not measure the generation of the values.
+     */
+    private static final int sampleCount = 4096;
+    private static final float[] xs = new float[sampleCount];
+    private static final float[] ys = new float[sampleCount];
+    private static final float[] zs = new float[sampleCount];
+
+    /**
+     * The bytes per operation below which an operation is taken as allocation-free: an allocation
+     * on every operation takes at least 16 bytes, but the measurement may catch a few unrelated
+     * ones (such as the lazy initializations of the JDK).
+     */
+    private static final double allocationFreeBytesPerOp = 0.01;
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException {
+        int[] histories = args.length > 0 ? ArffTrainer.parseInts(args[0]) : new int[] { 500, 3000, 30000 };
+
+        Random random = new Random(1);
+        for (int i = 0; i < sampleCount; i++) {
+            xs[i] = (float)random.nextGaussian();
+            ys[i] = (float)random.nextGaussian();
+            zs[i] = 9.81f + (float)random.nextGaussian();
+        }
+
+        for (final int history : histories) {
+            MicroBenchmark feed = new MicroBenchmark("feed, history " + history) {
+                SensorDataManager dataManager;
+
+                @Override
+                protected void setUp() {
+                    dataManager = new SensorDataManager(history, history, 3, descriptions);
+                }
+
+                @Override
+                protected long operation(long i) {
+                    int s = (int)(i & (sampleCount - 1));
+                    dataManager.feed(i * samplePeriod, xs[s], ys[s], zs[s], 3);
+                    return s;
+                }
+            }.run();
+            expectAllocationFree(feed);
+
+            MicroBenchmark simple = new MicroBenchmark("feed + simple strategy, history " + history) {
+                SensorDataManager dataManager;
+
+                @Override
+                protected void setUp() {
+                    dataManager = new SensorDataManager(history, history, 3, descriptions);
+                    new SimpleFallDetectionStrategy(dataManager);
+                }
+
+                @Override
+                protected long operation(long i) {
+                    int s = (int)(i & (sampleCount - 1));
+                    dataManager.feed(i * samplePeriod, xs[s], ys[s], zs[s], 3);
+                    return s;
+                }
+            }.run();
+            expectAllocationFree(simple);
+
+            new MicroBenchmark("takeSnapshot + release, history " + history) {
+                SensorDataManager dataManager;
+
+                @Override
+                protected void setUp() {
+                    dataManager = filledManager(history);
+                }
+
+                @Override
+                protected long operation(long i) {
+                    SensorDataBuffer snapshot = dataManager.takeSnapshot();
+                    snapshot.release();
+                    return snapshot.size();
+                }
+            }.run();
+
+            new MicroBenchmark("takeSnapshot + retain, history " + history) {
+                SensorDataManager dataManager;
+
+                @Override
+                protected void setUp() {
+                    dataManager = filledManager(history);
+                }
+
+                @Override
+                protected long operation(long i) {
+                    SensorDataBuffer snapshot = dataManager.takeSnapshot();
+                    snapshot.retain();
+                    return snapshot.getTimestamp(snapshot.size() - 1);
+                }
+            }.run();
+
+            new MicroBenchmark("ARFF serialization, history " + history) {
+                SensorDataBuffer snapshot;
+                CountingWriter writer = new CountingWriter();
+
+                @Override
+                protected void setUp() {
+                    snapshot = filledManager(history).takeSnapshot();
+                    snapshot.retain();
+                }
+
+                @Override
+                protected long operation(long i) {
+                    try {
+                        ArffWriter.write(writer, true, "M,30,180,75", "", snapshot);
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return writer.count;
+                }
+            }.run();
+        }
+
+        new MicroBenchmark("simple strategy, quiet samples") {
+            SimpleFallDetectionStrategy strategy;
+
+            @Override
+            protected void setUp() {
+                strategy = new SimpleFallDetectionStrategy(new SensorDataManager(3000, 3, descriptions));
+            }
+
+            @Override
+            protected long operation(long i) {
+                int s = (int)(i & (sampleCount - 1));
+                strategy.onDataAvailable(null, i * samplePeriod, xs[s], ys[s], zs[s], 3);
+                return s;
+            }
+        }.run();
+
+        new MicroBenchmark("simple strategy, a peak every 5 seconds") {
+            SensorDataManager dataManager;
+            SimpleFallDetectionStrategy strategy;
+
+            @Override
+            protected void setUp() {
+                // With room for the snapshots until they are released, as in the service
+                dataManager = new SensorDataManager(3000, 3000, 3, descriptions);
+                strategy = new SimpleFallDetectionStrategy(dataManager, 100);
+                // Release the snapshots, as the service does with the events denied by the user
+                strategy.addListener(new OnFallDetectedListener() {
+                    @Override
+                    public void onFallDetected(IFallDetectionStrategy sender, FallDetectionEvent event) {
+                        event.setOnSnapshotCompletedListener(new OnSnapshotCompletedListener() {
+                            @Override
+                            public void onSnapshotCompleted(FallDetectionEvent event) {
+                                event.snapshot.release();
+                            }
+                        });
+                    }
+                });
+            }
+
+            @Override
+            protected long operation(long i) {
+                int s = (int)(i & (sampleCount - 1));
+                float z = i % 250 == 0 ? 30 : zs[s];
+                // Through the manager, so that the capture windows complete
+                dataManager.feed(i * samplePeriod, xs[s], ys[s], z, 3);
+                return s;
+            }
+        }.run();
+
+        if (failures > 0) {
+            System.err.println("FAILED: " + failures + " allocation-free benchmarks allocated");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Checks that a benchmark has run without allocating (0 B/op), if the JVM can measure it.
+     */
+    static void expectAllocationFree(MicroBenchmark benchmark) {
+        double bytesPerOp = benchmark.getBytesPerOp();
+        if (bytesPerOp >= allocationFreeBytesPerOp) {
+            System.err.printf("%s: %.2f B/op instead of 0%n", benchmark.name, bytesPerOp);
+            failures++;
+        }
+    }
+
+    static SensorDataManager filledManager(int history) {
+        SensorDataManager dataManager = new SensorDataManager(history, history, 3, descriptions);
+        for (int i = 0; i < history; i++) {
+            int s = i & (sampleCount - 1);
+            dataManager.feed(i * samplePeriod, xs[s], ys[s], zs[s], 3);
+        }
+        return dataManager;
+    }
+
+    /**
+     * Discards the characters, counting them.
+     */
+    static class CountingWriter extends Writer
+    {
+        long count = 0;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package it.unipi.ing.falldetection.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import it.unipi.ing.falldetection.core.IFallDetectionStrategyFactory;
+import it.unipi.ing.falldetection.core.Recording;
+import it.unipi.ing.falldetection.core.ReplayedEvent;
+import it.unipi.ing.falldetection.core.SensorDataBuffer;
+import it.unipi.ing.falldetection.core.SensorTraceReader;
+import it.unipi.ing.falldetection.core.SensorTraceReplayer;
+
+/**
+ * Scores strategies over a labeled corpus of traces of falls and activities of daily living.
+ * <p>
+ * The falls of a trace are given by their peak timestamps: for a recorded snapshot labeled as
+ * {@code Fall}, the peak is the anchor of the snapshot (the sample followed by the post-peak
+ * samples); for the other traces, the peaks are listed one per line in a file with the same name
+ * plus {@code .labels}. Traces without falls are activities of daily living.
+ * <p>
+ * A fall is detected if an event is fired within the tolerance after its peak; the other events
+ * are false alarms. The specificity is the fraction of the traces without falls that raise no
+ * alarm. The latency is measured from the peak to the sample that fires the event, and the CPU
+ * time is the one of the threads replaying the traces, divided by the samples.
+ * <p>
+ * The traces are replayed in parallel; each trace is read once and replayed through all the
+ * strategies.
+ *
+ * <pre>
+ * java it.unipi.ing.falldetection.tools.CorpusScorer [options] file-or-directory...
+ *   -strategies simple,multistage    see {@link Strategies}
+ *   -history 3000                    samples of a snapshot
+ *   -post 1500                       samples captured after the peak
+ *   -tolerance 10                    seconds after a peak within which the event must be fired
+ *   -threads N                       parallelism (default: available processors)
+ * </pre>
+ */
+public class CorpusScorer
+{
+    private String[] strategyNames = { "simple", "multistage" };
+    private int history = 3000;
+    private int postPeakSamples = 1500;
+    private long tolerance = 10 * 1000000000L;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private IFallDetectionStrategyFactory[] factories;
+
+    public static void main(String[] args) throws Exception {
+        CorpusScorer scorer = new CorpusScorer();
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i += 2) {
+            if (i + 1 >= args.length) {
+                usage();
+            }
+            String value = args[i + 1];
+            if (args[i].equals("-strategies")) {
+                scorer.strategyNames = value.split(",");
+            }
+            else if (args[i].equals("-history")) {
+                scorer.history = Integer.parseInt(value);
+            }
+            else if (args[i].equals("-post")) {
+                scorer.postPeakSamples = Integer.parseInt(value);
+            }
+            else if (args[i].equals("-tolerance")) {
+                scorer.tolerance = (long)(Double.parseDouble(value) * 1e9);
+            }
+            else if (args[i].equals("-threads")) {
+                scorer.threads = Integer.parseInt(value);
+            }
+            else {
+                usage();
+            }
+        }
+        if (i == args.length) {
+            usage();
+        }
+
+        List<File> files = new ArrayList<File>();
+        for (; i < args.length; i++) {
+            TraceReplay.listTraces(new File(args[i]), files);
+        }
+        Collections.sort(files);
+        scorer.run(files);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: CorpusScorer [-strategies a,b,...] [-history samples] [-post samples]"
+                + " [-tolerance seconds] [-threads n] file-or-directory...");
+        System.exit(2);
+    }
+
+    public void run(List<File> files) throws IOException, InterruptedException, ExecutionException {
+        factories = new IFallDetectionStrategyFactory[strategyNames.length];
+        for (int s = 0; s < strategyNames.length; s++) {
+            factories[s] = Strategies.factory(strategyNames[s], postPeakSamples);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        Score[] totals = new Score[strategyNames.length];
+        for (int s = 0; s < totals.length; s++) {
+            totals[s] = new Score();
+        }
+        int skipped = 0;
+        try {
+            List<Future<Score[]>> results = new ArrayList<Future<Score[]>>();
+            for (final File file : files) {
+                results.add(executor.submit(new Callable<Score[]>() {
+                    @Override
+                    public Score[] call() throws IOException {
+                        return score(file);
+                    }
+                }));
+            }
+            for (int f = 0; f < results.size(); f++) {
+                try {
+                    Score[] scores = results.get(f).get();
+                    for (int s = 0; s < totals.length; s++) {
+                        totals[s].add(scores[s]);
+                    }
+                }
+                catch (ExecutionException e) {
+                    System.err.println("Skipping " + files.get(f) + ": " + e.getCause());
+                    skipped++;
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("%d traces (%d skipped) scored in %.1f s with %d threads%n", files.size(), skipped,
+                elapsed / 1e9, threads);
+        System.out.printf("%-24s %7s %7s %7s %8s %8s %8s %8s %8s %10s%n", "strategy", "falls", "sens", "spec",
+                "FA/hour", "p50[ms]", "p90[ms]", "p99[ms]", "max[ms]", "ns/sample");
+        for (int s = 0; s < totals.length; s++) {
+            Score t = totals[s];
+            long[] latencies = t.sortedLatencies();
+            System.out.printf("%-24s %7d %7.4f %7.4f %8.3f %8.0f %8.0f %8.0f %8.0f %10.1f%n", strategyNames[s],
+                    t.falls, ratio(t.detected, t.falls), ratio(t.quietTraces, t.adlTraces),
+                    t.falseAlarms / (t.traceTime / 3.6e12), percentile(latencies, 0.5) / 1e6,
+                    percentile(latencies, 0.9) / 1e6, percentile(latencies, 0.99) / 1e6,
+                    percentile(latencies, 1) / 1e6, (double)t.cpuTime / t.samples);
+        }
+    }
+
+    /**
+     * Replays a trace through all the strategies.
+     */
+    Score[] score(File file) throws IOException {
+        SensorDataBuffer trace;
+        long[] falls;
+        if (SensorTraceReader.isRecording(file)) {
+            Recording recording = SensorTraceReader.readRecording(file);
+            trace = recording.samples;
+            if (recording.confirmed && trace.size() > 0) {
+                falls = new long[] { trace.getTimestamp(Math.max(0, trace.size() - 1 - postPeakSamples)) };
+            }
+            else {
+                falls = new long[0];
+            }
+        }
+        else {
+            trace = SensorTraceReader.read(file);
+            falls = readLabels(new File(file.getPath() + ".labels"));
+        }
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        boolean cpuTimeSupported = bean.isCurrentThreadCpuTimeSupported();
+        Score[] scores = new Score[factories.length];
+        for (int s = 0; s < factories.length; s++) {
+            SensorTraceReplayer replayer = new SensorTraceReplayer(factories[s], history, 0, false);
+            long cpuStart = cpuTimeSupported ? bean.getCurrentThreadCpuTime() : System.nanoTime();
+            List<ReplayedEvent> events = replayer.replay(trace);
+            long cpuTime = (cpuTimeSupported ? bean.getCurrentThreadCpuTime() : System.nanoTime()) - cpuStart;
+
+            Score score = new Score();
+            score.samples = trace.size();
+            score.traceTime = replayer.getTraceTime();
+            score.cpuTime = cpuTime;
+            match(falls, events, score);
+            scores[s] = score;
+        }
+        return scores;
+    }
+
+    /**
+     * Matches each fall with the first event fired within the tolerance after it. The events left
+     * are false alarms.
+     */
+    private void match(long[] falls, List<ReplayedEvent> events, Score score) {
+        boolean[] used = new boolean[events.size()];
+        for (long fall : falls) {
+            score.falls++;
+            for (int e = 0; e < events.size(); e++) {
+                long latency = events.get(e).sampleTimestamp - fall;
+                if (!used[e] && latency >= 0 && latency <= tolerance) {
+                    used[e] = true;
+                    score.detected++;
+                    score.addLatency(latency);
+                    break;
+                }
+            }
+        }
+        int alarms = 0;
+        for (int e = 0; e < used.length; e++) {
+            if (!used[e]) {
+                alarms++;
+            }
+        }
+        score.falseAlarms += alarms;
+        if (falls.length == 0) {
+            score.adlTraces++;
+            if (alarms == 0) {
+                score.quietTraces++;
+            }
+        }
+    }
+
+    static long[] readLabels(File file) throws IOException {
+        if (!file.exists()) {
+            return new long[0];
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            List<Long> labels = new ArrayList<Long>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    labels.add(Long.parseLong(line));
+                }
+            }
+            long[] result = new long[labels.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = labels.get(i);
+            }
+            return result;
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Invalid label in " + file + ": " + e.getMessage());
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    private static double ratio(long a, long b) {
+        return b > 0 ? (double)a / b : Double.NaN;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int index = (int)Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * The outcomes of a strategy over some traces.
+     */
+    static class Score
+    {
+        long falls, detected, falseAlarms;
+        long adlTraces, quietTraces;
+        long samples, traceTime, cpuTime;
+        long[] latencies = new long[4];
+        int latencyCount = 0;
+
+        void addLatency(long latency) {
+            if (latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencyCount * 2);
+            }
+            latencies[latencyCount++] = latency;
+        }
+
+        void add(Score other) {
+            falls += other.falls;
+            detected += other.detected;
+            falseAlarms += other.falseAlarms;
+            adlTraces += other.adlTraces;
+            quietTraces += other.quietTraces;
+            samples += other.samples;
+            traceTime += other.traceTime;
+            cpuTime += other.cpuTime;
+            for (int i = 0; i < other.latencyCount; i++) {
+                addLatency(other.latencies[i]);
+            }
+        }
+
+        long[] sortedLatencies() {
+            long[] sorted = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package it.unipi.ing.falldetection.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import it.unipi.ing.falldetection.core.ArffWriter;
+import it.unipi.ing.falldetection.core.BinaryEventFormat;
+import it.unipi.ing.falldetection.core.Recording;
+
+/**
+ * Converts the binary events saved by the {@link it.unipi.ing.falldetection.core.Uploader} to
+ * ARFF, for the tools that need the text format. Each {@code name.evt} or {@code name.evt.gz} is
+ * written to {@code name.arff} in the same directory.
+ *
+ * <pre>
+ * java it.unipi.ing.falldetection.tools.EventExport file-or-directory...
+ * </pre>
+ */
+public class EventExport
+{
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: EventExport file-or-directory...");
+            System.exit(2);
+        }
+
+        List<File> files = new ArrayList<File>();
+        for (String arg : args) {
+            listEvents(new File(arg), files);
+        }
+        int failed = 0;
+        for (File file : files) {
+            String name = file.getName();
+            name = name.substring(0, name.lastIndexOf(BinaryEventFormat.EXTENSION));
+            File output = new File(file.getParentFile(), name + ".arff");
+            try {
+                export(file, output);
+            }
+            catch (IOException e) {
+                System.err.println("Skipping " + file + ": " + e.getMessage());
+                failed++;
+            }
+        }
+        System.err.println((files.size() - failed) + " events exported, " + failed + " failed");
+    }
+
+    public static void export(File input, File output) throws IOException {
+        Recording r = BinaryEventFormat.read(input);
+        ArffWriter.write(output, r.confirmed, r.user, r.notes, r.samples);
+    }
+
+    private static void listEvents(File file, List<File> files) {
+        if (file.isDirectory()) {
+            File[] list = file.listFiles();
+            if (list != null) {
+                for (File f : list) {
+                    listEvents(f, files);
+                }
+            }
+        }
+        else if (file.getName().endsWith(BinaryEventFormat.EXTENSION)
+                || file.getName().endsWith(BinaryEventFormat.COMPRESSED_EXTENSION)) {
+            files.add(file);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package it.unipi.ing.falldetection.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import it.unipi.ing.falldetection.core.Recording;
+import it.unipi.ing.falldetection.core.SensorDataBuffer;
+import it.unipi.ing.falldetection.core.SensorDataManager;
+import it.unipi.ing.falldetection.core.SimpleFallDetectionStrategy;
+import it.unipi.ing.falldetection.core.SlidingWindowFeatures;
+
+/**
+ * Computes the features of a recording exactly as the
+ * {@link it.unipi.ing.falldetection.core.ClassifierFallDetectionStrategy} does on the device: the
+ * peaks are detected by the same state machine and the features are taken when the delay after
+ * the last peak of a burst expires.
+ * <p>
+ * A recording may contain several bursts. The one of the event that saved the recording is the
+ * burst whose first peak is the closest to the anchor of the snapshot, i.e. the sample followed by
+ * the post-peak samples.
+ */
+public class FeatureExtractor extends SimpleFallDetectionStrategy
+{
+    private final SlidingWindowFeatures features;
+    private final List<float[]> vectors = new ArrayList<float[]>();
+    private final List<Long> peaks = new ArrayList<Long>();
+    private long firstPeak;
+
+    public FeatureExtractor(int[] windowLengths)
+    {
+        // The manager is never fed: it only receives (and drops) the capture windows
+        super(new SensorDataManager(1, 3, new String[] { "time[ns]", "x", "y", "z" }), 0);
+        this.features = new SlidingWindowFeatures(windowLengths);
+    }
+
+    /**
+     * Extracts the features of the burst that saved the recording.
+     *
+     * @param postPeakSamples
+     *            The number of samples saved after the peak (see
+     *            {@link it.unipi.ing.falldetection.core.AbstractFallDetectionStrategy#postPeakSamples}).
+     * @return The features, or {@code null} if the recording contains no peak.
+     */
+    public static float[] extract(Recording recording, int[] windowLengths, int postPeakSamples) {
+        SensorDataBuffer samples = recording.samples;
+        int size = samples.size();
+        if (size == 0 || samples.getChannelCount() < 3) {
+            return null;
+        }
+
+        FeatureExtractor extractor = new FeatureExtractor(windowLengths);
+        for (int i = 0; i < size; i++) {
+            extractor.onDataAvailable(null, samples.getTimestamp(i), samples.getValue(i, 0),
+                    samples.getValue(i, 1), samples.getValue(i, 2), 0);
+        }
+        if (extractor.armed) {
+            // The recording ends before the delay expires, as if the wall clock had fired the event
+            extractor.fireArmedEvent();
+        }
+
+        long anchor = samples.getTimestamp(Math.max(0, size - 1 - postPeakSamples));
+        float[] best = null;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < extractor.peaks.size(); i++) {
+            long distance = Math.abs(extractor.peaks.get(i) - anchor);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = extractor.vectors.get(i);
+            }
+        }
+        return best;
+    }
+
+    @Override
+    protected void startCapture(long peakTimestamp) {
+        super.startCapture(peakTimestamp);
+        firstPeak = peakTimestamp;
+    }
+
+    @Override
+    protected void fireArmedEvent() {
+        armed = false;
+        cancelCapture();
+        float[] vector = new float[features.getWindowCount() * SlidingWindowFeatures.FEATURE_COUNT];
+        features.getFeatures(vector, 0);
+        vectors.add(vector);
+        peaks.add(firstPeak);
+    }
+
+    @Override
+    public void onDataAvailable(SensorDataManager sender, long timestamp, float x, float y, float z, int accuracy) {
+        features.update(timestamp, x, y, z);
+        super.onDataAvailable(sender, timestamp, x, y, z, accuracy);
+    }
+}
@@ -0,0 +1,82 @@
+package it.unipi.ing.falldetection.tools;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Records the duration of each garbage collection, from the notifications of the collectors. For
+ * the concurrent collectors, the duration of a major collection includes its concurrent phases, so
+ * it is an upper bound of the pause.
+ */
+public class GcMonitor implements NotificationListener
+{
+    private long[] durations = new long[64];
+    private int count = 0;
+
+    /**
+     * Starts recording the collections.
+     */
+    public void start() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                ((NotificationEmitter)gc).addNotificationListener(this, null, null);
+            }
+        }
+    }
+
+    public void stop() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                try {
+                    ((NotificationEmitter)gc).removeNotificationListener(this);
+                }
+                catch (ListenerNotFoundException e) {
+                    // Not registered
+                }
+            }
+        }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info =
+                GarbageCollectionNotificationInfo.from((CompositeData)notification.getUserData());
+        synchronized (this) {
+            if (count == durations.length) {
+                durations = Arrays.copyOf(durations, count * 2);
+            }
+            durations[count++] = info.getGcInfo().getDuration();
+        }
+    }
+
+    /**
+     * Returns a summary of the collections recorded so far: count, total, mean, 99th percentile
+     * and maximum duration, in milliseconds.
+     */
+    public synchronized String summary() {
+        if (count == 0) {
+            return "no collections";
+        }
+        long[] sorted = Arrays.copyOf(durations, count);
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long d : sorted) {
+            total += d;
+        }
+        int p99 = Math.max(0, (int)Math.ceil(0.99 * count) - 1);
+        return String.format("%d collections, total %d ms, mean %.1f ms, p99 %d ms, max %d ms", count, total,
+                (double)total / count, sorted[p99], sorted[count - 1]);
+    }
+}
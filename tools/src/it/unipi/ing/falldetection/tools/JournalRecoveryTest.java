@@ -0,0 +1,157 @@
+package it.unipi.ing.falldetection.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import it.unipi.ing.falldetection.core.EventJournal;
+
+/**
+ * Opens an {@link EventJournal} whose last segment was left in the states a crash can leave it in,
+ * and checks that the journal recovers: a zero-length segment, a zero-filled one, one with a torn
+ * header and no record, and one with a torn header but complete records. After recovery the
+ * journal must accept appends and read back the complete records followed by the new ones.
+ *
+ * <pre>
+ * java it.unipi.ing.falldetection.tools.JournalRecoveryTest
+ * </pre>
+ */
+public class JournalRecoveryTest
+{
+    private static final long maxSegmentSize = 1024 * 1024;
+    private static final String firstSegment = "00000000000000000000.seg";
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException {
+        File directory = createDirectory();
+        try {
+            // Zero-length segment (crash right after creating the file)
+            clear(directory);
+            new FileOutputStream(new File(directory, firstSegment)).close();
+            check("zero-length segment", directory, 0);
+
+            // Zero-filled segment (crash after the file was extended but before it was written)
+            clear(directory);
+            write(new File(directory, firstSegment), new byte[4096]);
+            check("zero-filled segment", directory, 0);
+
+            // Torn header, garbage after it
+            clear(directory);
+            byte[] garbage = new byte[100];
+            Arrays.fill(garbage, (byte)0x5A);
+            write(new File(directory, firstSegment), garbage);
+            check("torn header without records", directory, 0);
+
+            // Torn header, but complete records after it: they are kept
+            clear(directory);
+            EventJournal journal = new EventJournal(directory, maxSegmentSize);
+            for (int i = 0; i < 3; i++) {
+                journal.append(payload(i));
+            }
+            journal.close();
+            RandomAccessFile segment = new RandomAccessFile(new File(directory, firstSegment), "rw");
+            try {
+                segment.writeInt(0);
+            }
+            finally {
+                segment.close();
+            }
+            check("torn header with records", directory, 3);
+        }
+        finally {
+            clear(directory);
+            directory.delete();
+        }
+
+        if (failures > 0) {
+            System.err.println("FAILED: " + failures + " checks");
+            System.exit(1);
+        }
+        System.out.println("The journal recovered from every torn segment");
+    }
+
+    /**
+     * Opens the journal, appends a record, and checks that the given number of records written
+     * before the crash are read back, followed by the new one. Then opens it again and checks that
+     * the new record is still there.
+     */
+    private static void check(String name, File directory, int kept) throws IOException {
+        EventJournal journal;
+        try {
+            journal = new EventJournal(directory, maxSegmentSize);
+        }
+        catch (IOException e) {
+            fail(name, "not opened: " + e);
+            return;
+        }
+        try {
+            journal.append(payload(kept));
+            expect(name, journal, kept + 1);
+        }
+        finally {
+            journal.close();
+        }
+
+        journal = new EventJournal(directory, maxSegmentSize);
+        try {
+            expect(name + ", reopened", journal, kept + 1);
+        }
+        finally {
+            journal.close();
+        }
+        System.out.println(name + ": recovered");
+    }
+
+    private static void expect(String name, EventJournal journal, int count) throws IOException {
+        List<EventJournal.Entry> entries = journal.read(Long.MAX_VALUE);
+        if (entries.size() != count) {
+            fail(name, entries.size() + " records read instead of " + count);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            if (!Arrays.equals(entries.get(i).payload, payload(i))) {
+                fail(name, "record " + i + " differs");
+            }
+        }
+    }
+
+    private static byte[] payload(int i) {
+        byte[] payload = new byte[16 + i];
+        Arrays.fill(payload, (byte)(i + 1));
+        return payload;
+    }
+
+    private static File createDirectory() throws IOException {
+        File directory = File.createTempFile("journal", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        return directory;
+    }
+
+    private static void clear(File directory) {
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static void fail(String name, String message) {
+        System.err.println(name + ": " + message);
+        failures++;
+    }
+}
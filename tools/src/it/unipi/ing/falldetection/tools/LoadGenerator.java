@@ -0,0 +1,194 @@
+package it.unipi.ing.falldetection.tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import it.unipi.ing.falldetection.core.FallDetectionEvent;
+import it.unipi.ing.falldetection.core.IFallDetectionStrategy;
+import it.unipi.ing.falldetection.core.IFallDetectionStrategyFactory;
+import it.unipi.ing.falldetection.core.OnFallDetectedListener;
+import it.unipi.ing.falldetection.core.OnSnapshotCompletedListener;
+import it.unipi.ing.falldetection.core.SensorDataManager;
+
+/**
+ * Drives many independent {@link SensorDataManager}/strategy pairs with the samples of
+ * {@link VirtualWearer}s, as fast as possible, to find the throughput ceiling and the memory per
+ * stream of the core classes.
+ * <p>
+ * The wearers are split among the threads, and each thread owns its streams (a single writer per
+ * manager, as on a device). The samples are fed in batches per stream, like the packets received by
+ * a gateway. The heap per stream is measured after creating the streams and again after the run,
+ * when the capture windows and the retained snapshots have been allocated.
+ *
+ * <pre>
+ * java it.unipi.ing.falldetection.tools.LoadGenerator [options]
+ *   -wearers 1000      number of streams
+ *   -rate 50           samples per second of each stream (50 to 400)
+ *   -duration 600      simulated seconds
+ *   -falls 1           falls per wearer and hour
+ *   -strategy simple   see {@link Strategies}
+ *   -batch 100         milliseconds of samples fed to a stream at a time
+ *   -threads N         threads feeding the streams (default: available processors)
+ * </pre>
+ */
+public class LoadGenerator
+{
+    private int wearers = 1000;
+    private int rate = 50;
+    private int duration = 600;
+    private double fallsPerHour = 1;
+    private String strategyName = "simple";
+    private int batch = 100;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private final AtomicLong events = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                usage();
+            }
+            String value = args[i + 1];
+            if (args[i].equals("-wearers")) {
+                generator.wearers = Integer.parseInt(value);
+            }
+            else if (args[i].equals("-rate")) {
+                generator.rate = Integer.parseInt(value);
+            }
+            else if (args[i].equals("-duration")) {
+                generator.duration = Integer.parseInt(value);
+            }
+            else if (args[i].equals("-falls")) {
+                generator.fallsPerHour = Double.parseDouble(value);
+            }
+            else if (args[i].equals("-strategy")) {
+                generator.strategyName = value;
+            }
+            else if (args[i].equals("-batch")) {
+                generator.batch = Integer.parseInt(value);
+            }
+            else if (args[i].equals("-threads")) {
+                generator.threads = Integer.parseInt(value);
+            }
+            else {
+                usage();
+            }
+        }
+        generator.run();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: LoadGenerator [-wearers n] [-rate hz] [-duration s] [-falls per-hour]"
+                + " [-strategy name] [-batch ms] [-threads n]");
+        System.exit(2);
+    }
+
+    public void run() throws Exception {
+        // 30 seconds before and after the peak, plus one minute of retention, as in the service
+        final int history = rate * 60;
+        final int retention = rate * 60;
+        final int postPeakSamples = rate * 30;
+        final int samplesPerBatch = Math.max(1, rate * batch / 1000);
+        final long period = 1000000000L / rate;
+        final long steps = (long)duration * rate;
+        final String[] descriptions = new String[] {
+                "time[ns]", "acceleration_x[m/s^2]", "acceleration_y[m/s^2]", "acceleration_z[m/s^2]"
+        };
+        IFallDetectionStrategyFactory factory = Strategies.factory(strategyName, postPeakSamples);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long heapBefore = usedHeap(memory);
+
+        final SensorDataManager[] managers = new SensorDataManager[wearers];
+        final VirtualWearer[] generators = new VirtualWearer[wearers];
+        OnFallDetectedListener counter = new EventCounter();
+        for (int w = 0; w < wearers; w++) {
+            managers[w] = new SensorDataManager(history, retention, 3, descriptions);
+            IFallDetectionStrategy strategy = factory.create(managers[w]);
+            strategy.addListener(counter);
+            generators[w] = new VirtualWearer(w, rate, fallsPerHour);
+        }
+        long heapCreated = usedHeap(memory);
+
+        GcMonitor gc = new GcMonitor();
+        gc.start();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = (int)((long)wearers * t / threads);
+            final int last = (int)((long)wearers * (t + 1) / threads);
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    float[] sample = new float[3];
+                    for (long step = 0; step < steps; step += samplesPerBatch) {
+                        long end = Math.min(steps, step + samplesPerBatch);
+                        for (int w = first; w < last; w++) {
+                            SensorDataManager manager = managers[w];
+                            VirtualWearer wearer = generators[w];
+                            for (long s = step; s < end; s++) {
+                                wearer.next(sample);
+                                manager.feed(s * period, sample[0], sample[1], sample[2], 3);
+                            }
+                        }
+                    }
+                }
+            }, "LoadGenerator-" + t);
+        }
+
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        gc.stop();
+        long heapAfter = usedHeap(memory);
+
+        long falls = 0;
+        for (VirtualWearer wearer : generators) {
+            falls += wearer.getFallCount();
+        }
+        long samples = steps * wearers;
+        double samplesPerSecond = samples / (elapsed / 1e9);
+        System.out.printf("%d streams at %d Hz, %d s simulated, %d threads, strategy %s%n", wearers, rate, duration,
+                threads, strategyName);
+        System.out.printf("%d samples in %.2f s: %.0f samples/s, %.0f streams in real time%n", samples,
+                elapsed / 1e9, samplesPerSecond, samplesPerSecond / rate);
+        System.out.printf("%d falls injected, %d events fired%n", falls, events.get());
+        System.out.printf("heap per stream: %.1f KB after creation, %.1f KB after the run%n",
+                (heapCreated - heapBefore) / 1024.0 / wearers, (heapAfter - heapBefore) / 1024.0 / wearers);
+        System.out.println("GC: " + gc.summary());
+    }
+
+    /**
+     * Gets the heap used after a full collection (as far as {@link System#gc} can tell).
+     */
+    private static long usedHeap(MemoryMXBean memory) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Counts the events and releases their snapshots, as the service does with the false alarms.
+     */
+    private class EventCounter implements OnFallDetectedListener, OnSnapshotCompletedListener
+    {
+        @Override
+        public void onFallDetected(IFallDetectionStrategy sender, FallDetectionEvent event) {
+            events.incrementAndGet();
+            event.setOnSnapshotCompletedListener(this);
+        }
+
+        @Override
+        public void onSnapshotCompleted(FallDetectionEvent event) {
+            event.snapshot.release();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package it.unipi.ing.falldetection.tools;
+
+import it.unipi.ing.falldetection.core.FallDetectionModel;
+
+/**
+ * Fits a logistic regression with L2 regularization by Newton's method, on standardized features.
+ * The classes are weighted by the inverse of their frequency, since the falls are usually far
+ * fewer than the false alarms.
+ */
+public class LogisticRegression
+{
+    private static final int maxIterations = 50;
+    private static final double tolerance = 1e-6;
+
+    private final double lambda;
+
+    /**
+     * Constructs a new instance of LogisticRegression.
+     *
+     * @param lambda
+     *            The weight of the L2 regularization (the bias is not regularized).
+     */
+    public LogisticRegression(double lambda)
+    {
+        this.lambda = lambda;
+    }
+
+    /**
+     * Fits the model on the given examples.
+     *
+     * @param x
+     *            The features of the examples.
+     * @param y
+     *            Whether each example is a fall.
+     * @param count
+     *            The number of examples, taken from the beginning of the arrays.
+     */
+    public FallDetectionModel fit(float[][] x, boolean[] y, int count, int[] windowLengths, float threshold) {
+        int n = x[0].length;
+
+        float[] means = new float[n];
+        float[] scales = new float[n];
+        for (int j = 0; j < n; j++) {
+            double sum = 0, sumOfSquares = 0;
+            for (int i = 0; i < count; i++) {
+                sum += x[i][j];
+                sumOfSquares += (double)x[i][j] * x[i][j];
+            }
+            double mean = sum / count;
+            double deviation = Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean));
+            means[j] = (float)mean;
+            scales[j] = deviation > 1e-9 ? (float)deviation : 1;
+        }
+
+        int positives = 0;
+        for (int i = 0; i < count; i++) {
+            if (y[i]) {
+                positives++;
+            }
+        }
+        double positiveWeight = positives > 0 ? count / (2.0 * positives) : 1;
+        double negativeWeight = positives < count ? count / (2.0 * (count - positives)) : 1;
+
+        // The coefficients, with the bias last
+        double[] beta = new double[n + 1];
+        double[] z = new double[n + 1];
+        double[] gradient = new double[n + 1];
+        double[][] hessian = new double[n + 1][n + 1];
+        z[n] = 1;
+
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            for (int j = 0; j <= n; j++) {
+                gradient[j] = j < n ? lambda * beta[j] : 0;
+                for (int k = 0; k <= n; k++) {
+                    hessian[j][k] = j == k && j < n ? lambda : 0;
+                }
+            }
+
+            for (int i = 0; i < count; i++) {
+                double s = beta[n];
+                for (int j = 0; j < n; j++) {
+                    z[j] = (x[i][j] - means[j]) / scales[j];
+                    s += beta[j] * z[j];
+                }
+                double p = 1 / (1 + Math.exp(-s));
+                double w = y[i] ? positiveWeight : negativeWeight;
+                double r = w * (p - (y[i] ? 1 : 0));
+                double h = w * p * (1 - p);
+                for (int j = 0; j <= n; j++) {
+                    gradient[j] += r * z[j];
+                    double hz = h * z[j];
+                    // The hessian is symmetric: fill the lower triangle only
+                    for (int k = 0; k <= j; k++) {
+                        hessian[j][k] += hz * z[k];
+                    }
+                }
+            }
+            for (int j = 0; j <= n; j++) {
+                for (int k = j + 1; k <= n; k++) {
+                    hessian[j][k] = hessian[k][j];
+                }
+            }
+
+            double[] step = solve(hessian, gradient);
+            double largest = 0;
+            for (int j = 0; j <= n; j++) {
+                beta[j] -= step[j];
+                largest = Math.max(largest, Math.abs(step[j]));
+            }
+            if (largest < tolerance) {
+                break;
+            }
+        }
+
+        float[] weights = new float[n];
+        for (int j = 0; j < n; j++) {
+            weights[j] = (float)beta[j];
+        }
+        return new FallDetectionModel(windowLengths, threshold, (float)beta[n], means, scales, weights);
+    }
+
+    /**
+     * Solves {@code a * x = b} by Gaussian elimination with partial pivoting. Both arguments are
+     * overwritten.
+     */
+    private static double[] solve(double[][] a, double[] b) {
+        int n = b.length;
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < n; row++) {
+                if (Math.abs(a[row][col]) > Math.abs(a[pivot][col])) {
+                    pivot = row;
+                }
+            }
+            double[] tmp = a[col];
+            a[col] = a[pivot];
+            a[pivot] = tmp;
+            double t = b[col];
+            b[col] = b[pivot];
+            b[pivot] = t;
+
+            if (Math.abs(a[col][col]) < 1e-12) {
+                // Singular (e.g., a single class without regularization): leave this coefficient
+                a[col][col] = 1;
+                b[col] = 0;
+                for (int k = col + 1; k < n; k++) {
+                    a[col][k] = 0;
+                }
+            }
+            for (int row = col + 1; row < n; row++) {
+                double factor = a[row][col] / a[col][col];
+                for (int k = col; k < n; k++) {
+                    a[row][k] -= factor * a[col][k];
+                }
+                b[row] -= factor * b[col];
+            }
+        }
+
+        double[] x = new double[n];
+        for (int row = n - 1; row >= 0; row--) {
+            double sum = b[row];
+            for (int k = row + 1; k < n; k++) {
+                sum -= a[row][k] * x[k];
+            }
+            x[row] = sum / a[row][row];
+        }
+        return x;
+    }
+}
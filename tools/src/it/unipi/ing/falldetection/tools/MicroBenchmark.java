@@ -0,0 +1,165 @@
+package it.unipi.ing.falldetection.tools;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+/**
+ * A minimal benchmark harness: runs an operation in timed iterations after a warmup, and reports
+ * the time per operation, the bytes allocated per operation by the benchmark thread and the
+ * garbage collections during the measurement.
+ * <p>
+ * Each operation returns a value that is accumulated into a sink, so that the JIT cannot eliminate
+ * the work whose result is otherwise unused.
+ */
+public abstract class MicroBenchmark
+{
+    private static final int warmupIterations = 5;
+    private static final int measurementIterations = 5;
+    private static final long iterationTime = 1000000000L; // nanoseconds
+
+    private static volatile long sink;
+
+    protected final String name;
+
+    /**
+     * The number of operations run so far, including the warmup.
+     */
+    private long count = 0;
+
+    /**
+     * The results of the last run, or NaN if not run yet (or if the allocations cannot be
+     * measured).
+     */
+    private double nanosPerOp = Double.NaN;
+    private double bytesPerOp = Double.NaN;
+
+    protected MicroBenchmark(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Prepares the state of the benchmark, before the warmup.
+     */
+    protected void setUp() {
+    }
+
+    /**
+     * Runs one operation.
+     *
+     * @param i
+     *            The number of the operation, increasing across all the iterations.
+     */
+    protected abstract long operation(long i);
+
+    /**
+     * Runs the benchmark and prints its results, which can then be read with
+     * {@link #getNanosPerOp} and {@link #getBytesPerOp}.
+     *
+     * @return This benchmark.
+     */
+    public MicroBenchmark run() {
+        setUp();
+        long ops = calibrate();
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(ops);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocation = threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean)threads : null;
+        long threadId = Thread.currentThread().getId();
+        long gcCountBefore = gcCount();
+        long gcTimeBefore = gcTime();
+        long allocatedBefore = allocation != null ? allocation.getThreadAllocatedBytes(threadId) : 0;
+
+        double[] times = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++) {
+            times[i] = (double)iteration(ops) / ops;
+        }
+
+        long allocated = allocation != null ? allocation.getThreadAllocatedBytes(threadId) - allocatedBefore : -1;
+        long gcCount = gcCount() - gcCountBefore;
+        long gcTime = gcTime() - gcTimeBefore;
+
+        double mean = 0;
+        for (double v : times) {
+            mean += v;
+        }
+        mean /= times.length;
+        double variance = 0;
+        for (double v : times) {
+            variance += (v - mean) * (v - mean);
+        }
+        double deviation = Math.sqrt(variance / times.length);
+        nanosPerOp = mean;
+        bytesPerOp = allocated >= 0 ? (double)allocated / (ops * measurementIterations) : Double.NaN;
+
+        System.out.printf("%-48s %12.1f ns/op  +- %8.1f  %10.1f B/op  gc %d (%d ms)%n", name, mean, deviation,
+                bytesPerOp, gcCount, gcTime);
+        return this;
+    }
+
+    /**
+     * Gets the mean time per operation of the last run, in nanoseconds.
+     */
+    public double getNanosPerOp() {
+        return nanosPerOp;
+    }
+
+    /**
+     * Gets the bytes allocated per operation by the benchmark thread during the measurement of
+     * the last run, or NaN if the JVM cannot measure them.
+     */
+    public double getBytesPerOp() {
+        return bytesPerOp;
+    }
+
+    /**
+     * Finds a number of operations lasting about one iteration.
+     */
+    private long calibrate() {
+        long ops = 1;
+        while (true) {
+            long elapsed = iteration(ops);
+            if (elapsed >= iterationTime / 10) {
+                return Math.max(1, ops * iterationTime / elapsed);
+            }
+            ops *= 2;
+        }
+    }
+
+    private long iteration(long ops) {
+        long sum = 0;
+        long first = count;
+        long last = first + ops;
+        long start = System.nanoTime();
+        for (long i = first; i < last; i++) {
+            sum += operation(i);
+        }
+        long elapsed = System.nanoTime() - start;
+        count = last;
+        sink += sum;
+        return elapsed;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        for (GarbageCollectorMXBean gc : collectors) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        for (GarbageCollectorMXBean gc : collectors) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+}
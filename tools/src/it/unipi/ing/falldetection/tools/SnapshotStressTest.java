@@ -0,0 +1,152 @@
+package it.unipi.ing.falldetection.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import it.unipi.ing.falldetection.core.SensorDataBuffer;
+import it.unipi.ing.falldetection.core.SensorDataManager;
+
+/**
+ * Stresses the ring of the {@link SensorDataManager}: a writer feeds samples as fast as it can,
+ * while several readers take snapshots and check every one of them for torn rows.
+ * <p>
+ * Each sample is derived from its number {@code n}: the timestamp is {@code n} periods and the
+ * three channels are functions of {@code n}, so a row mixing two samples is detected. The
+ * timestamps of a snapshot must follow each other by exactly one period, and the snapshots taken
+ * by a reader must not go back in time. The ring is small, so that the writer overwrites the
+ * samples being copied by the readers, and copies out the views they have not retained yet, as
+ * often as possible. Half of the snapshots are retained before being read, a quarter are read
+ * directly and the others are released unread.
+ *
+ * <pre>
+ * java it.unipi.ing.falldetection.tools.SnapshotStressTest [seconds [readers [history [retention]]]]
+ * </pre>
+ */
+public class SnapshotStressTest
+{
+    private static final long samplePeriod = 20000000L; // nanoseconds, 50 Hz
+    private static final int mask = 0xFFFFFF; // the integers a float holds exactly
+    private static final String[] descriptions = new String[] {
+            "time[ns]", "acceleration_x[g]", "acceleration_y[g]", "acceleration_z[g]"
+    };
+
+    private static volatile boolean running = true;
+    private static final AtomicLong snapshots = new AtomicLong();
+    private static final AtomicLong rows = new AtomicLong();
+    private static final AtomicLong failures = new AtomicLong();
+
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int readerCount = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int history = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        int retention = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+
+        final SensorDataManager dataManager = new SensorDataManager(history, retention, 3, descriptions);
+        final long[] fed = new long[1];
+        Thread writer = new Thread("writer") {
+            @Override
+            public void run() {
+                long n = 0;
+                while (running) {
+                    dataManager.feed(n * samplePeriod, x(n), y(n), z(n), 3);
+                    n++;
+                }
+                fed[0] = n;
+            }
+        };
+
+        Thread[] readers = new Thread[readerCount];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread("reader " + i) {
+                @Override
+                public void run() {
+                    long last = -1;
+                    for (long k = 0; running; k++) {
+                        SensorDataBuffer snapshot = dataManager.takeSnapshot();
+                        if ((k & 3) == 3) {
+                            snapshot.release();
+                            continue;
+                        }
+                        if ((k & 1) == 0) {
+                            snapshot.retain();
+                        }
+                        last = check(getName(), snapshot, last);
+                    }
+                }
+            };
+        }
+
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running = false;
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        System.out.printf("%d samples fed, %d snapshots (%d rows) checked by %d readers%n", fed[0],
+                snapshots.get(), rows.get(), readerCount);
+        if (failures.get() > 0) {
+            System.err.println("FAILED: " + failures.get() + " torn snapshots");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Checks a snapshot.
+     *
+     * @param last
+     *            The timestamp of the last sample of the previous snapshot of the reader, or -1.
+     * @return The timestamp of the last sample of this snapshot, or {@code last} if empty.
+     */
+    private static long check(String reader, SensorDataBuffer snapshot, long last) {
+        int size = snapshot.size();
+        if (size == 0) {
+            return last;
+        }
+        long first = snapshot.getTimestamp(0);
+        if (first < 0 || first % samplePeriod != 0) {
+            return fail(reader, "invalid timestamp " + first, last);
+        }
+        for (int i = 0; i < size; i++) {
+            long timestamp = snapshot.getTimestamp(i);
+            long n = timestamp / samplePeriod;
+            if (timestamp != first + i * samplePeriod) {
+                return fail(reader, "timestamp " + timestamp + " at row " + i + " after " + first, last);
+            }
+            if (snapshot.getValue(i, 0) != x(n) || snapshot.getValue(i, 1) != y(n)
+                    || snapshot.getValue(i, 2) != z(n))
+            {
+                return fail(reader, "torn row " + i + " (sample " + n + ")", last);
+            }
+        }
+        long end = snapshot.getTimestamp(size - 1);
+        if (end < last) {
+            return fail(reader, "snapshot ending at " + end + " after one ending at " + last, last);
+        }
+        snapshots.incrementAndGet();
+        rows.addAndGet(size);
+        return end;
+    }
+
+    private static long fail(String reader, String message, long last) {
+        if (failures.incrementAndGet() <= 10) {
+            System.err.println(reader + ": " + message);
+        }
+        return last;
+    }
+
+    private static float x(long n) {
+        return (float)(n & mask);
+    }
+
+    private static float y(long n) {
+        return -(float)((n + 1) & mask);
+    }
+
+    private static float z(long n) {
+        return (float)((n * 7) & mask);
+    }
+}
@@ -0,0 +1,56 @@
+package it.unipi.ing.falldetection.tools;
+
+import java.io.File;
+import java.io.IOException;
+
+import it.unipi.ing.falldetection.core.ClassifierFallDetectionStrategy;
+import it.unipi.ing.falldetection.core.FallDetectionModel;
+import it.unipi.ing.falldetection.core.IFallDetectionStrategy;
+import it.unipi.ing.falldetection.core.IFallDetectionStrategyFactory;
+import it.unipi.ing.falldetection.core.MultiStageFallDetectionStrategy;
+import it.unipi.ing.falldetection.core.SensorDataManager;
+import it.unipi.ing.falldetection.core.SimpleFallDetectionStrategy;
+
+/**
+ * Creates the strategy factories named on the command line:
+ * <ul>
+ * <li>{@code simple}: {@link SimpleFallDetectionStrategy};</li>
+ * <li>{@code multistage}: {@link MultiStageFallDetectionStrategy};</li>
+ * <li>{@code classifier:<model file>}: {@link ClassifierFallDetectionStrategy}.</li>
+ * </ul>
+ */
+public class Strategies
+{
+    private Strategies()
+    {
+    }
+
+    public static IFallDetectionStrategyFactory factory(String name, final int postPeakSamples) throws IOException {
+        if (name.equals("simple")) {
+            return new IFallDetectionStrategyFactory() {
+                @Override
+                public IFallDetectionStrategy create(SensorDataManager dataManager) {
+                    return new SimpleFallDetectionStrategy(dataManager, postPeakSamples);
+                }
+            };
+        }
+        else if (name.equals("multistage")) {
+            return new IFallDetectionStrategyFactory() {
+                @Override
+                public IFallDetectionStrategy create(SensorDataManager dataManager) {
+                    return new MultiStageFallDetectionStrategy(dataManager, postPeakSamples);
+                }
+            };
+        }
+        else if (name.startsWith("classifier:")) {
+            final FallDetectionModel model = FallDetectionModel.load(new File(name.substring(11)));
+            return new IFallDetectionStrategyFactory() {
+                @Override
+                public IFallDetectionStrategy create(SensorDataManager dataManager) {
+                    return new ClassifierFallDetectionStrategy(dataManager, postPeakSamples, model);
+                }
+            };
+        }
+        throw new IllegalArgumentException("Unknown strategy: " + name);
+    }
+}
@@ -0,0 +1,111 @@
+package it.unipi.ing.falldetection.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import it.unipi.ing.falldetection.core.ReplayedEvent;
+import it.unipi.ing.falldetection.core.SensorDataBuffer;
+import it.unipi.ing.falldetection.core.SensorTraceReader;
+import it.unipi.ing.falldetection.core.SensorTraceReplayer;
+
+/**
+ * Replays recorded traces through a strategy and prints the events fired, one per line, as
+ * "file,sample timestamp,seconds from the start of the trace,reliability".
+ *
+ * <pre>
+ * java it.unipi.ing.falldetection.tools.TraceReplay [options] file-or-directory...
+ *   -strategy simple       see {@link Strategies}
+ *   -history 3000          samples of a snapshot
+ *   -post 1500             samples captured after the peak
+ *   -speed 0               multiple of real time, 0 for as fast as possible
+ * </pre>
+ */
+public class TraceReplay
+{
+    public static void main(String[] args) throws IOException {
+        String strategy = "simple";
+        int history = 3000;
+        int postPeakSamples = 1500;
+        double speed = 0;
+
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i += 2) {
+            if (i + 1 >= args.length) {
+                usage();
+            }
+            String value = args[i + 1];
+            if (args[i].equals("-strategy")) {
+                strategy = value;
+            }
+            else if (args[i].equals("-history")) {
+                history = Integer.parseInt(value);
+            }
+            else if (args[i].equals("-post")) {
+                postPeakSamples = Integer.parseInt(value);
+            }
+            else if (args[i].equals("-speed")) {
+                speed = Double.parseDouble(value);
+            }
+            else {
+                usage();
+            }
+        }
+        if (i == args.length) {
+            usage();
+        }
+
+        List<File> files = new ArrayList<File>();
+        for (; i < args.length; i++) {
+            listTraces(new File(args[i]), files);
+        }
+        Collections.sort(files);
+
+        SensorTraceReplayer replayer = new SensorTraceReplayer(Strategies.factory(strategy, postPeakSamples),
+                history, speed, false);
+        int eventCount = 0;
+        for (File file : files) {
+            SensorDataBuffer trace;
+            try {
+                trace = SensorTraceReader.read(file);
+            }
+            catch (IOException e) {
+                System.err.println("Skipping " + file + ": " + e.getMessage());
+                continue;
+            }
+            long origin = trace.size() > 0 ? trace.getTimestamp(0) : 0;
+            for (ReplayedEvent e : replayer.replay(trace)) {
+                System.out.printf("%s,%d,%.3f,%.4f%n", file, e.sampleTimestamp, (e.sampleTimestamp - origin) / 1e9,
+                        e.event.reliability);
+                eventCount++;
+            }
+        }
+
+        double replaySeconds = replayer.getReplayTime() / 1e9;
+        System.err.printf("%d traces, %d samples, %d events; %.1f s of traces replayed in %.3f s (%.0fx real time)%n",
+                files.size(), replayer.getSampleCount(), eventCount, replayer.getTraceTime() / 1e9, replaySeconds,
+                replayer.getTraceTime() / 1e9 / replaySeconds);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: TraceReplay [-strategy name] [-history samples] [-post samples] [-speed factor]"
+                + " file-or-directory...");
+        System.exit(2);
+    }
+
+    static void listTraces(File file, List<File> files) {
+        if (file.isDirectory()) {
+            File[] list = file.listFiles();
+            if (list != null) {
+                for (File f : list) {
+                    listTraces(f, files);
+                }
+            }
+        }
+        else if (SensorTraceReader.isTrace(file)) {
+            files.add(file);
+        }
+    }
+}
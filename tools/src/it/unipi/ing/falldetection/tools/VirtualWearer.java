@@ -0,0 +1,173 @@
+package it.unipi.ing.falldetection.tools;
+
+/**
+ * Simulates the accelerometer of a device worn by a person, in m/s^2.
+ * <p>
+ * The wearer alternates between rest and walking (a vertical oscillation of about 2 Hz), with the
+ * occasional bump of daily activities (such as sitting down hard), and falls at random: a short
+ * free fall, an impact of several g and a period lying still with the device rotated by 90
+ * degrees. The generator is deterministic for a given seed and allocates nothing.
+ */
+public class VirtualWearer
+{
+    private static final double g = 9.80665;
+
+    private static final int REST = 0;
+    private static final int WALK = 1;
+    private static final int FREE_FALL = 2;
+    private static final int IMPACT = 3;
+    private static final int LYING = 4;
+
+    private static final double freeFallDuration = 0.3; // seconds
+    private static final double impactDuration = 0.1; // seconds
+    private static final double lyingDuration = 20; // seconds
+    private static final double bumpDuration = 0.08; // seconds
+    private static final double bumpsPerHour = 20;
+
+    private final double rate;
+    private final double fallProbability;
+    private final double bumpProbability;
+
+    private long random;
+    private int state = REST;
+    private double stateEnd;
+    private double time = 0;
+    private double bumpEnd = -1;
+    private double bumpMagnitude;
+    private double impactMagnitude;
+    private double phase;
+    private double frequency;
+
+    /**
+     * The direction of gravity in the frame of the device, while standing.
+     */
+    private final double gx, gy, gz;
+
+    private long falls = 0;
+
+    /**
+     * Constructs a new instance of VirtualWearer.
+     *
+     * @param rate
+     *            The sampling rate, in Hz.
+     * @param fallsPerHour
+     *            The mean number of falls per hour.
+     */
+    public VirtualWearer(long seed, double rate, double fallsPerHour)
+    {
+        this.random = seed * 0x9E3779B97F4A7C15L + 1;
+        this.rate = rate;
+        this.fallProbability = fallsPerHour / 3600 / rate;
+        this.bumpProbability = bumpsPerHour / 3600 / rate;
+
+        // A device in a pocket: mostly upright, slightly tilted
+        double tx = 0.2 * gaussian(), ty = 0.2 * gaussian();
+        double norm = Math.sqrt(tx * tx + ty * ty + 1);
+        gx = tx / norm;
+        gy = ty / norm;
+        gz = 1 / norm;
+        stateEnd = 30 + 90 * uniform();
+    }
+
+    /**
+     * Gets the number of falls started so far.
+     */
+    public long getFallCount() {
+        return falls;
+    }
+
+    /**
+     * Computes the next sample into {@code dst}, as x, y, z.
+     */
+    public void next(float[] dst) {
+        time += 1 / rate;
+        if (state <= WALK && uniform() < fallProbability) {
+            falls++;
+            enter(FREE_FALL, freeFallDuration);
+            impactMagnitude = (3 + 3 * uniform()) * g;
+        }
+        else if (time >= stateEnd) {
+            switch (state) {
+                case FREE_FALL:
+                    enter(IMPACT, impactDuration);
+                    break;
+                case IMPACT:
+                    enter(LYING, lyingDuration);
+                    break;
+                case REST:
+                    frequency = 1.7 + 0.5 * uniform();
+                    enter(WALK, 10 + 110 * uniform());
+                    break;
+                default:
+                    enter(REST, 30 + 90 * uniform());
+                    break;
+            }
+        }
+        if (state <= WALK && bumpEnd < time && uniform() < bumpProbability) {
+            bumpEnd = time + bumpDuration;
+            bumpMagnitude = (1.5 + 1.0 * uniform()) * g;
+        }
+
+        double x, y, z;
+        switch (state) {
+            case FREE_FALL:
+                x = 0.1 * g * gx + 0.05 * g * gaussian();
+                y = 0.1 * g * gy + 0.05 * g * gaussian();
+                z = 0.1 * g * gz + 0.05 * g * gaussian();
+                break;
+            case IMPACT:
+                x = 0.3 * impactMagnitude * gaussian();
+                y = 0.3 * impactMagnitude * gaussian();
+                z = impactMagnitude;
+                break;
+            case LYING:
+                // Rotated by 90 degrees: gravity along the x axis of the device
+                x = g + 0.02 * g * gaussian();
+                y = 0.02 * g * gaussian();
+                z = 0.02 * g * gaussian();
+                break;
+            default:
+                double magnitude = g;
+                double noise = 0.05 * g;
+                if (state == WALK) {
+                    phase += 2 * Math.PI * frequency / rate;
+                    magnitude += 0.3 * g * Math.sin(phase);
+                    noise = 0.1 * g;
+                }
+                if (time < bumpEnd) {
+                    magnitude = bumpMagnitude;
+                }
+                x = magnitude * gx + noise * gaussian();
+                y = magnitude * gy + noise * gaussian();
+                z = magnitude * gz + noise * gaussian();
+                break;
+        }
+        dst[0] = (float)x;
+        dst[1] = (float)y;
+        dst[2] = (float)z;
+    }
+
+    private void enter(int state, double duration) {
+        this.state = state;
+        this.stateEnd = time + duration;
+    }
+
+    /**
+     * A uniform number in [0, 1), from a xorshift generator.
+     */
+    private double uniform() {
+        long r = random;
+        r ^= r << 13;
+        r ^= r >>> 7;
+        r ^= r << 17;
+        random = r;
+        return (r >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * An approximately normal number with unit variance (the sum of four uniform numbers).
+     */
+    private double gaussian() {
+        return (uniform() + uniform() + uniform() + uniform() - 2) * 1.7320508075688772;
+    }
+}